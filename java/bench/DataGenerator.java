@@ -0,0 +1,286 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Random;
+
+/**
+ * Writes a synthetic data set with the same files, columns and value shapes
+ * as data/*.csv, scaled up by a factor: at scale 1 it has the size of the
+ * bundled set (100 users, 20 stores, 10 products per store, 500 orders),
+ * at scale 1000 it has 100k users, 20k stores and 500k orders. The number
+ * of distinct products grows with the square root of the scale unless
+ * -products is given.
+ *
+ * Output depends only on the seed and the sizes: every table is drawn from
+ * its own Random seeded from the seed, so the files can be regenerated
+ * exactly. Orders are skewed towards a few popular customers, stores and
+ * products, like real traffic. Load the files with BulkLoader.
+ *
+ * Usage: DataGenerator <output directory> [scale] [seed] [-products N] [-productsPerStore N]
+ */
+public class DataGenerator {
+
+   private static final String[] BASE_PRODUCTS = {
+      "7up", "Brisk", "Donuts", "Egg", "Hot and Sour Soup", "Ice Cream", "Lemonade", "Orange Juice",
+      "Pepsi", "Pudding"
+   };
+   private static final String[] FIRST_NAMES = {
+      "Amy", "Bob", "Marshall", "Natalie", "Kim", "Luis", "Priya", "Omar", "Chen", "Sara", "Ivan",
+      "Grace", "Tom", "Nora", "Raj", "Elena"
+   };
+   private static final String[] LAST_NAMES = {
+      "Johns", "Braun", "Lee", "Garcia", "Patel", "Smith", "Nguyen", "Kowalski", "Silva", "Okafor"
+   };
+
+   // time range of generated orders and updates: 2016-01-01 .. 2023-01-01
+   private static final long FIRST_SECOND = 1451606400L;
+   private static final long LAST_SECOND = 1672531200L;
+
+   private final File _dir;
+   private final long _seed;
+   private final int _users;
+   private final int _managers;
+   private final int _stores;
+   private final int _warehouses;
+   private final int _products;
+   private final int _productsPerStore;
+   private final int _orders;
+   private final int _updates;
+   private final int _requests;
+
+   // filled while writing, read by the later tables
+   private int[] _managerIDs;
+   private int[] _storeManager;
+   private int[][] _storeProducts;
+   private String[] _productNames;
+
+   public DataGenerator(File dir, double scale, long seed, int products, int productsPerStore) {
+      this._dir = dir;
+      this._seed = seed;
+      this._users = Math.max(10, (int) Math.round(100 * scale));
+      this._stores = Math.max(1, (int) Math.round(20 * scale));
+      this._managers = Math.max(1, Math.min(this._users - 2, (int) Math.round(this._stores * 0.3)));
+      this._warehouses = Math.max(5, (int) Math.round(5 * Math.sqrt(scale)));
+      this._products = products > 0 ? products : (int) Math.round(10 * Math.max(1, Math.sqrt(scale)));
+      this._productsPerStore = Math.min(this._products, productsPerStore > 0 ? productsPerStore : 10 * (int) Math.ceil(Math.max(1, Math.sqrt(scale))));
+      this._orders = (int) Math.round(500 * scale);
+      this._updates = (int) Math.round(50 * scale);
+      this._requests = (int) Math.round(10 * scale);
+   }//end DataGenerator
+
+   /**
+    * Writes every file into the output directory
+    */
+   public void generate() throws IOException {
+      this._dir.mkdirs();
+      writeUsers();
+      writeWarehouses();
+      writeStores();
+      writeProducts();
+      writeOrders();
+      writeProductUpdates();
+      writeProductSupplyRequests();
+   }//end generate
+
+   private void writeUsers() throws IOException {
+      Random random = random(1);
+      // userID 1 is the admin, managers are spread over the other ids
+      boolean[] manager = new boolean[this._users + 1];
+      this._managerIDs = new int[this._managers];
+      for (int m = 0; m < this._managers; ) {
+         int id = 2 + random.nextInt(this._users - 1);
+         if (!manager[id]) {
+            manager[id] = true;
+            this._managerIDs[m++] = id;
+         }//end if
+      }//end for
+      Writer out = open("users.csv", "userID,name,password,latitude,longitude,type");
+      try {
+         for (int id = 1; id <= this._users; ++id) {
+            String name = id == 1 ? "Admin"
+               : FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + (random.nextBoolean() ? "." : "_")
+                 + LAST_NAMES[random.nextInt(LAST_NAMES.length)] + id;
+            String type = id == 1 ? "admin" : manager[id] ? "manager" : "customer";
+            out.write(id + "," + name + ",xyz," + coordinate(random) + "," + coordinate(random) + "," + type + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeUsers
+
+   private void writeWarehouses() throws IOException {
+      Random random = random(2);
+      Writer out = open("warehouse.csv", "wareHouseID,area,latitude,longitude");
+      try {
+         for (int id = 1; id <= this._warehouses; ++id)
+            out.write(id + "," + (5000 + random.nextInt(20000)) + "," + coordinate(random) + "," + coordinate(random) + "\n");
+      } finally {
+         out.close();
+      }//end try
+   }//end writeWarehouses
+
+   private void writeStores() throws IOException {
+      Random random = random(3);
+      this._storeManager = new int[this._stores + 1];
+      Writer out = open("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished");
+      try {
+         for (int id = 1; id <= this._stores; ++id) {
+            StringBuilder name = new StringBuilder();
+            for (int c = 0; c < 4; ++c)
+               name.append((char) ('a' + random.nextInt(26)));
+            this._storeManager[id] = this._managerIDs[random.nextInt(this._managerIDs.length)];
+            String established = (1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/" + (1900 + random.nextInt(121));
+            out.write(id + "," + name + "," + coordinate(random) + "," + coordinate(random) + ","
+                      + this._storeManager[id] + "," + established + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeStores
+
+   private void writeProducts() throws IOException {
+      Random random = random(4);
+      this._productNames = new String[this._products];
+      for (int p = 0; p < this._products; ++p)
+         this._productNames[p] = p < BASE_PRODUCTS.length ? BASE_PRODUCTS[p] : String.format("Product %06d", p + 1);
+
+      // every store sells a random subset of productsPerStore products
+      int[] all = new int[this._products];
+      for (int p = 0; p < all.length; ++p)
+         all[p] = p;
+      this._storeProducts = new int[this._stores + 1][];
+      Writer out = open("products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+      try {
+         for (int store = 1; store <= this._stores; ++store) {
+            for (int i = 0; i < this._productsPerStore; ++i) {
+               int j = i + random.nextInt(all.length - i);
+               int swap = all[i];
+               all[i] = all[j];
+               all[j] = swap;
+            }//end for
+            int[] sold = new int[this._productsPerStore];
+            System.arraycopy(all, 0, sold, 0, sold.length);
+            this._storeProducts[store] = sold;
+            for (int p : sold)
+               out.write(store + "," + this._productNames[p] + "," + (1 + random.nextInt(100)) + ","
+                         + (1 + random.nextInt(20)) + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeProducts
+
+   private void writeOrders() throws IOException {
+      Random random = random(5);
+      Writer out = open("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      try {
+         for (int number = 1; number <= this._orders; ++number) {
+            int store = 1 + skewed(random, this._stores);
+            int[] sold = this._storeProducts[store];
+            out.write(number + "," + (2 + skewed(random, this._users - 1)) + "," + store + ","
+                      + this._productNames[sold[skewed(random, sold.length)]] + "," + (1 + random.nextInt(50)) + ","
+                      + timestamp(random) + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeOrders
+
+   private void writeProductUpdates() throws IOException {
+      Random random = random(6);
+      Writer out = open("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+      try {
+         for (int number = 1; number <= this._updates; ++number) {
+            int store = 1 + random.nextInt(this._stores);
+            int[] sold = this._storeProducts[store];
+            out.write(number + "," + this._storeManager[store] + "," + store + ","
+                      + this._productNames[sold[random.nextInt(sold.length)]] + "," + timestamp(random) + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeProductUpdates
+
+   private void writeProductSupplyRequests() throws IOException {
+      Random random = random(7);
+      Writer out = open("productSupplyRequests.csv",
+                        "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      try {
+         for (int number = 1; number <= this._requests; ++number) {
+            int store = 1 + random.nextInt(this._stores);
+            int[] sold = this._storeProducts[store];
+            out.write(number + "," + this._storeManager[store] + "," + (1 + random.nextInt(this._warehouses)) + ","
+                      + store + "," + this._productNames[sold[random.nextInt(sold.length)]] + ","
+                      + (1 + random.nextInt(100)) + "\n");
+         }//end for
+      } finally {
+         out.close();
+      }//end try
+   }//end writeProductSupplyRequests
+
+   private Random random(int table) {
+      return new Random(this._seed * 31 + table);
+   }//end random
+
+   private Writer open(String name, String header) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(this._dir, name)), "UTF-8"),
+                                      1 << 16);
+      out.write(header + "\n");
+      return out;
+   }//end open
+
+   // a value in [0, n) where low values are much more likely
+   private static int skewed(Random random, int n) {
+      double u = random.nextDouble();
+      return (int) (n * u * u * u);
+   }//end skewed
+
+   // a coordinate in [0, 100) with 5 decimals, like the bundled data
+   private static String coordinate(Random random) {
+      int hundredThousandths = random.nextInt(10000000);
+      String fraction = Integer.toString(100000 + hundredThousandths % 100000).substring(1);
+      return hundredThousandths / 100000 + "." + fraction;
+   }//end coordinate
+
+   private static String timestamp(Random random) {
+      long second = FIRST_SECOND + (long) (random.nextDouble() * (LAST_SECOND - FIRST_SECOND));
+      LocalDateTime time = LocalDateTime.ofEpochSecond(second - second % 60, 0, ZoneOffset.UTC);
+      return time.toLocalDate() + " " + (time.getHour() < 10 ? "0" : "") + time.getHour() + ":"
+             + (time.getMinute() < 10 ? "0" : "") + time.getMinute() + ":00";
+   }//end timestamp
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1) {
+         System.err.println("Usage: java DataGenerator <output directory> [scale] [seed] [-products N] [-productsPerStore N]");
+         return;
+      }//end if
+      double scale = 1;
+      long seed = 42;
+      int products = 0, productsPerStore = 0;
+      int positional = 0;
+      for (int i = 1; i < args.length; ++i) {
+         if (args[i].equals("-products"))
+            products = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-productsPerStore"))
+            productsPerStore = Integer.parseInt(args[++i]);
+         else if (positional++ == 0)
+            scale = Double.parseDouble(args[i]);
+         else
+            seed = Long.parseLong(args[i]);
+      }//end for
+
+      DataGenerator generator = new DataGenerator(new File(args[0]), scale, seed, products, productsPerStore);
+      long start = System.nanoTime();
+      generator.generate();
+      System.out.printf("users %d, managers %d, stores %d, warehouses %d, products %d (%d per store), "
+                        + "orders %d, updates %d, requests %d in %.1f s%n",
+                        generator._users, generator._managers, generator._stores, generator._warehouses,
+                        generator._products, generator._productsPerStore, generator._orders, generator._updates,
+                        generator._requests, (System.nanoTime() - start) / 1e9);
+   }//end main
+}//end DataGenerator
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers one hot (storeID, productName) pair with Retail.submitOrder from
+ * many threads and checks that no stock update is lost: the final stock must
+ * equal the starting stock minus every accepted order, and never go below
+ * zero. The stock and Orders table are restored when the run finishes.
+ * Run it with -Dretail.ingest=true (and many threads) to measure and check
+ * the group-commit OrderIngestor instead of one transaction per order.
+ *
+ * Usage: OrderContentionBenchmark <dbname> <port> <user> [threads] [ordersPerThread]
+ *                                 [storeID] [productName] [customerID]
+ */
+public class OrderContentionBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderContentionBenchmark <dbname> <port> <user> " +
+                            "[threads] [ordersPerThread] [storeID] [productName] [customerID]");
+         return;
+      }//end if
+      final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+      final int ordersPerThread = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+      final int storeID = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+      final String productName = args.length > 6 ? args[6] : "Pepsi";
+      final int customerID = args.length > 7 ? Integer.parseInt(args[7]) : 2;
+
+      Class.forName("org.postgresql.Driver");
+      final Retail esql = new Retail(args[0], args[1], args[2], "", threads);
+      try {
+         String stockQuery = "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?";
+         List<List<String>> before = esql.executeQueryAndReturnResult(stockQuery, storeID, productName);
+         if (before.size() <= 0) {
+            System.err.println("Store " + storeID + " does not sell " + productName);
+            return;
+         }//end if
+         int originalStock = Integer.parseInt(before.get(0).get(0));
+
+         // enough stock for about half of the attempts, so both paths are exercised
+         final int startStock = threads * ordersPerThread / 2;
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                            startStock, storeID, productName);
+
+         final AtomicInteger accepted = new AtomicInteger();
+         final AtomicInteger rejected = new AtomicInteger();
+         final AtomicLong unitsSold = new AtomicLong();
+         final List<Integer> orderNumbers = new ArrayList<Integer>();
+         final CountDownLatch start = new CountDownLatch(1);
+         final CountDownLatch done = new CountDownLatch(threads);
+
+         for (int t = 0; t < threads; ++t) {
+            final int seed = t;
+            new Thread(new Runnable() {
+               public void run() {
+                  List<Integer> mine = new ArrayList<Integer>();
+                  try {
+                     start.await();
+                     for (int i = 0; i < ordersPerThread; ++i) {
+                        int units = 1 + (seed + i) % 3;
+                        int orderNumber = esql.submitOrder(customerID, storeID, productName, units);
+                        if (orderNumber < 0) {
+                           rejected.incrementAndGet();
+                        } else {
+                           accepted.incrementAndGet();
+                           unitsSold.addAndGet(units);
+                           mine.add(orderNumber);
+                        }//end if
+                     }//end for
+                  } catch (Exception e) {
+                     System.err.println(e.getMessage());
+                  } finally {
+                     synchronized (orderNumbers) {
+                        orderNumbers.addAll(mine);
+                     }
+                     done.countDown();
+                  }//end try
+               }
+            }).start();
+         }//end for
+
+         long begin = System.nanoTime();
+         start.countDown();
+         done.await();
+         double seconds = (System.nanoTime() - begin) / 1e9;
+
+         int finalStock = Integer.parseInt(
+            esql.executeQueryAndReturnResult(stockQuery, storeID, productName).get(0).get(0));
+         int attempts = threads * ordersPerThread;
+
+         System.out.println("threads            : " + threads);
+         System.out.println("attempts           : " + attempts);
+         System.out.println("accepted           : " + accepted.get());
+         System.out.println("rejected           : " + rejected.get());
+         System.out.printf ("elapsed            : %.3f s%n", seconds);
+         System.out.printf ("throughput         : %.1f orders/s%n", attempts / seconds);
+         System.out.println("start stock        : " + startStock);
+         System.out.println("units sold         : " + unitsSold.get());
+         System.out.println("final stock        : " + finalStock);
+         boolean ok = finalStock == startStock - unitsSold.get() && finalStock >= 0
+                      && accepted.get() + rejected.get() == attempts;
+         System.out.println("stock invariant    : " + (ok ? "OK" : "VIOLATED"));
+         System.out.println(esql.getPool().stats());
+         if (Boolean.getBoolean("retail.ingest"))
+            System.out.println(esql.getOrderIngestor().stats());
+
+         // put the table back the way it was
+         for (Integer orderNumber : orderNumbers)
+            esql.executeUpdate("DELETE FROM Orders WHERE orderNumber = ?", orderNumber);
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                            originalStock, storeID, productName);
+         if (!ok)
+            System.exit(1);
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end OrderContentionBenchmark
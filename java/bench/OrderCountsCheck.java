@@ -0,0 +1,72 @@
+/**
+ * Checks that StoreProductOrderCounts and StoreCustomerOrderCounts, which the
+ * orders_count trigger maintains, hold exactly the counts a GROUP BY over
+ * Orders gives, then times the top 5 queries against the ad-hoc GROUP BY
+ * queries they replaced for every store.
+ *
+ * Usage: OrderCountsCheck <dbname> <port> <user> [iterations]
+ * Exits with status 1 if any count differs.
+ */
+public class OrderCountsCheck {
+
+   private static final String PRODUCT_MISMATCHES =
+      "SELECT count(*) FROM (SELECT storeID, productName, COUNT(*) AS orderCount FROM Orders " +
+                            "GROUP BY storeID, productName) A " +
+      "FULL JOIN StoreProductOrderCounts C ON C.storeID = A.storeID AND C.productName = A.productName " +
+      "WHERE A.orderCount IS DISTINCT FROM C.orderCount";
+   private static final String CUSTOMER_MISMATCHES =
+      "SELECT count(*) FROM (SELECT storeID, customerID, COUNT(*) AS orderCount FROM Orders " +
+                            "GROUP BY storeID, customerID) A " +
+      "FULL JOIN StoreCustomerOrderCounts C ON C.storeID = A.storeID AND C.customerID = A.customerID " +
+      "WHERE A.orderCount IS DISTINCT FROM C.orderCount";
+
+   private static final String ADHOC_PRODUCTS =
+      "SELECT O.productname, COUNT(O.unitsOrdered) AS Number_of_Times_Ordered FROM orders O " +
+      "WHERE O.storeID = ? GROUP BY O.productname ORDER BY Number_of_Times_Ordered DESC LIMIT 5";
+   private static final String ADHOC_CUSTOMERS =
+      "SELECT * FROM users U INNER JOIN (SELECT O.customerID, COUNT(O.customerID) as Number_of_Orders_Placed " +
+      "FROM orders O WHERE O.storeID = ? GROUP BY O.customerID ORDER BY Number_of_Orders_Placed DESC) AS x " +
+      "ON U.userID = x.CustomerID ORDER BY Number_of_Orders_Placed DESC LIMIT 5";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderCountsCheck <dbname> <port> <user> [iterations]");
+         return;
+      }//end if
+      int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      long mismatches;
+      try {
+         long products = esql.executeQueryForResult(PRODUCT_MISMATCHES).getLong(0, 0);
+         long customers = esql.executeQueryForResult(CUSTOMER_MISMATCHES).getLong(0, 0);
+         System.out.println("product counts differing from Orders:  " + products);
+         System.out.println("customer counts differing from Orders: " + customers);
+         mismatches = products + customers;
+
+         QueryResult stores = esql.executeQueryForResult("SELECT storeID FROM Store ORDER BY storeID");
+         int[] storeIDs = stores.getIntColumn(0);
+         System.out.printf("%-30s %12s%n", "query", "us/store");
+         time(esql, "top products, GROUP BY", ADHOC_PRODUCTS, storeIDs, stores.getRowCount(), iterations);
+         time(esql, "top products, counts", Retail.TOP_PRODUCTS, storeIDs, stores.getRowCount(), iterations);
+         time(esql, "top customers, GROUP BY", ADHOC_CUSTOMERS, storeIDs, stores.getRowCount(), iterations);
+         time(esql, "top customers, counts", Retail.TOP_CUSTOMERS, storeIDs, stores.getRowCount(), iterations);
+      } finally {
+         esql.cleanup();
+      }//end try
+      System.out.println(mismatches == 0 ? "OK: order counts match Orders" : "FAIL: order counts differ from Orders");
+      if (mismatches != 0)
+         System.exit(1);
+   }//end main
+
+   private static void time(Retail esql, String name, String query, int[] storeIDs, int stores, int iterations)
+         throws Exception {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i)
+         for (int s = 0; s < stores; ++s)
+            esql.executeQuery(query, storeIDs[s]);
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%-30s %12.1f%n", name, elapsed / 1e3 / iterations / Math.max(1, stores));
+   }//end time
+}//end OrderCountsCheck
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks that one bad order does not fail the orders it was batched with:
+ * queues orders of one product for an existing customer around an order of
+ * a customerID that does not exist, all in one batch, and expects only that
+ * order to fail. The orders placed are deleted and their units given back
+ * afterwards. Also checks that an order queued after close() fails instead
+ * of hanging.
+ *
+ * Usage: OrderIngestorCheck <dbname> <port> <user> [orders]
+ * Exits with status 1 if the check fails.
+ */
+public class OrderIngestorCheck {
+
+   private static final String STOCKED_PRODUCT =
+      "SELECT storeID, productName FROM Product WHERE numberOfUnits >= ? ORDER BY storeID, productName LIMIT 1";
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderIngestorCheck <dbname> <port> <user> [orders]");
+         return;
+      }//end if
+      int orders = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 2);
+      boolean ok = true;
+      try {
+         QueryResult product = esql.executeQueryForResult(STOCKED_PRODUCT, orders);
+         if (product.isEmpty())
+            throw new IllegalStateException("No product has " + orders + " units in stock");
+         int storeID = product.getInt(0, 0);
+         String productName = product.getString(0, 1).trim();
+         int customerID = esql.executeQueryForInt("SELECT MIN(userID) FROM Users", -1);
+         int unknownCustomerID = esql.executeQueryForInt("SELECT MAX(userID) FROM Users", 0) + 1000;
+         int bad = orders / 2;
+
+         // a batch big enough for every order, filled before it is placed
+         OrderIngestor ingestor = new OrderIngestor(esql, orders, 200, orders);
+         List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+         for (int i = 0; i < orders; ++i)
+            results.add(ingestor.submit(i == bad ? unknownCustomerID : customerID, storeID, productName, 1));
+
+         List<Integer> placed = new ArrayList<Integer>();
+         for (int i = 0; i < orders; ++i) {
+            try {
+               int orderNumber = results.get(i).get();
+               if (i == bad || orderNumber < 0) {
+                  System.out.println("FAIL: order " + i + " returned " + orderNumber);
+                  ok = false;
+               }//end if
+               if (orderNumber >= 0)
+                  placed.add(orderNumber);
+            } catch (ExecutionException e) {
+               if (i != bad) {
+                  System.out.println("FAIL: order " + i + " failed with its batch: " + e.getCause().getMessage());
+                  ok = false;
+               }//end if
+            }//end try
+         }//end for
+         System.out.println(placed.size() + " of " + orders + " orders placed, " + ingestor.stats());
+
+         ingestor.close();
+         try {
+            ingestor.submit(customerID, storeID, productName, 1).get();
+            System.out.println("FAIL: an order queued after close() was placed");
+            ok = false;
+         } catch (ExecutionException e) {
+            // expected
+         }//end try
+
+         for (int orderNumber : placed)
+            esql.executeUpdate("DELETE FROM Orders WHERE orderNumber = ?", orderNumber);
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?",
+                            placed.size(), storeID, productName);
+      } finally {
+         esql.cleanup();
+      }//end try
+      System.out.println(ok ? "OK: only the bad order failed" : "FAIL: valid orders failed with a bad one");
+      if (!ok)
+         System.exit(1);
+   }//end main
+}//end OrderIngestorCheck
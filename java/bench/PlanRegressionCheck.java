@@ -0,0 +1,172 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that every query Retail issues on a hot path is planned through
+ * an index (sql/src/create_indexes.sql): each one is EXPLAINed with values
+ * taken from the database, and the check fails if a plan contains a
+ * sequential scan, or a sort where the index should already give the rows
+ * in order. Whole-table loads (the catalog, the store index) and primary
+ * key lookups of the profile menu are not listed.
+ *
+ * The planner only prefers indexes over scans once tables are big, so run
+ * it against scaled data, e.g. java/scripts/plan_check.sh, which generates
+ * and loads a data set into a scratch database first. The tables are
+ * analyzed before planning.
+ *
+ * Usage: PlanRegressionCheck <dbname> <port> <user>
+ * Exits with status 1 if any plan regressed.
+ */
+public class PlanRegressionCheck {
+
+   // fewer orders than this and the plans say little about production
+   private static final int MIN_ORDERS = 100000;
+
+   // a scan of a whole table, or a sort node (not the "Sort Key:" line under it).
+   // The default partition of Orders is meant to stay empty and is scanned
+   // whenever a time range is not pruned to the monthly partitions.
+   private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (?!orders_default\\b)(\\w+)");
+   private static final Pattern SORT = Pattern.compile("(^|->\\s+)(Incremental )?Sort\\s+\\(");
+
+   private static final class Check {
+      final String name;
+      final String sql;
+      final Object[] params;
+      // the query sorts a handful of rows the index already narrowed down
+      final boolean allowSort;
+
+      Check(String name, String sql, boolean allowSort, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+         this.allowSort = allowSort;
+      }
+   }//end Check
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java PlanRegressionCheck <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      int failures = 0;
+      try {
+         esql.executeUpdate("ANALYZE");
+         int orders = esql.executeQueryForInt("SELECT count(*) FROM Orders", 0);
+         if (orders < MIN_ORDERS)
+            System.out.println("WARNING: only " + orders + " orders, load scaled data (DataGenerator) for meaningful plans");
+
+         // sample values: the busiest customer and store, one of its products,
+         // and a manager of that store
+         int customerID = esql.executeQueryForInt(
+            "SELECT customerID FROM Orders GROUP BY customerID ORDER BY count(*) DESC LIMIT 1", 1);
+         int storeID = esql.executeQueryForInt(
+            "SELECT storeID FROM Orders GROUP BY storeID ORDER BY count(*) DESC LIMIT 1", 1);
+         String product = esql.executeQueryForString(
+            "SELECT productName FROM Product WHERE storeID = ? ORDER BY productName LIMIT 1", storeID);
+         String other = esql.executeQueryForString(
+            "SELECT productName FROM Product WHERE storeID = ? ORDER BY productName DESC LIMIT 1", storeID);
+         int managerID = esql.executeQueryForInt("SELECT managerID FROM Store WHERE storeID = ?", 1, storeID);
+         String name = esql.executeQueryForString("SELECT name FROM Users WHERE userID = ?", customerID);
+         if (product == null || name == null)
+            throw new IllegalStateException("The database holds no orders or products, load data first");
+
+         Object[] radius = Retail.radiusParams(customerID);
+         Object[] radiusStore = new Object[radius.length + 1];
+         System.arraycopy(radius, 0, radiusStore, 0, radius.length);
+         radiusStore[radius.length] = storeID;
+
+         List<Check> checks = new ArrayList<Check>();
+         checks.add(new Check("logIn", Retail.LOG_IN, false, name, "xyz"));
+         checks.add(new Check("sessionUser", Session.USER_QUERY, false, customerID));
+         checks.add(new Check("sessionStores", Session.MANAGED_STORES_QUERY, false, managerID));
+         checks.add(new Check("storesNear", Retail.STORES_WITHIN_RADIUS + " ORDER BY S.storeID", true, radius));
+         checks.add(new Check("storeWithinRadius", Retail.STORES_WITHIN_RADIUS + " AND S.storeID = ?", false, radiusStore));
+         Object[] radiusProduct = new Object[radius.length + 2];
+         System.arraycopy(radius, 0, radiusProduct, 0, radius.length);
+         radiusProduct[radius.length] = product;
+         radiusProduct[radius.length + 1] = 1;
+         checks.add(new Check("storesWithProduct", Retail.STORES_WITH_PRODUCT, true, radiusProduct));
+         checks.add(new Check("productUnits", Retail.PRODUCT_UNITS, false, storeID, product));
+         checks.add(new Check("catalogRefresh", ProductCatalog.REFRESH_QUERY, false, storeID, product));
+         checks.add(new Check("placeOrder", Retail.PLACE_ORDER, false, 1, storeID, product, 1, customerID, 1));
+         checks.add(new Check("cartLock", Retail.cartLockQuery(2), true, storeID, product, storeID, other));
+         checks.add(new Check("cartUpdate", Retail.cartUpdateQuery(2), false, storeID, product, 1, storeID, other, 1));
+         checks.add(new Check("recentOrders", Retail.RECENT_ORDERS, true, customerID, customerID));
+         checks.add(new Check("orderPage", Retail.ORDER_PAGE, false, customerID, 20));
+         checks.add(new Check("orderPageAfter", Retail.ORDER_PAGE_AFTER, false, customerID, "2100-01-01 00:00:00",
+                              Integer.MAX_VALUE, 20));
+         checks.add(new Check("updatePageAfter", Retail.UPDATE_PAGE_AFTER, false, storeID, Integer.MAX_VALUE, 20));
+         checks.add(new Check("managerUpdatePageAfter", Retail.MANAGER_UPDATE_PAGE_AFTER, false, managerID, storeID,
+                              Integer.MAX_VALUE, 20));
+         checks.add(new Check("recentUpdates", Retail.RECENT_UPDATES, false, storeID));
+         checks.add(new Check("recentManagerUpdates", Retail.RECENT_MANAGER_UPDATES, false, managerID, storeID));
+         checks.add(new Check("popularProducts", Retail.TOP_PRODUCTS, false, storeID));
+         checks.add(new Check("popularCustomers", Retail.TOP_CUSTOMERS, false, storeID));
+         checks.add(new Check("dailySales", Retail.DAILY_SALES, true, storeID, 90));
+         checks.add(new Check("productDailySales", Retail.PRODUCT_DAILY_SALES, false, storeID, product, 90));
+         checks.add(new Check("hourlySales", Retail.HOURLY_SALES, true, storeID, 7));
+         checks.add(new Check("productHourlySales", Retail.PRODUCT_HOURLY_SALES, false, storeID, product, 7));
+         checks.add(new Check("managerUpdateProduct", Retail.MANAGER_UPDATE_PRODUCT, false, 1, 1.0, managerID, storeID, product));
+         checks.add(new Check("managerAddUnits", Retail.MANAGER_ADD_UNITS, false, 1, managerID, storeID, product));
+
+         PooledConnection conn = esql.getPool().borrow();
+         try {
+            for (Check check : checks) {
+               String plan = explain(conn, check);
+               List<String> problems = problems(plan, check.allowSort);
+               if (problems.isEmpty()) {
+                  System.out.printf("OK    %s%n", check.name);
+               } else {
+                  ++failures;
+                  System.out.printf("FAIL  %s: %s%n%s%n", check.name, problems, plan);
+               }//end if
+            }//end for
+         } finally {
+            esql.getPool().release(conn);
+         }//end try
+         System.out.println(failures == 0 ? "All " + checks.size() + " plans use indexes"
+                                          : failures + " of " + checks.size() + " plans regressed");
+      } finally {
+         esql.cleanup();
+      }//end try
+      if (failures > 0)
+         System.exit(1);
+   }//end main
+
+   // plain EXPLAIN, so the write statements are planned but never run
+   private static String explain(PooledConnection conn, Check check) throws SQLException {
+      PreparedStatement stmt = conn.getConnection().prepareStatement("EXPLAIN " + check.sql);
+      try {
+         for (int i = 0; i < check.params.length; ++i)
+            stmt.setObject(i + 1, check.params[i]);
+         StringBuilder plan = new StringBuilder();
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            plan.append(rs.getString(1)).append('\n');
+         rs.close();
+         return plan.toString();
+      } finally {
+         stmt.close();
+      }//end try
+   }//end explain
+
+   private static List<String> problems(String plan, boolean allowSort) {
+      List<String> problems = new ArrayList<String>();
+      for (String line : plan.split("\n")) {
+         Matcher scan = SEQ_SCAN.matcher(line);
+         if (scan.find())
+            problems.add("sequential scan of " + scan.group(1));
+         if (!allowSort && SORT.matcher(line.trim()).find())
+            problems.add("sort");
+      }//end for
+      return problems;
+   }//end problems
+}//end PlanRegressionCheck
@@ -0,0 +1,74 @@
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints a whole table through executeQueryAndPrintResult to a stream that
+ * discards it, once per fetch size, and reports the time taken and the
+ * most heap in use while printing. A driver that fetches through a cursor
+ * keeps the peak near one fetch window; pg73jdbc3.jar ignores the fetch
+ * size, so its peak grows with the table whatever the fetch size.
+ *
+ * Usage: PrintFetchBenchmark <dbname> <port> <user> [table] [fetch sizes...]
+ */
+public class PrintFetchBenchmark {
+
+   // discards what is printed
+   private static final OutputStream NOWHERE = new OutputStream() {
+      public void write(int b) { }
+      public void write(byte[] b, int off, int len) { }
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java PrintFetchBenchmark <dbname> <port> <user> [table] [fetch sizes...]");
+         return;
+      }//end if
+      String table = args.length > 3 ? args[3] : "Orders";
+      if (!table.matches("\\w+"))
+         throw new IllegalArgumentException("Not a table name: " + table);
+      int[] fetchSizes = { 100, 1000, 100000 };
+      if (args.length > 4) {
+         fetchSizes = new int[args.length - 4];
+         for (int i = 4; i < args.length; ++i)
+            fetchSizes[i - 4] = Integer.parseInt(args[i]);
+      }//end if
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      try {
+         System.out.printf("%-12s %10s %12s %14s%n", "fetch size", "rows", "ms", "peak heap MB");
+         for (int fetchSize : fetchSizes) {
+            esql.setPrintFormat(ResultPrinter.Format.TSV, fetchSize);
+            final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            final long base = memory.getHeapMemoryUsage().getUsed();
+            final AtomicLong peak = new AtomicLong();
+            final AtomicBoolean done = new AtomicBoolean();
+            Thread sampler = new Thread(new Runnable() {
+               public void run() {
+                  while (!done.get()) {
+                     peak.set(Math.max(peak.get(), memory.getHeapMemoryUsage().getUsed() - base));
+                     try {
+                        Thread.sleep(2);
+                     } catch (InterruptedException e) {
+                        return;
+                     }//end try
+                  }//end while
+               }
+            });
+            sampler.start();
+            long start = System.nanoTime();
+            int rows = esql.executeQueryAndPrintResult(NOWHERE, "SELECT * FROM " + table);
+            long elapsed = System.nanoTime() - start;
+            done.set(true);
+            sampler.join();
+            System.out.printf("%-12d %10d %12.1f %14.1f%n", fetchSize, rows, elapsed / 1e6, peak.get() / 1048576.0);
+         }//end for
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end PrintFetchBenchmark
@@ -0,0 +1,88 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Compares the bytes allocated and time taken per call by
+ * executeQueryAndReturnResult (List<List<String>> plus Integer.parseInt, as
+ * the menu code used to do) with the typed executeQueryForInt and
+ * executeQueryForResult paths, for a single stock lookup and for a full
+ * Product scan. Allocation is read from the HotSpot per-thread allocation
+ * counter, so the numbers include what the JDBC driver allocates.
+ *
+ * Usage: ResultAllocationBenchmark <dbname> <port> <user> [iterations]
+ */
+public class ResultAllocationBenchmark {
+
+   private static final String STOCK =
+      "SELECT P.numberOfUnits FROM Product P WHERE P.storeID = ? AND P.productName = ?";
+   private static final String PRODUCTS =
+      "SELECT storeID, numberOfUnits, pricePerUnit FROM Product";
+
+   private static com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+   private interface Call {
+      long run() throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java ResultAllocationBenchmark <dbname> <port> <user> [iterations]");
+         return;
+      }//end if
+      final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+      Class.forName("org.postgresql.Driver");
+      final Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      try {
+         System.out.printf("%-40s %14s %12s%n", "call", "bytes/op", "us/op");
+         measure("stock, List<List<String>> + parseInt", iterations, new Call() {
+            public long run() throws Exception {
+               List<List<String>> rows = esql.executeQueryAndReturnResult(STOCK, 1, "Pepsi");
+               return Integer.parseInt(rows.get(0).get(0));
+            }
+         });
+         measure("stock, executeQueryForInt", iterations, new Call() {
+            public long run() throws Exception {
+               return esql.executeQueryForInt(STOCK, -1, 1, "Pepsi");
+            }
+         });
+         measure("products, List<List<String>> + parse", iterations / 10, new Call() {
+            public long run() throws Exception {
+               long sum = 0;
+               for (List<String> row : esql.executeQueryAndReturnResult(PRODUCTS))
+                  sum += Integer.parseInt(row.get(1)) + (long) Double.parseDouble(row.get(2));
+               return sum;
+            }
+         });
+         measure("products, executeQueryForResult", iterations / 10, new Call() {
+            public long run() throws Exception {
+               QueryResult result = esql.executeQueryForResult(PRODUCTS);
+               int[] units = result.getIntColumn(1);
+               double[] prices = result.getDoubleColumn(2);
+               long sum = 0;
+               for (int i = 0; i < result.getRowCount(); ++i)
+                  sum += units[i] + (long) prices[i];
+               return sum;
+            }
+         });
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static void measure(String name, int iterations, Call call) throws Exception {
+      long sink = 0;
+      for (int i = 0; i < iterations; ++i) // warm up
+         sink += call.run();
+      long thread = Thread.currentThread().getId();
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i)
+         sink += call.run();
+      long elapsed = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+      System.out.printf("%-40s %14d %12.1f%s%n", name, bytes / iterations, elapsed / 1e3 / iterations,
+                        sink == 42 ? " " : "");
+   }//end measure
+}//end ResultAllocationBenchmark
@@ -0,0 +1,214 @@
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures every menu operation of Retail through the methods the menus
+ * call, without stdin: for each operation a number of threads run it in a
+ * loop, first for a warm-up period and then for a measured period, and the
+ * throughput and latency percentiles of the measured calls are reported.
+ *
+ * The database is expected to hold the data/ set (java/scripts/load_data.sh).
+ * A customer, a manager with a store and a product sold there are picked
+ * from it. Orders, product updates and supply requests written by the run
+ * are deleted and the product's stock and price are restored at the end.
+ *
+ * Usage: RetailBenchmark <dbname> <port> <user> [threads] [seconds] [operation...]
+ */
+public class RetailBenchmark {
+
+   private interface Operation {
+      void run() throws Exception;
+   }
+
+   // discards everything the operations print
+   private static final OutputStream SINK = new OutputStream() {
+      public void write(int b) { }
+      public void write(byte[] b, int off, int len) { }
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java RetailBenchmark <dbname> <port> <user> [threads] [seconds] [operation...]");
+         return;
+      }//end if
+      final int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+      final double seconds = args.length > 4 ? Double.parseDouble(args[4]) : 5;
+      List<String> selected = args.length > 5 ? Arrays.asList(args).subList(5, args.length) : null;
+
+      Class.forName("org.postgresql.Driver");
+      final Retail esql = new Retail(args[0], args[1], args[2], "", threads + 1);
+      try {
+         // a customer with a store in range, and a manager with a store
+         QueryResult customer = esql.executeQueryForResult(
+            "SELECT userID, name FROM Users WHERE type = 'customer' ORDER BY userID");
+         Session customerSession = null;
+         int[] near = new int[0];
+         for (int row = 0; row < customer.getRowCount() && near.length == 0; ++row) {
+            customerSession = Session.open(esql, customer.getInt(row, 0), customer.getString(row, 1).trim());
+            near = esql.getStoreIndex().withinRadius(customerSession.getLatitude(), customerSession.getLongitude(),
+                                                     Retail.STORE_RADIUS);
+         }//end for
+         QueryResult manager = esql.executeQueryForResult(
+            "SELECT U.userID, U.name, S.storeID FROM Users U, Store S WHERE S.managerID = U.userID " +
+            "AND U.type = 'manager' ORDER BY S.storeID LIMIT 1");
+         if (near.length == 0 || manager.isEmpty()) {
+            System.err.println("The database needs a customer with a store in range and a manager with a store");
+            return;
+         }//end if
+         final Session shopper = customerSession;
+         final int shopStore = esql.getStoreIndex().getStoreID(near[0]);
+         final Session boss = Session.open(esql, manager.getInt(0, 0), manager.getString(0, 1).trim());
+         final int bossStore = manager.getInt(0, 2);
+         ProductCatalog catalog = esql.getCatalog();
+         int[] shopProducts = catalog.listStore(shopStore);
+         int[] bossProducts = catalog.listStore(bossStore);
+         if (shopProducts.length == 0 || bossProducts.length == 0) {
+            System.err.println("The chosen stores sell no products");
+            return;
+         }//end if
+         final String shopProduct = catalog.getName(shopProducts[0]);
+         final String bossProduct = catalog.getName(bossProducts[0]);
+         final int bossUnits = catalog.getUnits(bossStore, bossProducts[0]);
+         final double bossPrice = catalog.getPrice(bossStore, bossProducts[0]);
+         final int warehouseID = esql.executeQueryForInt("SELECT min(WarehouseID) FROM Warehouse", 1);
+
+         // remember what the write operations change
+         int shopUnits = catalog.getUnits(shopStore, shopProducts[0]);
+         int lastOrder = esql.executeQueryForInt("SELECT COALESCE(max(orderNumber), 0) FROM Orders", 0);
+         int lastUpdate = esql.executeQueryForInt("SELECT COALESCE(max(updateNumber), 0) FROM ProductUpdates", 0);
+         int lastRequest = esql.executeQueryForInt("SELECT COALESCE(max(requestNumber), 0) FROM ProductSupplyRequests", 0);
+         esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                            Integer.MAX_VALUE / 2, shopStore, shopProduct);
+         esql.refreshProduct(shopStore, shopProduct);
+
+         Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+         operations.put("viewStores", new Operation() {
+            public void run() throws Exception { esql.printStoresNear(shopper, SINK); }
+         });
+         operations.put("viewProducts", new Operation() {
+            public void run() throws Exception { esql.printProducts(shopStore, SINK); }
+         });
+         operations.put("placeOrder", new Operation() {
+            public void run() throws Exception {
+               if (esql.submitOrder(shopper.getUserID(), shopStore, shopProduct, 1) < 0)
+                  throw new IllegalStateException("order rejected");
+            }
+         });
+         operations.put("viewRecentOrders", new Operation() {
+            public void run() throws Exception { esql.printRecentOrders(shopper, SINK); }
+         });
+         operations.put("viewPopularProducts", new Operation() {
+            public void run() throws Exception { esql.printPopularProducts(bossStore, SINK); }
+         });
+         operations.put("viewPopularCustomers", new Operation() {
+            public void run() throws Exception { esql.printPopularCustomers(bossStore, SINK); }
+         });
+         operations.put("updateProduct", new Operation() {
+            public void run() throws Exception {
+               esql.updateProduct(boss, bossStore, bossProduct, bossUnits, bossPrice);
+            }
+         });
+         operations.put("placeProductSupplyRequests", new Operation() {
+            public void run() throws Exception {
+               esql.requestSupply(boss, bossStore, bossProduct, 1, warehouseID);
+            }
+         });
+
+         System.out.printf("%d threads, %.1f s per operation%n", threads, seconds);
+         System.out.printf("%-28s %10s %10s %10s %10s %10s %10s%n",
+                           "operation", "calls", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+         try {
+            for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+               if (selected != null && !selected.contains(entry.getKey()))
+                  continue;
+               run(entry.getKey(), entry.getValue(), threads, seconds);
+            }//end for
+         } finally {
+            esql.executeUpdate("DELETE FROM Orders WHERE orderNumber > ?", lastOrder);
+            esql.executeUpdate("DELETE FROM ProductUpdates WHERE updateNumber > ?", lastUpdate);
+            esql.executeUpdate("DELETE FROM ProductSupplyRequests WHERE requestNumber > ?", lastRequest);
+            esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                               shopUnits, shopStore, shopProduct);
+            esql.executeUpdate("UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+                               bossUnits, bossPrice, bossStore, bossProduct);
+         }//end try
+         System.out.println(esql.getPool().stats());
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static void run(String name, final Operation operation, int threads, double seconds) throws Exception {
+      // warm up for half the measured time, then measure
+      drive(operation, threads, (long) (seconds * 0.5e9));
+      long[][] perThread = drive(operation, threads, (long) (seconds * 1e9));
+      int calls = 0;
+      for (long[] latencies : perThread)
+         calls += latencies.length;
+      long[] all = new long[calls];
+      int pos = 0;
+      for (long[] latencies : perThread) {
+         System.arraycopy(latencies, 0, all, pos, latencies.length);
+         pos += latencies.length;
+      }//end for
+      Arrays.sort(all);
+      System.out.printf("%-28s %10d %10.1f %10.3f %10.3f %10.3f %10.3f%n", name, calls, calls / seconds,
+                        percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99),
+                        calls == 0 ? 0 : all[calls - 1] / 1e6);
+   }//end run
+
+   // runs the operation on every thread until the duration is over and
+   // returns the latency of each call in nanoseconds, per thread
+   private static long[][] drive(final Operation operation, int threads, final long durationNanos) throws Exception {
+      final long[][] latencies = new long[threads][];
+      final List<Exception> errors = new ArrayList<Exception>();
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; ++t) {
+         final int thread = t;
+         new Thread(new Runnable() {
+            public void run() {
+               long[] mine = new long[1024];
+               int count = 0;
+               try {
+                  start.await();
+                  long end = System.nanoTime() + durationNanos;
+                  long now = System.nanoTime();
+                  while (now < end) {
+                     operation.run();
+                     long after = System.nanoTime();
+                     if (count == mine.length)
+                        mine = Arrays.copyOf(mine, count * 2);
+                     mine[count++] = after - now;
+                     now = after;
+                  }//end while
+               } catch (Exception e) {
+                  synchronized (errors) {
+                     errors.add(e);
+                  }
+               } finally {
+                  latencies[thread] = Arrays.copyOf(mine, count);
+                  done.countDown();
+               }//end try
+            }
+         }).start();
+      }//end for
+      start.countDown();
+      done.await();
+      if (!errors.isEmpty())
+         throw errors.get(0);
+      return latencies;
+   }//end drive
+
+   private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0)
+         return 0;
+      int index = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, index)] / 1e6;
+   }//end percentile
+}//end RetailBenchmark
@@ -0,0 +1,75 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Compares a stock lookup through the connection's statement cache with one
+ * that prepares and closes a new statement per call, which the code did
+ * before the cache. With pg73jdbc3.jar both send the same text query and
+ * the server parses and plans both, so the difference is the client-side
+ * cost of creating a statement; a driver that prepares on the server also
+ * saves the parse and plan in the cached case.
+ *
+ * Usage: StatementCacheBenchmark <dbname> <port> <user> [iterations]
+ */
+public class StatementCacheBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java StatementCacheBenchmark <dbname> <port> <user> [iterations]");
+         return;
+      }//end if
+      int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      try {
+         QueryResult product = esql.executeQueryForResult("SELECT storeID, productName FROM Product LIMIT 1");
+         int storeID = product.getInt(0, 0);
+         String productName = product.getString(0, 1);
+         System.out.println("driver: " + driverVersion(esql));
+         System.out.printf("%-30s %12s%n", "statement", "us/op");
+         for (int round = 0; round < 2; ++round) {
+            // the first round warms up the JIT and the server's caches
+            long cached = time(esql, true, storeID, productName, iterations);
+            long fresh = time(esql, false, storeID, productName, iterations);
+            if (round == 1) {
+               System.out.printf("%-30s %12.1f%n", "cached PreparedStatement", cached / 1e3 / iterations);
+               System.out.printf("%-30s %12.1f%n", "new PreparedStatement", fresh / 1e3 / iterations);
+            }//end if
+         }//end for
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   private static long time(Retail esql, boolean cached, int storeID, String productName, int iterations)
+         throws Exception {
+      PooledConnection conn = esql.getPool().borrow();
+      try {
+         long start = System.nanoTime();
+         for (int i = 0; i < iterations; ++i) {
+            PreparedStatement stmt = cached ? conn.prepare(Retail.PRODUCT_UNITS)
+                                            : conn.getConnection().prepareStatement(Retail.PRODUCT_UNITS);
+            stmt.setInt(1, storeID);
+            stmt.setString(2, productName);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            rs.close();
+            if (!cached)
+               stmt.close();
+         }//end for
+         return System.nanoTime() - start;
+      } finally {
+         esql.getPool().release(conn);
+      }//end try
+   }//end time
+
+   private static String driverVersion(Retail esql) throws Exception {
+      PooledConnection conn = esql.getPool().borrow();
+      try {
+         return conn.getConnection().getMetaData().getDriverVersion();
+      } finally {
+         esql.getPool().release(conn);
+      }//end try
+   }//end driverVersion
+}//end StatementCacheBenchmark
@@ -0,0 +1,108 @@
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the in-memory StoreIndex with the calculate_distance SQL scan for
+ * "stores within 30 miles" at 20, 10k and 1M stores. Stores are generated
+ * uniformly over the same [0, 100) coordinate space as data/stores.csv; the
+ * SQL side loads the same stores into a temporary table on one connection,
+ * so the real Store table is never touched.
+ *
+ * Usage: StoreIndexBenchmark <dbname> <port> <user> [queries] [sizes...]
+ */
+public class StoreIndexBenchmark {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java StoreIndexBenchmark <dbname> <port> <user> [queries] [sizes...]");
+         return;
+      }//end if
+      int queries = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+      int[] sizes = { 20, 10000, 1000000 };
+      if (args.length > 4) {
+         sizes = new int[args.length - 4];
+         for (int i = 4; i < args.length; ++i)
+            sizes[i - 4] = Integer.parseInt(args[i]);
+      }//end if
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      PooledConnection conn = esql.getPool().borrow();
+      try {
+         System.out.printf("%10s %14s %14s %10s%n", "stores", "index us/q", "sql us/q", "avg hits");
+         for (int n : sizes) {
+            Random random = new Random(n);
+            int[] ids = new int[n];
+            String[] names = new String[n];
+            double[] lats = new double[n];
+            double[] longs = new double[n];
+            for (int i = 0; i < n; ++i) {
+               ids[i] = i + 1;
+               names[i] = "store" + (i + 1);
+               lats[i] = Math.round(random.nextDouble() * 99e6) / 1e6;
+               longs[i] = Math.round(random.nextDouble() * 99e6) / 1e6;
+            }//end for
+
+            double[] qLat = new double[queries];
+            double[] qLong = new double[queries];
+            for (int q = 0; q < queries; ++q) {
+               qLat[q] = random.nextDouble() * 99;
+               qLong[q] = random.nextDouble() * 99;
+            }//end for
+
+            // in-memory index, including the build cost in the report
+            long buildStart = System.nanoTime();
+            StoreIndex index = new StoreIndex(ids, names, lats, longs, Retail.STORE_RADIUS / 2);
+            double buildMillis = (System.nanoTime() - buildStart) / 1e6;
+            long hits = 0;
+            for (int q = 0; q < queries; ++q) // warm up
+               hits += index.withinRadius(qLat[q], qLong[q], Retail.STORE_RADIUS).length;
+            hits = 0;
+            long start = System.nanoTime();
+            for (int q = 0; q < queries; ++q)
+               hits += index.withinRadius(qLat[q], qLong[q], Retail.STORE_RADIUS).length;
+            double indexMicros = (System.nanoTime() - start) / 1e3 / queries;
+
+            // the SQL path over the same stores
+            esql.executeUpdate(conn, "DROP TABLE IF EXISTS bench_store");
+            esql.executeUpdate(conn, "CREATE TEMP TABLE bench_store (storeID integer PRIMARY KEY, name char(30) NOT NULL, " +
+                                     "latitude decimal(8,6) NOT NULL, longitude decimal(9,6) NOT NULL)");
+            conn.getConnection().setAutoCommit(false);
+            PreparedStatement insert = conn.prepare("INSERT INTO bench_store VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < n; ++i) {
+               insert.setInt(1, ids[i]);
+               insert.setString(2, names[i]);
+               insert.setDouble(3, lats[i]);
+               insert.setDouble(4, longs[i]);
+               insert.addBatch();
+               if (i % 10000 == 9999)
+                  insert.executeBatch();
+            }//end for
+            insert.executeBatch();
+            conn.getConnection().commit();
+            conn.getConnection().setAutoCommit(true);
+            esql.executeUpdate(conn, "ANALYZE bench_store");
+
+            String sql = "SELECT S.storeID, S.name FROM bench_store S " +
+                         "WHERE calculate_distance(CAST(? AS decimal), CAST(? AS decimal), S.latitude, S.longitude) < 30";
+            int sqlQueries = Math.max(1, Math.min(queries, 20000000 / Math.max(n, 1)));
+            long sqlHits = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < sqlQueries; ++q) {
+               List<List<String>> rows = esql.executeQueryAndReturnResult(conn, sql, qLat[q], qLong[q]);
+               sqlHits += rows.size();
+            }//end for
+            double sqlMicros = (System.nanoTime() - start) / 1e3 / sqlQueries;
+            esql.executeUpdate(conn, "DROP TABLE bench_store");
+
+            System.out.printf("%10d %14.1f %14.1f %10.1f   (index build %.1f ms, sql hits %.1f over %d queries)%n",
+                              n, indexMicros, sqlMicros, (double) hits / queries, buildMillis,
+                              (double) sqlHits / sqlQueries, sqlQueries);
+         }//end for
+      } finally {
+         esql.getPool().release(conn);
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end StoreIndexBenchmark
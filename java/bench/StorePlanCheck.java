@@ -0,0 +1,61 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Checks that the "stores within 30 miles" query is answered through
+ * store_lat_long_idx rather than a scan of Store. Synthetic stores are added
+ * to Store inside a transaction so the planner sees a realistic row count,
+ * the plan is printed, and the transaction is rolled back.
+ *
+ * Usage: StorePlanCheck <dbname> <port> <user> [stores]
+ * Exits with status 1 if the plan does not use the index.
+ */
+public class StorePlanCheck {
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java StorePlanCheck <dbname> <port> <user> [stores]");
+         return;
+      }//end if
+      int stores = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      PooledConnection conn = esql.getPool().borrow();
+      boolean usesIndex = false;
+      try {
+         List<List<String>> user = esql.executeQueryAndReturnResult(conn, "SELECT min(userID) FROM Users");
+         int userID = Integer.parseInt(user.get(0).get(0));
+
+         conn.getConnection().setAutoCommit(false);
+         esql.executeUpdate(conn,
+            "INSERT INTO Store (storeID, name, latitude, longitude, managerID) " +
+            "SELECT 1000000 + g, 'plan' || g, round((random() * 99)::numeric, 6), round((random() * 99)::numeric, 6), ? " +
+            "FROM generate_series(1, ?) g", userID, stores);
+         esql.executeUpdate(conn, "ANALYZE Store");
+
+         StringBuilder plan = new StringBuilder();
+         PreparedStatement explain = conn.prepare("EXPLAIN " + Retail.STORES_WITHIN_RADIUS);
+         Object[] params = Retail.radiusParams(userID);
+         for (int i = 0; i < params.length; ++i)
+            explain.setObject(i + 1, params[i]);
+         ResultSet rs = explain.executeQuery();
+         while (rs.next())
+            plan.append(rs.getString(1)).append('\n');
+         rs.close();
+
+         System.out.println("Plan with " + stores + " extra stores:");
+         System.out.println(plan);
+         usesIndex = plan.indexOf("store_lat_long_idx") >= 0;
+         System.out.println(usesIndex ? "OK: radius search uses store_lat_long_idx"
+                                      : "FAIL: radius search does not use store_lat_long_idx");
+      } finally {
+         conn.getConnection().rollback();
+         esql.getPool().release(conn);
+         esql.cleanup();
+      }//end try
+      if (!usesIndex)
+         System.exit(1);
+   }//end main
+}//end StorePlanCheck
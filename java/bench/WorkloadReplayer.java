@@ -0,0 +1,294 @@
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a mix of customer and manager operations from many concurrent
+ * simulated clients against a loaded database (see DataGenerator and
+ * BulkLoader) and reports the sustained throughput every few seconds, plus
+ * per-operation counts and latency percentiles at the end.
+ *
+ * Each client picks a random customer or manager session and an operation
+ * by weight, with the same methods the menus call. Customers browse stores
+ * and products, place single and cart orders and look at their orders;
+ * managers update products, request supplies and look at their dashboards.
+ * The run writes real orders and updates, so replay against a generated
+ * database rather than one holding data you want to keep.
+ *
+ * Clients run on virtual threads when the JVM has them (Java 21+), and on a
+ * thread per client otherwise. Either way the number of statements in
+ * flight is bounded by the connection pool (-Dretail.pool.size).
+ *
+ * Usage: WorkloadReplayer <dbname> <port> <user> [clients] [seconds] [seed] [managerShare]
+ */
+public class WorkloadReplayer {
+
+   // seconds between throughput reports
+   private static final int REPORT_INTERVAL = 5;
+
+   // customer operations and their weights
+   private static final String[] CUSTOMER_OPS = {
+      "viewStores", "viewProducts", "placeOrder", "placeCartOrder", "viewRecentOrders"
+   };
+   private static final int[] CUSTOMER_WEIGHTS = { 25, 30, 20, 5, 20 };
+
+   // manager operations and their weights
+   private static final String[] MANAGER_OPS = {
+      "updateProduct", "viewRecentUpdates", "viewPopularProducts", "viewPopularCustomers",
+      "placeProductSupplyRequests"
+   };
+   private static final int[] MANAGER_WEIGHTS = { 20, 20, 25, 25, 10 };
+
+   private static final OutputStream SINK = new OutputStream() {
+      public void write(int b) { }
+      public void write(byte[] b, int off, int len) { }
+   };
+
+   private final Retail _esql;
+   private final List<Session> _customers;
+   private final List<Session> _managers;
+   // stores each manager manages, parallel to _managers
+   private final List<int[]> _managedStores;
+   private final int _warehouses;
+   private final double _managerShare;
+
+   private final AtomicLong _completed = new AtomicLong();
+   private final LatencyHistogram[] _customerLatency = new LatencyHistogram[CUSTOMER_OPS.length];
+   private final LatencyHistogram[] _managerLatency = new LatencyHistogram[MANAGER_OPS.length];
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _errors = new AtomicLong();
+
+   public WorkloadReplayer(Retail esql, int sessions, double managerShare) throws Exception {
+      this._esql = esql;
+      this._managerShare = managerShare;
+      this._customers = new ArrayList<Session>();
+      this._managers = new ArrayList<Session>();
+      this._managedStores = new ArrayList<int[]>();
+
+      QueryResult customers = esql.executeQueryForResult(
+         "SELECT userID, name FROM Users WHERE type = 'customer' ORDER BY userID LIMIT ?", sessions);
+      for (int row = 0; row < customers.getRowCount(); ++row)
+         this._customers.add(Session.open(esql, customers.getInt(row, 0), customers.getString(row, 1).trim()));
+      QueryResult managers = esql.executeQueryForResult(
+         "SELECT DISTINCT U.userID, U.name FROM Users U, Store S WHERE S.managerID = U.userID AND U.type = 'manager' " +
+         "ORDER BY U.userID LIMIT ?", sessions);
+      for (int row = 0; row < managers.getRowCount(); ++row) {
+         this._managers.add(Session.open(esql, managers.getInt(row, 0), managers.getString(row, 1).trim()));
+         QueryResult stores = esql.executeQueryForResult(
+            "SELECT storeID FROM Store WHERE managerID = ? ORDER BY storeID", managers.getInt(row, 0));
+         int[] storeIDs = new int[stores.getRowCount()];
+         System.arraycopy(stores.getIntColumn(0), 0, storeIDs, 0, storeIDs.length);
+         this._managedStores.add(storeIDs);
+      }//end for
+      this._warehouses = esql.executeQueryForInt("SELECT count(*) FROM Warehouse", 1);
+      if (this._customers.isEmpty())
+         throw new IllegalStateException("The database has no customers");
+
+      for (int i = 0; i < CUSTOMER_OPS.length; ++i)
+         this._customerLatency[i] = new LatencyHistogram();
+      for (int i = 0; i < MANAGER_OPS.length; ++i)
+         this._managerLatency[i] = new LatencyHistogram();
+   }//end WorkloadReplayer
+
+   /**
+    * Runs the clients until the duration is over
+    *
+    * @param clients the number of concurrent clients
+    * @param seconds how long to run
+    * @param seed seeds the choices of every client
+    */
+   public void run(int clients, int seconds, long seed) throws Exception {
+      ExecutorService executor = newExecutor(clients);
+      final long end = System.nanoTime() + seconds * 1000000000L;
+      List<Future<?>> running = new ArrayList<Future<?>>();
+      for (int c = 0; c < clients; ++c) {
+         final Random random = new Random(seed * 1000003 + c);
+         running.add(executor.submit(new Runnable() {
+            public void run() {
+               while (System.nanoTime() < end)
+                  step(random);
+            }
+         }));
+      }//end for
+
+      long start = System.nanoTime();
+      long last = 0, lastTime = start;
+      System.out.printf("%8s %12s %12s%n", "time s", "ops", "ops/s");
+      while (System.nanoTime() < end) {
+         Thread.sleep(Math.min(REPORT_INTERVAL * 1000L, Math.max(1, (end - System.nanoTime()) / 1000000)));
+         long done = this._completed.get();
+         long now = System.nanoTime();
+         System.out.printf("%8.1f %12d %12.1f%n", (now - start) / 1e9, done - last, (done - last) / ((now - lastTime) / 1e9));
+         last = done;
+         lastTime = now;
+      }//end while
+      for (Future<?> client : running)
+         client.get();
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      double elapsed = (System.nanoTime() - start) / 1e9;
+
+      System.out.printf("%nsustained: %.1f ops/s over %.1f s, %d rejected orders, %d errors%n",
+                        this._completed.get() / elapsed, elapsed, this._rejected.get(), this._errors.get());
+      System.out.printf("%-28s %10s %10s %10s %10s %10s%n", "operation", "calls", "mean ms", "p50 ms", "p99 ms", "max ms");
+      report(CUSTOMER_OPS, this._customerLatency);
+      report(MANAGER_OPS, this._managerLatency);
+      System.out.println(this._esql.getPool().stats());
+   }//end run
+
+   // one operation of one client
+   private void step(Random random) {
+      boolean manager = !this._managers.isEmpty() && random.nextDouble() < this._managerShare;
+      int op = pick(random, manager ? MANAGER_WEIGHTS : CUSTOMER_WEIGHTS);
+      long start = System.nanoTime();
+      try {
+         if (manager)
+            manager(random, op);
+         else
+            customer(random, op);
+      } catch (Exception e) {
+         this._errors.incrementAndGet();
+         return;
+      }//end try
+      (manager ? this._managerLatency : this._customerLatency)[op].record(System.nanoTime() - start);
+      this._completed.incrementAndGet();
+   }//end step
+
+   private void customer(Random random, int op) throws Exception {
+      Session session = this._customers.get(random.nextInt(this._customers.size()));
+      switch (op) {
+         case 0:
+            this._esql.printStoresNear(session, SINK);
+            break;
+         case 1:
+            this._esql.printProducts(nearbyStore(session, random), SINK);
+            break;
+         case 2: {
+            int storeID = nearbyStore(session, random);
+            String product = productOf(storeID, random);
+            if (product != null && this._esql.submitOrder(session.getUserID(), storeID, product, 1 + random.nextInt(3)) < 0)
+               this._rejected.incrementAndGet();
+            break;
+         }
+         case 3: {
+            Cart cart = new Cart();
+            int lines = 10 + random.nextInt(41);
+            for (int i = 0; i < lines; ++i) {
+               int storeID = nearbyStore(session, random);
+               String product = productOf(storeID, random);
+               if (product != null)
+                  cart.add(storeID, product, 1);
+            }//end for
+            if (this._esql.submitCart(session.getUserID(), cart) < 0)
+               this._rejected.incrementAndGet();
+            break;
+         }
+         default:
+            this._esql.printRecentOrders(session, SINK);
+      }//end switch
+   }//end customer
+
+   private void manager(Random random, int op) throws Exception {
+      int index = random.nextInt(this._managers.size());
+      Session session = this._managers.get(index);
+      int[] stores = this._managedStores.get(index);
+      int storeID = stores[random.nextInt(stores.length)];
+      switch (op) {
+         case 0: {
+            String product = productOf(storeID, random);
+            if (product != null)
+               this._esql.updateProduct(session, storeID, product, 50 + random.nextInt(100), 1 + random.nextInt(20));
+            break;
+         }
+         case 1:
+            this._esql.printRecentUpdates(session, storeID, SINK);
+            break;
+         case 2:
+            this._esql.printPopularProducts(storeID, SINK);
+            break;
+         case 3:
+            this._esql.printPopularCustomers(storeID, SINK);
+            break;
+         default: {
+            String product = productOf(storeID, random);
+            if (product != null)
+               this._esql.requestSupply(session, storeID, product, 1 + random.nextInt(100), 1 + random.nextInt(this._warehouses));
+         }
+      }//end switch
+   }//end manager
+
+   // a store within range of the customer, or any store if none is
+   private int nearbyStore(Session session, Random random) throws Exception {
+      StoreIndex index = this._esql.getStoreIndex();
+      int[] near = index.withinRadius(session.getLatitude(), session.getLongitude(), Retail.STORE_RADIUS);
+      if (near.length > 0)
+         return index.getStoreID(near[random.nextInt(near.length)]);
+      return index.getStoreID(random.nextInt(index.size()));
+   }//end nearbyStore
+
+   private String productOf(int storeID, Random random) throws Exception {
+      ProductCatalog catalog = this._esql.getCatalog();
+      int[] products = catalog.listStore(storeID);
+      return products.length == 0 ? null : catalog.getName(products[random.nextInt(products.length)]);
+   }//end productOf
+
+   private static int pick(Random random, int[] weights) {
+      int total = 0;
+      for (int weight : weights)
+         total += weight;
+      int r = random.nextInt(total);
+      for (int i = 0; i < weights.length; ++i) {
+         r -= weights[i];
+         if (r < 0)
+            return i;
+      }//end for
+      return weights.length - 1;
+   }//end pick
+
+   private static void report(String[] names, LatencyHistogram[] latencies) {
+      for (int i = 0; i < names.length; ++i) {
+         LatencyHistogram h = latencies[i];
+         System.out.printf("%-28s %10d %10.3f %10.3f %10.3f %10.3f%n", names[i], h.getCount(), h.getMean() / 1e6,
+                           h.getPercentile(0.50) / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6);
+      }//end for
+   }//end report
+
+   // virtual threads when available, found by reflection so this compiles
+   // and runs on older JVMs too
+   private static ExecutorService newExecutor(int clients) {
+      try {
+         Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         System.out.println("clients run on virtual threads");
+         return (ExecutorService) virtual.invoke(null);
+      } catch (Exception e) {
+         System.out.println("clients run on platform threads");
+         return Executors.newFixedThreadPool(clients);
+      }//end try
+   }//end newExecutor
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java WorkloadReplayer <dbname> <port> <user> [clients] [seconds] [seed] [managerShare]");
+         return;
+      }//end if
+      int clients = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+      int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 60;
+      long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+      double managerShare = args.length > 6 ? Double.parseDouble(args[6]) : 0.1;
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try {
+         new WorkloadReplayer(esql, 1000, managerShare).run(clients, seconds, seed);
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end WorkloadReplayer
@@ -0,0 +1,17 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Java 8 or later (CompletableFuture, String.join, java.time): the JDK in
+# $JAVA_HOME if set, otherwise the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+JAVAC="javac -source 8 -target 8 -Xlint:-options"
+
+# compile the java program
+$JAVAC -d $DIR/../classes $DIR/../src/*.java
+
+#create the coming months' Orders partitions and archive the old ones to
+#../../archive for your database, port number and login; run it daily
+#pass -ahead N, -keep N (months kept in Orders) or -archive <dir> to change the defaults
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderArchiver $USER"_DB" $PGPORT $USER -archive $DIR/../../archive "$@"
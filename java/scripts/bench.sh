@@ -0,0 +1,22 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Java 8 or later (CompletableFuture, String.join, java.time): the JDK in
+# $JAVA_HOME if set, otherwise the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+JAVAC="javac -source 8 -target 8 -Xlint:-options"
+
+if [ $# -lt 1 ]; then
+   echo "Usage: $0 <BenchmarkClass> [args...]"
+   exit 1
+fi
+
+# compile the java program together with the benchmarks
+$JAVAC -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+
+#run the benchmark against your database, port number and login
+BENCH=$1
+shift
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar $BENCH $USER"_DB" $PGPORT $USER "$@"
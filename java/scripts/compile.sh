@@ -1,13 +1,19 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
+# Java 8 or later (CompletableFuture, String.join, java.time): the JDK in
+# $JAVA_HOME if set, otherwise the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+JAVAC="javac -source 8 -target 8 -Xlint:-options"
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java
+$JAVAC -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
+#commands after the login run without the menus, e.g. -f jobs.txt or
+#placeOrder user=7 store=3 product=Pepsi units=4 (see BatchRunner)
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER "$@"
 
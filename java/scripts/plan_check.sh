@@ -0,0 +1,33 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Java 8 or later (CompletableFuture, String.join, java.time): the JDK in
+# $JAVA_HOME if set, otherwise the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+JAVAC="javac -source 8 -target 8 -Xlint:-options"
+
+# scale of the generated data set, 300 gives 150k orders and 6k stores
+SCALE=${1:-300}
+
+# compile the java program together with the benchmarks
+$JAVAC -d $DIR/../classes $DIR/../src/*.java $DIR/../bench/*.java
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+SQL=$DIR/../../sql/src
+
+# the check runs against a scratch database created and dropped here, your
+# working database is never touched
+DB=${USER}_plancheck_DB
+DATA=$(mktemp -d)
+trap "rm -rf $DATA; dropdb -h localhost -p $PGPORT --if-exists $DB" EXIT
+dropdb -h localhost -p $PGPORT --if-exists $DB
+createdb -h localhost -p $PGPORT $DB || exit 1
+psql -q -v ON_ERROR_STOP=1 -h localhost -p $PGPORT $DB < $SQL/create_tables.sql || exit 1
+psql -q -v ON_ERROR_STOP=1 -h localhost -p $PGPORT $DB < $SQL/create_indexes.sql || exit 1
+
+# generate a scaled data set, load it, then check the plans of the
+# application's queries against it
+java $JAVA_OPTS -cp $CP DataGenerator $DATA $SCALE || exit 1
+java $JAVA_OPTS -cp $CP BulkLoader $DB $PGPORT $USER $DATA || exit 1
+java $JAVA_OPTS -cp $CP PlanRegressionCheck $DB $PGPORT $USER
@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# Java 8 or later (CompletableFuture, String.join, java.time): the JDK in
+# $JAVA_HOME if set, otherwise the one on the PATH
+if [ -n "$JAVA_HOME" ]; then
+   export PATH=$JAVA_HOME/bin:$PATH
+fi
+JAVAC="javac -source 8 -target 8 -Xlint:-options"
+
+# compile the java program
+$JAVAC -d $DIR/../classes $DIR/../src/*.java
+
+#serve the operations over HTTP for your database, port number and login
+#pass the HTTP port, 8080 by default; size the pool with JAVA_OPTS=-Dretail.pool.size=N
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RetailServer $USER"_DB" $PGPORT $USER "$@"
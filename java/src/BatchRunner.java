@@ -0,0 +1,475 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class runs Retail operations from commands instead of the stdin
+ * menus, for scheduled jobs and throughput measurements. A command is an
+ * operation name followed by key=value arguments, e.g.
+ *
+ *    placeOrder user=7 store=3 product=Pepsi units=4
+ *    placeCartOrder user=7 items="3:2:Pepsi,4:1:Hot and Sour Soup"
+ *    pageOrders user=7 limit=50 cursor=<next of the previous page>
+ *
+ * Values with spaces are double quoted. The operations are named after the
+ * menu functions and apply the same authorization: managers (and admins)
+ * only see and change their stores, customers only order within range.
+ *
+ * Commands run one after another on a single connection and each prints
+ * one JSON object on its own line with the command's line number, status
+ * (ok, rejected, denied, invalid, busy or error), time in milliseconds and its
+ * result: the new orderNumber, or the listed rows as objects keyed by
+ * column name. The page operations add "next", the cursor= of the next
+ * page, null after the last one. A summary goes to stderr.
+ *
+ * Usage: Retail <dbname> <port> <user> -f <file>     (- reads stdin)
+ *        Retail <dbname> <port> <user> <command> [; <command> ...]
+ */
+public class BatchRunner {
+
+   // what each operation takes, in the order the usage lists them
+   private static final String[][] OPERATIONS = {
+      { "viewStores", "user" },
+      { "findProduct", "user", "product", "units" },
+      { "viewProducts", "store" },
+      { "pageProducts", "store" },
+      { "placeOrder", "user", "store", "product", "units" },
+      { "placeCartOrder", "user", "items" },
+      { "viewRecentOrders", "user" },
+      { "pageOrders", "user" },
+      { "updateProduct", "user", "store", "product", "units", "price" },
+      { "viewRecentUpdates", "user", "store" },
+      { "pageUpdates", "user", "store" },
+      { "viewPopularProducts", "user", "store" },
+      { "viewPopularCustomers", "user", "store" },
+      { "viewSalesTrend", "user", "store" },
+      { "rebuildSales", "user", "from", "to" },
+      { "placeProductSupplyRequests", "user", "store", "product", "units", "warehouse" }
+   };
+
+   // a command that cannot run as given: bad arguments or a user without the right
+   private static final class Refused extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final String status;
+
+      Refused(String status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }//end Refused
+
+   private final Retail _esql;
+
+   // userID -> session, opened on the first command of each user
+   private final ConcurrentHashMap<Integer, Session> _sessions = new ConcurrentHashMap<Integer, Session>();
+
+   /**
+    * The outcome of one operation.
+    */
+   public static final class Result {
+      private final String _status;
+      private final String _json;
+
+      Result(String status, String json) {
+         this._status = status;
+         this._json = json;
+      }
+
+      /**
+       * @return ok, rejected, denied, invalid, busy (no database connection
+       *         became free in time) or error
+       */
+      public String getStatus() { return this._status; }
+
+      /**
+       * @return a JSON object with the operation, status, time and result
+       */
+      public String toJson() { return this._json; }
+   }//end Result
+
+   public BatchRunner(Retail esql) {
+      this._esql = esql;
+   }//end BatchRunner
+
+   /**
+    * Runs one operation
+    *
+    * @param op the operation, e.g. placeOrder
+    * @param args the arguments by name
+    * @return the status and the JSON result
+    */
+   public Result execute(String op, Map<String, String> args) {
+      long start = System.nanoTime();
+      String status = "ok";
+      String result;
+      try {
+         result = run(op, args);
+         if (result == null) {
+            status = "rejected";
+            result = "";
+         }//end if
+      } catch (Refused e) {
+         status = e.status;
+         result = ",\"error\":" + quote(e.getMessage());
+      } catch (IllegalArgumentException e) {
+         // a malformed page cursor or page size
+         status = "invalid";
+         result = ",\"error\":" + quote(String.valueOf(e.getMessage()));
+      } catch (SQLException e) {
+         status = ConnectionPool.TIMEOUT_SQL_STATE.equals(e.getSQLState()) ? "busy" : "error";
+         result = ",\"error\":" + quote(String.valueOf(e.getMessage()));
+      } catch (Exception e) {
+         status = "error";
+         result = ",\"error\":" + quote(String.valueOf(e.getMessage()));
+      }//end try
+      return new Result(status, "{\"op\":" + quote(op) + ",\"status\":\"" + status + "\",\"ms\":"
+             + String.format(Locale.ROOT, "%.3f", (System.nanoTime() - start) / 1e6) + result + "}");
+   }//end execute
+
+   // the result fields of the operation, null if it was rejected
+   private String run(String op, Map<String, String> args) throws Exception {
+      String[] signature = null;
+      for (String[] candidate : OPERATIONS)
+         if (candidate[0].equals(op))
+            signature = candidate;
+      if (signature == null)
+         throw new Refused("invalid", "Unknown operation " + op);
+      for (int i = 1; i < signature.length; ++i)
+         if (!args.containsKey(signature[i]))
+            throw new Refused("invalid", op + " needs " + signature[i] + "=");
+
+      Session session = args.containsKey("user") ? session(intArg(args, "user")) : null;
+      ByteArrayOutputStream listing = new ByteArrayOutputStream();
+      if (op.equals("viewStores")) {
+         this._esql.printStoresNear(session, listing);
+      } else if (op.equals("findProduct")) {
+         this._esql.printStoresWithProduct(session, args.get("product"), positiveArg(args, "units"), listing);
+      } else if (op.equals("viewProducts")) {
+         this._esql.printProducts(intArg(args, "store"), listing);
+      } else if (op.equals("placeOrder")) {
+         int storeID = intArg(args, "store");
+         checkInRange(session, storeID);
+         int orderNumber = this._esql.submitOrder(session.getUserID(), storeID, args.get("product"),
+                                                  positiveArg(args, "units"));
+         return orderNumber < 0 ? null : ",\"orderNumber\":" + orderNumber;
+      } else if (op.equals("placeCartOrder")) {
+         Cart cart = new Cart();
+         for (String item : args.get("items").split(",")) {
+            String[] parts = item.trim().split(":", 3);
+            if (parts.length != 3)
+               throw new Refused("invalid", "items are store:units:product, not " + item);
+            int storeID = parseInt("items", parts[0]);
+            checkInRange(session, storeID);
+            int units = parseInt("items", parts[1]);
+            if (units <= 0)
+               throw new Refused("invalid", "units must be positive: " + units);
+            cart.add(storeID, parts[2], units);
+         }//end for
+         int placed = this._esql.submitCart(session.getUserID(), cart);
+         return placed < 0 ? null : ",\"orders\":" + placed;
+      } else if (op.equals("pageProducts")) {
+         String next = this._esql.printProductPage(intArg(args, "store"), args.get("cursor"), pageSize(args), listing);
+         return page(listing.toString(), next);
+      } else if (op.equals("viewRecentOrders")) {
+         this._esql.printRecentOrders(session, listing);
+      } else if (op.equals("pageOrders")) {
+         String next = this._esql.printOrderPage(session, args.get("cursor"), pageSize(args), listing);
+         return page(listing.toString(), next);
+      } else if (op.equals("updateProduct")) {
+         int storeID = managedStore(session, args);
+         double price = doubleArg(args, "price");
+         if (!this._esql.updateProduct(session, storeID, args.get("product"), nonNegativeArg(args, "units"), price))
+            return null;
+         return "";
+      } else if (op.equals("viewRecentUpdates")) {
+         this._esql.printRecentUpdates(session, managedStore(session, args), listing);
+      } else if (op.equals("pageUpdates")) {
+         String next = this._esql.printUpdatePage(session, managedStore(session, args), args.get("cursor"),
+                                                  pageSize(args), listing);
+         return page(listing.toString(), next);
+      } else if (op.equals("viewPopularProducts")) {
+         this._esql.printPopularProducts(managedStore(session, args), listing);
+      } else if (op.equals("viewPopularCustomers")) {
+         this._esql.printPopularCustomers(managedStore(session, args), listing);
+      } else if (op.equals("viewSalesTrend")) {
+         // optional product=, days= (30) and by=day|hour
+         int storeID = managedStore(session, args);
+         String by = args.containsKey("by") ? args.get("by") : "day";
+         if (!by.equals("day") && !by.equals("hour"))
+            throw new Refused("invalid", "by is day or hour, not " + by);
+         this._esql.printSalesTrend(storeID, args.get("product"), args.containsKey("days") ? positiveArg(args, "days") : 30,
+                                    by.equals("hour"), listing);
+      } else if (op.equals("rebuildSales")) {
+         long hours = this._esql.rebuildSalesRollups(session, args.get("from"), args.get("to"));
+         if (hours < 0)
+            throw new Refused("denied", "Only admins rebuild the sales rollups");
+         return ",\"hours\":" + hours;
+      } else {
+         int storeID = intArg(args, "store");
+         if (!session.manages(storeID))
+            throw new Refused("denied", "User " + session.getUserID() + " does not manage store " + storeID);
+         if (!this._esql.requestSupply(session, storeID, args.get("product"), positiveArg(args, "units"),
+                                       intArg(args, "warehouse")))
+            return null;
+         return "";
+      }//end if
+      return rows(listing.toString());
+   }//end run
+
+   // the session of a user, opened on first use
+   private Session session(int userID) throws Exception {
+      Session session = this._sessions.get(userID);
+      if (session == null) {
+         String name = this._esql.executeQueryForString("SELECT name FROM Users WHERE userID = ?", userID);
+         if (name == null)
+            throw new Refused("invalid", "No user " + userID);
+         session = Session.open(this._esql, userID, name.trim());
+         Session raced = this._sessions.putIfAbsent(userID, session);
+         if (raced != null)
+            session = raced;
+      }//end if
+      return session;
+   }//end session
+
+   private void checkInRange(Session session, int storeID) throws Exception {
+      if (!this._esql.isStoreWithinRadius(session, storeID))
+         throw new Refused("denied", "Store " + storeID + " is not within " + (int) Retail.STORE_RADIUS + " miles");
+   }//end checkInRange
+
+   // the store= argument, if the user is an admin or manages it
+   private static int managedStore(Session session, Map<String, String> args) throws Exception {
+      int storeID = intArg(args, "store");
+      if (!session.isAdmin() && !session.manages(storeID))
+         throw new Refused("denied", "User " + session.getUserID() + " does not manage store " + storeID);
+      return storeID;
+   }//end managedStore
+
+   // the optional limit= argument of the page operations
+   private static int pageSize(Map<String, String> args) throws Refused {
+      return args.containsKey("limit") ? positiveArg(args, "limit") : PageCursor.DEFAULT_PAGE_SIZE;
+   }//end pageSize
+
+   // the rows of a page and the cursor of the next one, null after the last
+   private static String page(String listing, String next) {
+      return rows(listing) + ",\"next\":" + (next == null ? "null" : quote(next));
+   }//end page
+
+   private static int intArg(Map<String, String> args, String name) throws Refused {
+      return parseInt(name, args.get(name));
+   }//end intArg
+
+   private static int positiveArg(Map<String, String> args, String name) throws Refused {
+      int value = intArg(args, name);
+      if (value <= 0)
+         throw new Refused("invalid", name + " must be positive: " + value);
+      return value;
+   }//end positiveArg
+
+   private static int nonNegativeArg(Map<String, String> args, String name) throws Refused {
+      int value = intArg(args, name);
+      if (value < 0)
+         throw new Refused("invalid", name + " cannot be negative: " + value);
+      return value;
+   }//end nonNegativeArg
+
+   private static int parseInt(String name, String value) throws Refused {
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         throw new Refused("invalid", name + " is not a number: " + value);
+      }//end try
+   }//end parseInt
+
+   private static double doubleArg(Map<String, String> args, String name) throws Refused {
+      try {
+         return Double.parseDouble(args.get(name).trim());
+      } catch (NumberFormatException e) {
+         throw new Refused("invalid", name + " is not a number: " + args.get(name));
+      }//end try
+   }//end doubleArg
+
+   // the tab separated listing the print methods write, as JSON rows
+   private static String rows(String listing) {
+      StringBuilder json = new StringBuilder(",\"rows\":[");
+      String[] lines = listing.split("\n");
+      String[] header = null;
+      int count = 0;
+      for (String line : lines) {
+         if (line.isEmpty())
+            continue;
+         String[] cells = line.split("\t");
+         if (header == null) {
+            header = cells;
+            continue;
+         }//end if
+         json.append(count++ == 0 ? "{" : ",{");
+         for (int i = 0; i < header.length; ++i) {
+            json.append(i == 0 ? "" : ",").append(quote(header[i].trim().toLowerCase())).append(':')
+                .append(quote(i < cells.length ? cells[i].trim() : ""));
+         }//end for
+         json.append('}');
+      }//end for
+      return json.append(']').toString();
+   }//end rows
+
+   /**
+    * @return the value as a JSON string literal
+    */
+   public static String quote(String value) {
+      StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+            out.append('\\').append(c);
+         else if (c < 0x20)
+            out.append(String.format("\\u%04x", (int) c));
+         else
+            out.append(c);
+      }//end for
+      return out.append('"').toString();
+   }//end quote
+
+   /**
+    * Splits a command into its words, keeping double quoted text together
+    *
+    * @return the operation followed by the key=value words
+    */
+   static List<String> split(String command) {
+      List<String> words = new ArrayList<String>();
+      StringBuilder word = new StringBuilder();
+      boolean quoted = false, started = false;
+      for (int i = 0; i < command.length(); ++i) {
+         char c = command.charAt(i);
+         if (c == '"') {
+            quoted = !quoted;
+            started = true;
+         } else if (Character.isWhitespace(c) && !quoted) {
+            if (started)
+               words.add(word.toString());
+            word.setLength(0);
+            started = false;
+         } else {
+            word.append(c);
+            started = true;
+         }//end if
+      }//end for
+      if (started)
+         words.add(word.toString());
+      return words;
+   }//end split
+
+   /**
+    * Runs every command of a script, one per line. Blank lines and lines
+    * starting with # are skipped.
+    *
+    * @param script the commands
+    * @param out where the results are written
+    * @return the number of commands that failed with an error
+    */
+   public int runScript(Reader script, PrintStream out) throws IOException {
+      BufferedReader reader = new BufferedReader(script);
+      long start = System.nanoTime();
+      int commands = 0, errors = 0;
+      String line;
+      for (int number = 1; (line = reader.readLine()) != null; ++number) {
+         List<String> words = split(line);
+         if (words.isEmpty() || words.get(0).startsWith("#"))
+            continue;
+         Map<String, String> args = new LinkedHashMap<String, String>();
+         Result result = null;
+         for (String word : words.subList(1, words.size())) {
+            int eq = word.indexOf('=');
+            if (eq <= 0) {
+               result = new Result("invalid", "{\"op\":" + quote(words.get(0)) + ",\"status\":\"invalid\",\"error\":"
+                                   + quote("Expected key=value, not " + word) + "}");
+               break;
+            }//end if
+            args.put(word.substring(0, eq), word.substring(eq + 1));
+         }//end for
+         if (result == null)
+            result = execute(words.get(0), args);
+         if (result.getStatus().equals("error") || result.getStatus().equals("busy"))
+            ++errors;
+         ++commands;
+         out.println("{\"line\":" + number + "," + result.toJson().substring(1));
+      }//end for
+      out.flush();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.err.printf("%d commands, %d errors in %.3f s (%.1f commands/s)%n", commands, errors, seconds,
+                        seconds > 0 ? commands / seconds : 0);
+      return errors;
+   }//end runScript
+
+   /**
+    * Connects and runs the commands given after <dbname> <port> <user>:
+    * -f <file> (- for stdin), or commands separated by ; words.
+    *
+    * @return the exit status, 1 if a command failed with an error
+    */
+   public static int run(String[] args) {
+      Retail esql = null;
+      // keep the connection messages off the machine-readable output
+      PrintStream stdout = System.out;
+      try {
+         Class.forName("org.postgresql.Driver");
+         System.setOut(System.err);
+         try {
+            esql = new Retail(args[0], args[1], args[2], "", 1);
+         } finally {
+            System.setOut(stdout);
+         }//end try
+         esql.setPrintFormat(ResultPrinter.Format.TSV, ResultPrinter.DEFAULT_FETCH_SIZE);
+         BatchRunner runner = new BatchRunner(esql);
+
+         Reader script;
+         if (args[3].equals("-f")) {
+            if (args.length < 5) {
+               System.err.println("-f needs a file, or - for stdin");
+               return 2;
+            }//end if
+            script = new InputStreamReader(args[4].equals("-") ? System.in : new FileInputStream(args[4]), "UTF-8");
+         } else {
+            StringBuilder commands = new StringBuilder();
+            for (int i = 3; i < args.length; ++i) {
+               if (args[i].equals(";"))
+                  commands.append('\n');
+               else
+                  commands.append(args[i].indexOf(' ') >= 0 ? quoteWord(args[i]) : args[i]).append(' ');
+            }//end for
+            script = new StringReader(commands.toString());
+         }//end if
+         try {
+            return runner.runScript(script, stdout) > 0 ? 1 : 0;
+         } finally {
+            script.close();
+         }//end try
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         return 1;
+      } finally {
+         if (esql != null) {
+            esql.dumpMetrics(System.getProperty("retail.metrics.dump"));
+            esql.cleanup();
+         }//end if
+      }//end try
+   }//end run
+
+   // an argv word the shell already unquoted, e.g. product=Hot and Sour Soup
+   private static String quoteWord(String word) {
+      int eq = word.indexOf('=');
+      return word.substring(0, eq + 1) + '"' + word.substring(eq + 1) + '"';
+   }//end quoteWord
+}//end BatchRunner
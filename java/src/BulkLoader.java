@@ -0,0 +1,452 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads the data/*.csv files into the database from the client
+ * side, replacing the server-side COPY of load_data.sql.
+ *
+ * Rows are sent as multi-row INSERT statements in JDBC batches, one
+ * transaction and one pooled connection per table. Tables that do not
+ * reference each other are loaded in parallel, level by level. Secondary
+ * indexes are dropped before the load and rebuilt (in parallel) after it,
+ * user triggers are disabled during the load and the order counts and
+ * sales rollups they maintain are rebuilt in one pass, also when a later
+ * table failed after others committed. Finally every serial sequence is set
+ * to max(id) + 1 of its column.
+ *
+ * When Orders is partitioned by month, the partitions of every month in
+ * orders.csv are created before the load, so no order lands in the default
+ * partition.
+ *
+ */
+public class BulkLoader {
+
+   // rows per executeBatch() call
+   public static final int DEFAULT_BATCH_SIZE = 5000;
+
+   // upper bounds for one multi-row INSERT statement
+   private static final int MAX_ROWS_PER_STATEMENT = 500;
+   private static final int MAX_PARAMS_PER_STATEMENT = 30000;
+
+   // tables and their files, grouped so that a table only references
+   // tables of earlier levels
+   private static final String[][][] LEVELS = {
+      { {"Users", "users.csv"}, {"Warehouse", "warehouse.csv"} },
+      { {"Store", "stores.csv"} },
+      { {"Product", "products.csv"} },
+      { {"Orders", "orders.csv"}, {"ProductSupplyRequests", "productSupplyRequests.csv"},
+        {"ProductUpdates", "productUpdates.csv"} }
+   };
+
+   private final Retail _esql;
+   private final File _dataDir;
+   private final int _batchSize;
+
+   /**
+    * @param esql the Retail instance whose pool the loader uses, it needs as
+    *        many connections as the widest level
+    * @param dataDir the directory holding the csv files
+    * @param batchSize the number of rows per executeBatch() call
+    */
+   public BulkLoader(Retail esql, File dataDir, int batchSize) {
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._batchSize = batchSize;
+   }//end BulkLoader
+
+   /**
+    * Loads every table from its csv file
+    *
+    * @param truncate whether to empty the tables first
+    * @throws java.lang.Exception when a file could not be read or a table
+    *         could not be loaded; tables loaded before stay committed
+    */
+   public void load(boolean truncate) throws Exception {
+      List<String> tables = new ArrayList<String>();
+      int width = 0;
+      for (String[][] level : LEVELS) {
+         for (String[] table : level)
+            tables.add(table[0]);
+         width = Math.max(width, level.length);
+      }//end for
+
+      long start = System.nanoTime();
+      if (truncate)
+         this._esql.executeUpdate("TRUNCATE " + join(tables) + " RESTART IDENTITY CASCADE");
+
+      createOrderPartitions(new File(this._dataDir, "orders.csv"));
+      List<String> indexes = dropSecondaryIndexes(tables);
+      for (String table : tables)
+         this._esql.executeUpdate("ALTER TABLE " + table + " DISABLE TRIGGER USER");
+      // the tables committed so far
+      final Set<String> loaded = ConcurrentHashMap.newKeySet();
+      ExecutorService workers = Executors.newFixedThreadPool(width);
+      try {
+         for (String[][] level : LEVELS) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final String[] table : level) {
+               loads.add(workers.submit(new Callable<Long>() {
+                  public Long call() throws Exception {
+                     long rows = loadTable(table[0], new File(BulkLoader.this._dataDir, table[1]));
+                     loaded.add(table[0]);
+                     return rows;
+                  }
+               }));
+            }//end for
+            waitFor(loads);
+         }//end for
+      } finally {
+         for (String table : tables)
+            this._esql.executeUpdate("ALTER TABLE " + table + " ENABLE TRIGGER USER");
+         long indexStart = System.nanoTime();
+         List<Future<Long>> builds = new ArrayList<Future<Long>>();
+         for (final String index : indexes) {
+            builds.add(workers.submit(new Callable<Long>() {
+               public Long call() throws Exception {
+                  return (long) BulkLoader.this._esql.executeUpdate(index);
+               }
+            }));
+         }//end for
+         try {
+            waitFor(builds);
+            System.out.printf("%-22s %10d indexes %7.2f s%n", "(indexes)", indexes.size(),
+                              (System.nanoTime() - indexStart) / 1e9);
+         } finally {
+            workers.shutdown();
+            // the triggers were off for whatever committed, so the counts
+            // and rollups catch up even when a later table failed
+            if (!loaded.isEmpty())
+               rebuildAggregates();
+         }//end try
+      }//end try
+
+      for (String table : tables) {
+         resetSequences(table);
+         this._esql.executeUpdate("ANALYZE " + table);
+      }//end for
+      System.out.printf("%-22s %29.2f s%n", "(total)", (System.nanoTime() - start) / 1e9);
+   }//end load
+
+   /**
+    * Loads one csv file into a table in one transaction
+    *
+    * @return the number of rows loaded
+    */
+   private long loadTable(String table, File file) throws Exception {
+      long start = System.nanoTime();
+      CsvReader csv = new CsvReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      PooledConnection conn = this._esql.getPool().borrow();
+      long rows = 0;
+      try {
+         String[] header = csv.next();
+         if (header == null)
+            return 0;
+         Map<String, String> types = columnTypes(conn, table);
+         String[] casts = new String[header.length];
+         for (int c = 0; c < header.length; ++c) {
+            casts[c] = types.get(header[c].trim().toLowerCase());
+            if (casts[c] == null)
+               throw new SQLException(file.getName() + ": " + table + " has no column " + header[c]);
+         }//end for
+
+         int perStatement = Math.max(1, Math.min(MAX_ROWS_PER_STATEMENT, MAX_PARAMS_PER_STATEMENT / header.length));
+         int statementsPerBatch = Math.max(1, this._batchSize / perStatement);
+         PreparedStatement insert = this._esql.prepare(conn, insertSql(table, header, casts, perStatement));
+         conn.getConnection().setAutoCommit(false);
+
+         String[][] buffer = new String[perStatement][];
+         int buffered = 0, batched = 0;
+         String[] row;
+         while ((row = csv.next()) != null) {
+            if (row.length != header.length)
+               throw new SQLException(file.getName() + ": line " + csv.getLine() + " has " + row.length
+                                      + " fields, expected " + header.length);
+            buffer[buffered++] = row;
+            if (buffered == perStatement) {
+               bind(insert, buffer, buffered);
+               insert.addBatch();
+               rows += buffered;
+               buffered = 0;
+               if (++batched == statementsPerBatch) {
+                  insert.executeBatch();
+                  batched = 0;
+               }//end if
+            }//end if
+         }//end while
+         if (batched > 0)
+            insert.executeBatch();
+         if (buffered > 0) {
+            PreparedStatement tail = this._esql.prepare(conn, insertSql(table, header, casts, buffered));
+            bind(tail, buffer, buffered);
+            tail.executeUpdate();
+            rows += buffered;
+         }//end if
+         conn.getConnection().commit();
+      } finally {
+         csv.close();
+         this._esql.getPool().release(conn);
+      }//end try
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-22s %10d rows    %7.2f s %12.0f rows/s%n", table, rows, seconds, rows / seconds);
+      return rows;
+   }//end loadTable
+
+   /**
+    * Creates the monthly partitions of Orders the orders in the file fall
+    * in, if Orders is partitioned (create_orders_partitions exists)
+    */
+   private void createOrderPartitions(File file) throws Exception {
+      if (this._esql.executeQueryForInt("SELECT count(*) FROM pg_proc WHERE proname = 'create_orders_partitions'", 0) == 0)
+         return;
+      CsvReader csv = new CsvReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      String first = null, last = null;
+      try {
+         String[] header = csv.next();
+         int column = -1;
+         for (int c = 0; header != null && c < header.length; ++c)
+            if (header[c].trim().equalsIgnoreCase("orderTime"))
+               column = c;
+         if (column < 0)
+            return;
+         // yyyy-mm-dd hh:mm:ss sorts as text
+         String[] row;
+         while ((row = csv.next()) != null) {
+            if (column >= row.length || row[column] == null)
+               continue;
+            if (first == null || row[column].compareTo(first) < 0)
+               first = row[column];
+            if (last == null || row[column].compareTo(last) > 0)
+               last = row[column];
+         }//end while
+      } finally {
+         csv.close();
+      }//end try
+      if (first == null)
+         return;
+      int months = this._esql.executeQueryForInt(
+         "SELECT create_orders_partitions(CAST(? AS timestamp), CAST(? AS timestamp))", 0, first, last);
+      System.out.printf("%-22s %10d months  %s .. %s%n", "(order partitions)", months, first, last);
+   }//end createOrderPartitions
+
+   // column name -> declared type, e.g. numeric(8,6)
+   private Map<String, String> columnTypes(PooledConnection conn, String table) throws SQLException {
+      QueryResult columns = this._esql.executeQueryForResult(conn,
+         "SELECT a.attname, format_type(a.atttypid, a.atttypmod) FROM pg_attribute a " +
+         "WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped",
+         table.toLowerCase());
+      Map<String, String> types = new HashMap<String, String>();
+      for (int row = 0; row < columns.getRowCount(); ++row)
+         types.put(columns.getString(row, 0), columns.getString(row, 1));
+      return types;
+   }//end columnTypes
+
+   private static String insertSql(String table, String[] header, String[] casts, int rows) {
+      StringBuilder values = new StringBuilder("(");
+      for (int c = 0; c < header.length; ++c)
+         values.append(c == 0 ? "" : ", ").append("CAST(? AS ").append(casts[c]).append(')');
+      values.append(')');
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+      for (int c = 0; c < header.length; ++c)
+         sql.append(c == 0 ? "" : ", ").append(header[c].trim());
+      sql.append(") VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append(r == 0 ? "" : ", ").append(values);
+      return sql.toString();
+   }//end insertSql
+
+   private static void bind(PreparedStatement stmt, String[][] rows, int count) throws SQLException {
+      int param = 1;
+      for (int r = 0; r < count; ++r) {
+         for (String value : rows[r]) {
+            if (value == null)
+               stmt.setNull(param++, Types.VARCHAR);
+            else
+               stmt.setString(param++, value);
+         }//end for
+      }//end for
+   }//end bind
+
+   /**
+    * Drops the indexes of the tables that back neither a primary key nor a
+    * unique constraint
+    *
+    * @return the statements that recreate them
+    */
+   private List<String> dropSecondaryIndexes(List<String> tables) throws SQLException {
+      List<String> creates = new ArrayList<String>();
+      for (String table : tables) {
+         QueryResult indexes = this._esql.executeQueryForResult(
+            "SELECT CAST(i.indexrelid AS regclass), pg_get_indexdef(i.indexrelid) FROM pg_index i " +
+            "WHERE i.indrelid = CAST(? AS regclass) AND NOT i.indisprimary AND NOT i.indisunique",
+            table.toLowerCase());
+         for (int row = 0; row < indexes.getRowCount(); ++row) {
+            this._esql.executeUpdate("DROP INDEX " + indexes.getString(row, 0));
+            // an index of a partitioned table is recreated on every partition
+            creates.add(indexes.getString(row, 1).replace(" ON ONLY ", " ON "));
+         }//end for
+      }//end for
+      return creates;
+   }//end dropSecondaryIndexes
+
+   // rebuilds the order counts and sales rollups, when the schema has them
+   private void rebuildAggregates() throws SQLException {
+      if (this._esql.executeQueryForInt("SELECT count(*) FROM pg_proc WHERE proname = 'rebuild_order_counts'", 0) > 0)
+         this._esql.executeQuery("SELECT rebuild_order_counts()");
+      if (this._esql.executeQueryForInt("SELECT count(*) FROM pg_proc WHERE proname = 'rebuild_sales_rollups'", 0) > 0)
+         this._esql.executeQuery("SELECT rebuild_sales_rollups()");
+   }//end rebuildAggregates
+
+   // sets every serial sequence of the table to max(column) + 1
+   private void resetSequences(String table) throws SQLException {
+      QueryResult serials = this._esql.executeQueryForResult(
+         "SELECT a.attname, pg_get_serial_sequence(?, a.attname) FROM pg_attribute a " +
+         "WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped " +
+         "AND pg_get_serial_sequence(?, a.attname) IS NOT NULL",
+         table.toLowerCase(), table.toLowerCase(), table.toLowerCase());
+      for (int row = 0; row < serials.getRowCount(); ++row) {
+         String column = serials.getString(row, 0);
+         this._esql.executeQuery("SELECT setval(?, COALESCE(MAX(" + column + "), 0) + 1, false) FROM " + table,
+                                 serials.getString(row, 1));
+      }//end for
+   }//end resetSequences
+
+   private static void waitFor(List<Future<Long>> futures) throws Exception {
+      try {
+         for (Future<Long> future : futures)
+            future.get();
+      } catch (ExecutionException e) {
+         for (Future<Long> future : futures)
+            future.cancel(true);
+         if (e.getCause() instanceof Exception)
+            throw (Exception) e.getCause();
+         throw e;
+      }//end try
+   }//end waitFor
+
+   private static String join(List<String> names) {
+      StringBuilder joined = new StringBuilder();
+      for (String name : names)
+         joined.append(joined.length() == 0 ? "" : ", ").append(name);
+      return joined.toString();
+   }//end join
+
+   /**
+    * Minimal RFC 4180 reader: quoted fields may hold commas, quotes ("") and
+    * line breaks. An empty unquoted field is read as null.
+    */
+   private static final class CsvReader {
+      private final Reader _in;
+      private int _line = 0;
+      private boolean _eof = false;
+
+      CsvReader(Reader in) {
+         this._in = new BufferedReader(in, 1 << 16);
+      }
+
+      int getLine() { return this._line; }
+
+      String[] next() throws IOException {
+         if (this._eof)
+            return null;
+         List<String> fields = new ArrayList<String>();
+         StringBuilder field = new StringBuilder();
+         boolean quoted = false, inQuotes = false, any = false;
+         ++this._line;
+         while (true) {
+            int ch = this._in.read();
+            if (ch < 0) {
+               this._eof = true;
+               if (!any && fields.isEmpty())
+                  return null;
+               break;
+            }//end if
+            any = true;
+            if (inQuotes) {
+               if (ch == '"') {
+                  this._in.mark(1);
+                  int peek = this._in.read();
+                  if (peek == '"') {
+                     field.append('"');
+                  } else {
+                     inQuotes = false;
+                     if (peek >= 0)
+                        this._in.reset();
+                  }//end if
+               } else {
+                  if (ch == '\n')
+                     ++this._line;
+                  field.append((char) ch);
+               }//end if
+            } else if (ch == '"') {
+               inQuotes = quoted = true;
+            } else if (ch == ',') {
+               fields.add(quoted || field.length() > 0 ? field.toString() : null);
+               field.setLength(0);
+               quoted = false;
+            } else if (ch == '\n') {
+               break;
+            } else if (ch != '\r') {
+               field.append((char) ch);
+            }//end if
+         }//end while
+         fields.add(quoted || field.length() > 0 ? field.toString() : null);
+         return fields.toArray(new String[fields.size()]);
+      }//end next
+
+      void close() throws IOException {
+         this._in.close();
+      }
+   }//end CsvReader
+
+   /**
+    * Usage: BulkLoader <dbname> <port> <user> <data directory> [-truncate] [batch size]
+    */
+   public static void main(String[] args) {
+      if (args.length < 4) {
+         System.err.println("Usage: java BulkLoader <dbname> <port> <user> <data directory> [-truncate] [batch size]");
+         return;
+      }//end if
+      boolean truncate = false;
+      int batchSize = DEFAULT_BATCH_SIZE;
+      for (int i = 4; i < args.length; ++i) {
+         if (args[i].equals("-truncate"))
+            truncate = true;
+         else
+            batchSize = Integer.parseInt(args[i]);
+      }//end for
+
+      Retail esql = null;
+      boolean failed = false;
+      try {
+         Class.forName("org.postgresql.Driver");
+         esql = new Retail(args[0], args[1], args[2], "", 4);
+         new BulkLoader(esql, new File(args[3]), batchSize).load(truncate);
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         failed = true;
+      } finally {
+         if (esql != null)
+            esql.cleanup();
+      }//end try
+      if (failed)
+         System.exit(1);
+   }//end main
+}//end BulkLoader
@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class collects the lines of a multi-product order before it is
+ * placed with Retail.submitCart(). Adding a product that is already in the
+ * cart for the same store adds to that line, so every (storeID, productName)
+ * appears once.
+ *
+ */
+public class Cart {
+
+   /**
+    * One line of the cart: a number of units of a product from a store.
+    */
+   public static final class Line {
+      private final int _storeID;
+      private final String _productName;
+      private int _units;
+      // units the store had when the cart was rejected, -1 if not sold there
+      private int _available = -1;
+
+      Line(int storeID, String productName, int units) {
+         this._storeID = storeID;
+         this._productName = productName;
+         this._units = units;
+      }
+
+      public int getStoreID() { return this._storeID; }
+
+      public String getProductName() { return this._productName; }
+
+      public int getUnits() { return this._units; }
+
+      /**
+       * @return the units left at the store when the cart was last rejected,
+       *         or -1 if the store does not sell the product
+       */
+      public int getAvailable() { return this._available; }
+
+      void setAvailable(int available) { this._available = available; }
+
+      /**
+       * @return whether the store had enough units for this line when the
+       *         cart was last submitted
+       */
+      public boolean isAvailable() { return this._available >= this._units; }
+   }//end Line
+
+   private final List<Line> _lines = new ArrayList<Line>();
+
+   /**
+    * Adds units of a product to the cart
+    *
+    * @param storeID the store to order from
+    * @param productName the product to order
+    * @param units the number of units, must be positive
+    */
+   public void add(int storeID, String productName, int units) {
+      if (units <= 0)
+         throw new IllegalArgumentException("units must be positive: " + units);
+      String name = productName.trim();
+      for (Line line : this._lines) {
+         if (line._storeID == storeID && line._productName.equals(name)) {
+            line._units += units;
+            return;
+         }//end if
+      }//end for
+      this._lines.add(new Line(storeID, name, units));
+   }//end add
+
+   /**
+    * Removes the line at the given position
+    *
+    * @param index the position of the line, as listed by getLines()
+    */
+   public void remove(int index) {
+      this._lines.remove(index);
+   }//end remove
+
+   public List<Line> getLines() { return Collections.unmodifiableList(this._lines); }
+
+   public int size() { return this._lines.size(); }
+
+   public boolean isEmpty() { return this._lines.isEmpty(); }
+
+   public void clear() { this._lines.clear(); }
+}//end Cart
@@ -0,0 +1,250 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a bounded set of physical connections to the database so
+ * that many sessions can run their queries concurrently from one process.
+ * Connections are opened lazily up to the maximum size and handed back to the
+ * idle queue when released.
+ *
+ */
+public class ConnectionPool {
+
+   // SQLState of the exception borrow() throws when it times out, the code
+   // the server itself uses for too_many_connections
+   public static final String TIMEOUT_SQL_STATE = "53300";
+
+   // connection settings used when the pool has to open a new connection
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // upper bound on the number of physical connections
+   private final int _maxSize;
+
+   // how long borrow() waits for a free connection before giving up
+   private final long _borrowTimeoutMillis;
+
+   // number of prepared statements cached per connection
+   private final int _statementCacheSize;
+
+   // one permit per connection that may be handed out
+   private final Semaphore _permits;
+
+   // connections that are open but not currently borrowed
+   private final BlockingQueue<PooledConnection> _idle;
+
+   // metrics
+   private final AtomicInteger _opened = new AtomicInteger();
+   private final AtomicInteger _active = new AtomicInteger();
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _totalWaitNanos = new AtomicLong();
+   private final AtomicLong _maxWaitNanos = new AtomicLong();
+
+   private volatile boolean _closed = false;
+
+   /**
+    * Told about every connection handed back, once its transaction is over
+    */
+   public interface ReleaseListener {
+      void released(PooledConnection conn);
+   }//end ReleaseListener
+
+   private volatile ReleaseListener _releaseListener = null;
+
+   /**
+    * Creates a new connection pool
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of physical connections
+    * @param borrowTimeoutMillis how long to wait for a free connection
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize, long borrowTimeoutMillis) {
+      if (maxSize <= 0)
+         throw new IllegalArgumentException("pool size must be positive: " + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = maxSize;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._statementCacheSize = Integer.getInteger("retail.statement.cache",
+                                                    PooledConnection.DEFAULT_STATEMENT_CACHE_SIZE);
+      this._permits = new Semaphore(maxSize, true);
+      this._idle = new LinkedBlockingQueue<PooledConnection>(maxSize);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the default timeout for one to
+    * become free.
+    *
+    * @return a pooled connection in autocommit mode
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public PooledConnection borrow() throws SQLException {
+      return borrow(this._borrowTimeoutMillis);
+   }//end borrow
+
+   /**
+    * Borrows a connection, waiting up to the given timeout for one to become
+    * free. Every borrowed connection must be handed back with release().
+    *
+    * @param timeoutMillis how long to wait for a free connection
+    * @return a connection in autocommit mode
+    * @throws java.sql.SQLException when the pool is exhausted or closed, or
+    *         a new connection could not be opened
+    */
+   public PooledConnection borrow(long timeoutMillis) throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      try{
+         if (!this._permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)){
+            this._timeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + timeoutMillis + " ms waiting for a database connection",
+                                   TIMEOUT_SQL_STATE);
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }//end try
+      recordWait(System.nanoTime() - start);
+
+      PooledConnection conn = this._idle.poll();
+      try{
+         if (conn != null && conn.isClosed()){
+            // closed while idle, e.g. by the server; counted as closed now
+            closeQuietly(conn);
+            conn = null;
+         }//end if
+         if (conn == null){
+            conn = new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd),
+                                        this._statementCacheSize);
+            this._opened.incrementAndGet();
+         }//end if
+      }catch (SQLException e){
+         this._permits.release();
+         throw e;
+      }//end try
+      this._active.incrementAndGet();
+      return conn;
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool. Any transaction left open
+    * by the borrower is rolled back; a connection that cannot be reset is
+    * closed instead of being reused.
+    *
+    * @param conn the connection returned by borrow()
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null)
+         return;
+      this._active.decrementAndGet();
+      boolean reusable = false;
+      try{
+         if (!this._closed && !conn.isClosed()){
+            if (!conn.getConnection().getAutoCommit()){
+               conn.getConnection().rollback();
+               conn.getConnection().setAutoCommit(true);
+            }//end if
+            reusable = true;
+         }//end if
+      }catch (SQLException e){
+         // broken connection, closed below
+      }//end try
+      try{
+         // once, before the connection can be borrowed again
+         tell(conn);
+      }finally{
+         if (!reusable || !this._idle.offer(conn))
+            closeQuietly(conn);
+         this._permits.release();
+      }//end try
+   }//end release
+
+   private void tell(PooledConnection conn) {
+      ReleaseListener listener = this._releaseListener;
+      if (listener != null)
+         listener.released(conn);
+   }//end tell
+
+   /**
+    * @param listener told about every connection released from now on, or
+    *        null for none
+    */
+   public void setReleaseListener(ReleaseListener listener) {
+      this._releaseListener = listener;
+   }//end setReleaseListener
+
+   /**
+    * Closes every idle connection and refuses further borrows. Connections
+    * still borrowed are closed as they are released.
+    */
+   public void close() {
+      this._closed = true;
+      PooledConnection conn;
+      while ((conn = this._idle.poll()) != null)
+         closeQuietly(conn);
+   }//end close
+
+   private void recordWait(long nanos) {
+      this._borrows.incrementAndGet();
+      this._totalWaitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = this._maxWaitNanos.get())){
+         if (this._maxWaitNanos.compareAndSet(max, nanos))
+            break;
+      }//end while
+   }//end recordWait
+
+   private void closeQuietly(PooledConnection conn) {
+      try{
+         conn.close();
+      }catch (SQLException e){
+         // ignored, the connection is gone either way.
+      }finally{
+         this._opened.decrementAndGet();
+      }//end try
+   }//end closeQuietly
+
+   public int getMaxSize() { return this._maxSize; }
+
+   // number of connections currently borrowed
+   public int getActiveCount() { return this._active.get(); }
+
+   // number of open connections waiting in the pool
+   public int getIdleCount() { return this._idle.size(); }
+
+   // number of physical connections currently open
+   public int getOpenCount() { return this._opened.get(); }
+
+   public long getBorrowCount() { return this._borrows.get(); }
+
+   public long getTimeoutCount() { return this._timeouts.get(); }
+
+   public double getAverageWaitMillis() {
+      long borrows = this._borrows.get();
+      return borrows == 0 ? 0.0 : this._totalWaitNanos.get() / 1e6 / borrows;
+   }
+
+   public double getMaxWaitMillis() { return this._maxWaitNanos.get() / 1e6; }
+
+   /**
+    * @return a one line summary of the pool metrics
+    */
+   public String stats() {
+      return String.format("pool size=%d active=%d idle=%d open=%d borrows=%d timeouts=%d avgWait=%.3fms maxWait=%.3fms",
+                           this._maxSize, getActiveCount(), getIdleCount(), getOpenCount(),
+                           getBorrowCount(), getTimeoutCount(), getAverageWaitMillis(), getMaxWaitMillis());
+   }//end stats
+}//end ConnectionPool
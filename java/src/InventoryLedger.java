@@ -0,0 +1,227 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the stock of every (storeID, productName) in one dense
+ * matrix of ints, a row per store and a column per distinct product, and
+ * is the authority on stock while it runs: taking units for an order is a
+ * compare-and-set on one cell, so "is there enough stock" never waits for
+ * the database or for a lock.
+ *
+ * Every change is also written to InventoryJournal in the same transaction
+ * as the order, update or supply request that caused it, and a background
+ * thread moves the journal into Product every flushMillis with
+ * flush_inventory_journal(), summed per product. Product therefore lags by
+ * at most one flush, and after a crash the journal rows left are exactly
+ * the changes Product is missing: load() applies them before reading.
+ *
+ * Only one process should run a ledger over a database, and stock should
+ * not be changed behind its back. Products added after the ledger was
+ * loaded have no cell; Retail falls back to the database for them.
+ *
+ */
+public class InventoryLedger {
+
+   public static final long DEFAULT_FLUSH_MILLIS = 200;
+
+   // cell value of a product the store does not sell
+   private static final int NOT_SOLD = -1;
+
+   private final Retail _esql;
+   private final Map<Integer, Integer> _rows;
+   private final Map<String, Integer> _columns;
+   private final int _width;
+   private final AtomicIntegerArray _units;
+
+   private final Thread _flusher;
+   private volatile boolean _closed = false;
+
+   // metrics
+   private final AtomicLong _taken = new AtomicLong();
+   private final AtomicLong _refused = new AtomicLong();
+   private final AtomicLong _flushes = new AtomicLong();
+   private final AtomicLong _flushedRows = new AtomicLong();
+
+   private InventoryLedger(Retail esql, Map<Integer, Integer> rows, Map<String, Integer> columns,
+                           AtomicIntegerArray units, final long flushMillis) {
+      this._esql = esql;
+      this._rows = rows;
+      this._columns = columns;
+      this._width = columns.size();
+      this._units = units;
+      this._flusher = new Thread(new Runnable() {
+         public void run() {
+            while (!InventoryLedger.this._closed) {
+               try {
+                  Thread.sleep(flushMillis);
+                  flush();
+               } catch (InterruptedException e) {
+                  return;
+               } catch (SQLException e) {
+                  System.err.println("Inventory flush failed, retrying: " + e.getMessage());
+               }//end try
+            }//end while
+         }
+      }, "inventory-flush");
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+   }//end InventoryLedger
+
+   /**
+    * Applies the journal left by an earlier run, reads Product into a new
+    * ledger and starts its flusher
+    *
+    * @param esql the Retail instance to query through
+    * @param flushMillis how often the journal is moved into Product
+    * @return the new ledger
+    * @throws java.sql.SQLException when failed to replay or read the stock
+    */
+   public static InventoryLedger load(Retail esql, long flushMillis) throws SQLException {
+      int replayed = esql.executeQueryForInt("SELECT flush_inventory_journal()", 0);
+      if (replayed > 0)
+         System.err.println("Replayed the inventory journal into " + replayed + " products");
+      QueryResult rows = esql.executeQueryForResult("SELECT storeID, productName, numberOfUnits FROM Product");
+      int n = rows.getRowCount();
+      Map<Integer, Integer> stores = new HashMap<Integer, Integer>();
+      Map<String, Integer> products = new HashMap<String, Integer>();
+      int[] storeIDs = rows.getIntColumn(0);
+      for (int row = 0; row < n; ++row) {
+         if (!stores.containsKey(storeIDs[row]))
+            stores.put(storeIDs[row], stores.size());
+         String name = rows.getString(row, 1).trim();
+         if (!products.containsKey(name))
+            products.put(name, products.size());
+      }//end for
+      long cells = (long) stores.size() * products.size();
+      if (cells > Integer.MAX_VALUE)
+         throw new SQLException("Too many stores and products for one inventory matrix: " + cells);
+      int[] matrix = new int[(int) cells];
+      Arrays.fill(matrix, NOT_SOLD);
+      int[] units = rows.getIntColumn(2);
+      for (int row = 0; row < n; ++row)
+         matrix[stores.get(storeIDs[row]) * products.size() + products.get(rows.getString(row, 1).trim())] = units[row];
+      return new InventoryLedger(esql, stores, products, new AtomicIntegerArray(matrix), flushMillis);
+   }//end load
+
+   // the cell of a product of a store, -1 if it had none when loaded
+   private int cell(int storeID, String productName) {
+      Integer row = this._rows.get(storeID);
+      Integer column = this._columns.get(productName.trim());
+      if (row == null || column == null)
+         return -1;
+      return row * this._width + column;
+   }//end cell
+
+   /**
+    * @return whether the ledger has the product's stock; false for stores
+    *         and products added after it was loaded
+    */
+   public boolean covers(int storeID, String productName) {
+      int cell = cell(storeID, productName);
+      return cell >= 0 && this._units.get(cell) != NOT_SOLD;
+   }//end covers
+
+   /**
+    * @return the units in stock, or -1 if the store does not sell the
+    *         product (or the ledger does not cover it)
+    */
+   public int getUnits(int storeID, String productName) {
+      int cell = cell(storeID, productName);
+      return cell < 0 ? NOT_SOLD : this._units.get(cell);
+   }//end getUnits
+
+   /**
+    * Takes units off the stock if there are enough
+    *
+    * @return whether the units were taken
+    */
+   public boolean tryTake(int storeID, String productName, int units) {
+      int cell = cell(storeID, productName);
+      if (cell < 0)
+         return false;
+      while (true) {
+         int current = this._units.get(cell);
+         if (current == NOT_SOLD || current < units) {
+            this._refused.incrementAndGet();
+            return false;
+         }//end if
+         if (this._units.compareAndSet(cell, current, current - units)) {
+            this._taken.incrementAndGet();
+            return true;
+         }//end if
+      }//end while
+   }//end tryTake
+
+   /**
+    * Adds units to the stock, e.g. a restock or units given back after a
+    * failed order
+    */
+   public void add(int storeID, String productName, int units) {
+      int cell = cell(storeID, productName);
+      if (cell < 0)
+         return;
+      while (true) {
+         int current = this._units.get(cell);
+         if (current == NOT_SOLD || this._units.compareAndSet(cell, current, current + units))
+            return;
+      }//end while
+   }//end add
+
+   /**
+    * Sets the stock to a new level, e.g. while an update of it is being
+    * committed; orders meanwhile take from the new level, and a caller whose
+    * transaction fails add()s the difference back
+    *
+    * @return the level replaced, -1 if the ledger does not cover the product
+    */
+   public int set(int storeID, String productName, int units) {
+      int cell = cell(storeID, productName);
+      if (cell < 0)
+         return NOT_SOLD;
+      while (true) {
+         int current = this._units.get(cell);
+         if (current == NOT_SOLD || this._units.compareAndSet(cell, current, units))
+            return current;
+      }//end while
+   }//end set
+
+   /**
+    * Moves the committed journal rows into Product
+    *
+    * @return the number of products updated
+    */
+   public int flush() throws SQLException {
+      int flushed = this._esql.executeQueryForInt("SELECT flush_inventory_journal()", 0);
+      this._flushes.incrementAndGet();
+      this._flushedRows.addAndGet(flushed);
+      return flushed;
+   }//end flush
+
+   /**
+    * Stops the flusher and flushes the journal a last time
+    */
+   public void close() {
+      if (this._closed)
+         return;
+      this._closed = true;
+      this._flusher.interrupt();
+      try {
+         this._flusher.join();
+         flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (SQLException e) {
+         System.err.println("Final inventory flush failed, the journal is replayed on the next start: " + e.getMessage());
+      }//end try
+   }//end close
+
+   public String stats() {
+      return String.format("ledger stores=%d products=%d taken=%d refused=%d flushes=%d flushedProducts=%d",
+                           this._rows.size(), this._width, this._taken.get(), this._refused.get(),
+                           this._flushes.get(), this._flushedRows.get());
+   }//end stats
+}//end InventoryLedger
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies in a fixed-size log-linear histogram that
+ * many threads can update without locking. Every power of two is split into
+ * 16 linear buckets, so a reported percentile is within about 6% of the
+ * recorded value, from nanoseconds up to centuries, in 960 counters.
+ *
+ */
+public class LatencyHistogram {
+
+   // 2^SUB_BITS linear buckets per power of two
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _total = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one value, e.g. a latency in nanoseconds. Negative values are
+    * recorded as zero.
+    */
+   public void record(long value) {
+      if (value < 0)
+         value = 0;
+      this._counts.incrementAndGet(bucket(value));
+      this._count.incrementAndGet();
+      this._total.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end record
+
+   public long getCount() { return this._count.get(); }
+
+   public long getTotal() { return this._total.get(); }
+
+   public long getMax() { return this._max.get(); }
+
+   public double getMean() {
+      long count = this._count.get();
+      return count == 0 ? 0 : (double) this._total.get() / count;
+   }//end getMean
+
+   /**
+    * @param p the percentile as a fraction, e.g. 0.99
+    * @return the upper bound of the bucket holding the p-th value, capped
+    *         at the largest value recorded; 0 if nothing was recorded
+    */
+   public long getPercentile(double p) {
+      long count = this._count.get();
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(p * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank)
+            return Math.min(upperBound(i), this._max.get());
+      }//end for
+      return this._max.get();
+   }//end getPercentile
+
+   /**
+    * Adds the values recorded by another histogram to this one
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long n = other._counts.get(i);
+         if (n != 0)
+            this._counts.addAndGet(i, n);
+      }//end for
+      this._count.addAndGet(other._count.get());
+      this._total.addAndGet(other._total.get());
+      long value = other._max.get();
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }//end add
+
+   private static int bucket(long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int exp = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+      return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+   }//end bucket
+
+   private static long upperBound(int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+      long sub = bucket % SUB_COUNT;
+      long width = 1L << (exp - SUB_BITS);
+      return ((SUB_COUNT + sub) << (exp - SUB_BITS)) + width - 1;
+   }//end upperBound
+}//end LatencyHistogram
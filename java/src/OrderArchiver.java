@@ -0,0 +1,213 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class is the maintenance job of the monthly Orders partitions
+ * (create_tables.sql). A run
+ *
+ *    1. creates the partitions of the current month and the next
+ *       -ahead months, so new orders never land in the default partition,
+ *    2. detaches every month older than the -keep most recent ones with
+ *       detach_orders_partition(), which also takes its orders off the
+ *       order counts,
+ *    3. writes each detached month to <archive dir>/<partition>.csv.gz,
+ *       checks the row count and drops the table.
+ *
+ * A month detached by a run that failed before step 3 finished is found
+ * and archived by the next run; if its file was already written, the
+ * file's row count is checked and the table dropped. Schedule it daily,
+ * e.g. from cron with java/scripts/archive_orders.sh.
+ *
+ * Usage: OrderArchiver <dbname> <port> <user> [-ahead months] [-keep months] [-archive dir]
+ */
+public class OrderArchiver {
+
+   public static final int DEFAULT_MONTHS_AHEAD = 3;
+   public static final int DEFAULT_MONTHS_KEPT = 12;
+
+   // rows fetched per FETCH while archiving
+   private static final int FETCH_SIZE = 10000;
+
+   private static final String PARTITIONS =
+      "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+      "WHERE i.inhparent = CAST('orders' AS regclass) AND c.relname LIKE 'orders\\_y%' ORDER BY c.relname";
+   private static final String DETACHED =
+      "SELECT relname FROM pg_class WHERE relname LIKE 'orders\\_y%' AND relkind = 'r' AND NOT relispartition " +
+      "ORDER BY relname";
+   // the name of the oldest month kept, partition names sort by month
+   private static final String OLDEST_KEPT =
+      "SELECT to_char(date_trunc('month', LOCALTIMESTAMP) - CAST(? AS integer) * interval '1 month', " +
+      "'\"orders_y\"YYYY\"m\"MM')";
+
+   private final Retail _esql;
+   private final File _archiveDir;
+
+   public OrderArchiver(Retail esql, File archiveDir) {
+      this._esql = esql;
+      this._archiveDir = archiveDir;
+   }//end OrderArchiver
+
+   /**
+    * Creates the partitions of the current month and the months after it
+    *
+    * @param monthsAhead the months after the current one
+    * @return the number of months asked for
+    * @throws java.sql.SQLException when failed to create a partition
+    */
+   public int createPartitions(int monthsAhead) throws SQLException {
+      return this._esql.executeQueryForInt(
+         "SELECT create_orders_partitions(date_trunc('month', LOCALTIMESTAMP), " +
+         "date_trunc('month', LOCALTIMESTAMP) + CAST(? AS integer) * interval '1 month')", 0, monthsAhead);
+   }//end createPartitions
+
+   /**
+    * Detaches and archives every month older than the most recent ones,
+    * and archives months a failed run left detached
+    *
+    * @param monthsKept the months kept in Orders, the current one included
+    * @return the number of months archived
+    * @throws java.lang.Exception when failed to detach or archive a month;
+    *         months done before stay archived
+    */
+   public int archive(int monthsKept) throws Exception {
+      if (monthsKept < 1)
+         throw new IllegalArgumentException("at least the current month is kept: " + monthsKept);
+      String oldestKept = this._esql.executeQueryForString(OLDEST_KEPT, monthsKept - 1);
+      int archived = 0;
+      QueryResult leftover = this._esql.executeQueryForResult(DETACHED);
+      for (int row = 0; row < leftover.getRowCount(); ++row)
+         archived += archivePartition(leftover.getString(row, 0), -1);
+      QueryResult partitions = this._esql.executeQueryForResult(PARTITIONS);
+      for (int row = 0; row < partitions.getRowCount(); ++row) {
+         String part = partitions.getString(row, 0);
+         if (part.compareTo(oldestKept) >= 0)
+            break;
+         long detached = Long.parseLong(this._esql.executeQueryForString("SELECT detach_orders_partition(?)", part).trim());
+         archived += archivePartition(part, detached);
+      }//end for
+      return archived;
+   }//end archive
+
+   /**
+    * Writes a detached month to a gzipped csv file and drops it once the
+    * file holds every row
+    *
+    * @param part the detached partition
+    * @param expected its number of rows, -1 if not known
+    * @return 1
+    */
+   private int archivePartition(String part, long expected) throws Exception {
+      long start = System.nanoTime();
+      File file = new File(this._archiveDir, part + ".csv.gz");
+      File partial = new File(this._archiveDir, part + ".csv.gz.partial");
+      if (file.exists()) {
+         // a run that failed between the rename and the DROP
+         long archivedRows = countRows(file);
+         int tableRows = this._esql.executeQueryForInt("SELECT count(*) FROM " + part, 0);
+         if (archivedRows != tableRows)
+            throw new IOException(file + " holds " + archivedRows + " of the " + tableRows + " orders of " + part
+                                  + ", move it away to archive " + part + " again");
+         this._esql.executeUpdate("DROP TABLE " + part);
+         System.out.printf("%-22s %10d orders  %7.2f s  %s (already written)%n", part, tableRows,
+                           (System.nanoTime() - start) / 1e9, file);
+         return 1;
+      }//end if
+
+      int rows = 0;
+      PooledConnection conn = this._esql.getPool().borrow();
+      try {
+         // pg73jdbc3 ignores the fetch size and reads a whole result into
+         // memory, so the month is read through a cursor, FETCH_SIZE rows at
+         // a time, inside one transaction
+         conn.getConnection().setAutoCommit(false);
+         Statement stmt = conn.getConnection().createStatement();
+         OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16));
+         try {
+            stmt.execute("DECLARE archived NO SCROLL CURSOR FOR SELECT * FROM " + part + " ORDER BY orderNumber");
+            ResultPrinter printer = new ResultPrinter(ResultPrinter.Format.CSV, FETCH_SIZE);
+            int fetched;
+            do {
+               ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM archived");
+               fetched = printer.print(rs, out, null, rows == 0);
+               rs.close();
+               rows += fetched;
+            } while (fetched == FETCH_SIZE);
+            stmt.execute("CLOSE archived");
+         } finally {
+            out.close();
+            stmt.close();
+         }//end try
+         conn.getConnection().commit();
+      } finally {
+         this._esql.getPool().release(conn);
+      }//end try
+      if (expected >= 0 && rows != expected)
+         throw new SQLException(part + ": archived " + rows + " of " + expected + " orders, the table is kept");
+      if (!partial.renameTo(file))
+         throw new IOException("Could not rename " + partial + " to " + file);
+
+      this._esql.executeUpdate("DROP TABLE " + part);
+      System.out.printf("%-22s %10d orders  %7.2f s  %s%n", part, rows, (System.nanoTime() - start) / 1e9, file);
+      return 1;
+   }//end archivePartition
+
+   // the rows of an archive file, its header not counted
+   private static long countRows(File file) throws IOException {
+      InputStream in = new BufferedInputStream(new GZIPInputStream(new FileInputStream(file)), 1 << 16);
+      try {
+         long lines = 0;
+         boolean quoted = false;
+         for (int c; (c = in.read()) >= 0; ) {
+            if (c == '"')
+               quoted = !quoted;
+            else if (c == '\n' && !quoted)
+               ++lines;
+         }//end for
+         return Math.max(0, lines - 1);
+      } finally {
+         in.close();
+      }//end try
+   }//end countRows
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderArchiver <dbname> <port> <user> [-ahead months] [-keep months] [-archive dir]");
+         return;
+      }//end if
+      int ahead = DEFAULT_MONTHS_AHEAD, keep = DEFAULT_MONTHS_KEPT;
+      File archiveDir = new File("archive");
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         if (args[i].equals("-ahead"))
+            ahead = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-keep"))
+            keep = Integer.parseInt(args[i + 1]);
+         else if (args[i].equals("-archive"))
+            archiveDir = new File(args[i + 1]);
+         else
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+      }//end for
+      if (!archiveDir.isDirectory() && !archiveDir.mkdirs())
+         throw new IOException("Could not create " + archiveDir);
+
+      Class.forName("org.postgresql.Driver");
+      Retail esql = new Retail(args[0], args[1], args[2], "", 1);
+      try {
+         OrderArchiver archiver = new OrderArchiver(esql, archiveDir);
+         System.out.println("Partitions of the next " + archiver.createPartitions(ahead) + " months are in place");
+         System.out.println(archiver.archive(keep) + " months archived to " + archiveDir);
+      } finally {
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end OrderArchiver
@@ -0,0 +1,347 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class places single-product orders in groups: callers put their
+ * order on a bounded queue and get a future, and one writer thread drains
+ * the queue in micro-batches of up to batchSize orders, waiting at most
+ * lingerMillis for a batch to fill. Each batch is one transaction, so the
+ * orders of a batch share one commit (and one WAL flush):
+ *
+ *    1. the Product rows of the batch are locked in key order and read,
+ *    2. the orders are accepted in arrival order while stock lasts,
+ *    3. one UPDATE takes the accepted units per (storeID, productName),
+ *    4. one JDBC batch inserts the accepted orders with order numbers
+ *       drawn from the Orders sequence in one query.
+ *
+ * A future completes with the orderNumber once its batch committed, with
+ * -1 if the store does not sell the product or ran out, or exceptionally
+ * if its order failed. A batch that fails on its data, e.g. an unknown
+ * customerID, is split in halves that are placed on their own, down to
+ * single orders, so only the bad order fails. When the queue is full,
+ * submit() blocks, which slows producers down to the rate the database
+ * commits at.
+ *
+ */
+public class OrderIngestor {
+
+   public static final int DEFAULT_BATCH_SIZE = 256;
+   public static final long DEFAULT_LINGER_MILLIS = 2;
+   public static final int DEFAULT_QUEUE_CAPACITY = 16384;
+
+   private static final String INSERT_ORDER =
+      "INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "VALUES (?, ?, ?, ?, ?, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp))";
+   private static final String NEXT_ORDER_NUMBERS =
+      "SELECT nextval(pg_get_serial_sequence('orders', 'ordernumber')) FROM generate_series(1, ?)";
+
+   // one order waiting for its batch
+   private static final class Request {
+      final int customerID;
+      final int storeID;
+      final String productName;
+      final int units;
+      final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+      Request(int customerID, int storeID, String productName, int units) {
+         this.customerID = customerID;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+      }
+
+      String key() { return this.storeID + "/" + this.productName; }
+   }//end Request
+
+   // marks the end of the queue after close()
+   private static final Request CLOSED = new Request(0, 0, "", 0);
+
+   private final Retail _esql;
+   private final int _batchSize;
+   private final long _lingerNanos;
+   private final BlockingQueue<Request> _queue;
+   private final Thread _writer;
+   private volatile boolean _closed = false;
+
+   // metrics
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _orders = new AtomicLong();
+   private final AtomicLong _rejected = new AtomicLong();
+   private final AtomicLong _failed = new AtomicLong();
+
+   /**
+    * Creates the ingestor and starts its writer thread
+    *
+    * @param esql the Retail instance whose pool the writer borrows from
+    * @param batchSize the most orders committed together
+    * @param lingerMillis how long a batch waits to fill after its first order
+    * @param queueCapacity the most orders waiting for the writer
+    */
+   public OrderIngestor(Retail esql, int batchSize, long lingerMillis, int queueCapacity) {
+      if (batchSize <= 0)
+         throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+      this._esql = esql;
+      this._batchSize = batchSize;
+      this._lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+      this._queue = new ArrayBlockingQueue<Request>(queueCapacity);
+      this._writer = new Thread(new Runnable() {
+         public void run() {
+            drain();
+         }
+      }, "order-ingestor");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end OrderIngestor
+
+   /**
+    * Queues an order, blocking while the queue is full
+    *
+    * @return the future orderNumber, -1 if the order was rejected
+    */
+   public CompletableFuture<Integer> submit(int customerID, int storeID, String productName, int units) {
+      if (units <= 0)
+         throw new IllegalArgumentException("units must be positive: " + units);
+      Request request = new Request(customerID, storeID, productName.trim(), units);
+      if (this._closed) {
+         request.result.completeExceptionally(new IllegalStateException("The order ingestor is closed"));
+         return request.result;
+      }//end if
+      try {
+         this._queue.put(request);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         request.result.completeExceptionally(e);
+         return request.result;
+      }//end try
+      // close() may have come between the check and the put, and the writer
+      // may already be gone: whoever takes the request off the queue fails it
+      if (this._closed && this._queue.remove(request))
+         request.result.completeExceptionally(new IllegalStateException("The order ingestor is closed"));
+      return request.result;
+   }//end submit
+
+   /**
+    * Commits the orders already queued and stops the writer
+    */
+   public void close() {
+      if (this._closed)
+         return;
+      this._closed = true;
+      try {
+         this._queue.put(CLOSED);
+         this._writer.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   public long getBatchCount() { return this._batches.get(); }
+
+   public long getOrderCount() { return this._orders.get(); }
+
+   public long getFailedCount() { return this._failed.get(); }
+
+   public String stats() {
+      long batches = this._batches.get();
+      return String.format("ingestor batches=%d orders=%d rejected=%d failed=%d avgBatch=%.1f queued=%d", batches,
+                           this._orders.get(), this._rejected.get(), this._failed.get(),
+                           batches == 0 ? 0.0 : (double) this._orders.get() / batches, this._queue.size());
+   }//end stats
+
+   // the writer thread: one batch at a time until CLOSED is taken
+   private void drain() {
+      List<Request> batch = new ArrayList<Request>(this._batchSize);
+      boolean closing = false;
+      while (!closing) {
+         try {
+            Request first = this._queue.take();
+            if (first == CLOSED)
+               break;
+            batch.add(first);
+            long deadline = System.nanoTime() + this._lingerNanos;
+            while (batch.size() < this._batchSize) {
+               long wait = deadline - System.nanoTime();
+               Request next = wait > 0 ? this._queue.poll(wait, TimeUnit.NANOSECONDS) : this._queue.poll();
+               if (next == null)
+                  break;
+               if (next == CLOSED) {
+                  closing = true;
+                  break;
+               }//end if
+               batch.add(next);
+            }//end while
+         } catch (InterruptedException e) {
+            closing = true;
+         }//end try
+         if (!batch.isEmpty()) {
+            commit(batch);
+            batch.clear();
+         }//end if
+      }//end while
+      // orders that raced with close()
+      for (Request late; (late = this._queue.poll()) != null; )
+         if (late != CLOSED)
+            late.result.completeExceptionally(new IllegalStateException("The order ingestor is closed"));
+   }//end drain
+
+   // places one batch and completes its futures, splitting it on failure
+   private void commit(List<Request> batch) {
+      int[] orderNumbers;
+      try {
+         orderNumbers = place(batch);
+      } catch (Exception e) {
+         if (batch.size() > 1 && isDataError(e)) {
+            int half = batch.size() / 2;
+            commit(new ArrayList<Request>(batch.subList(0, half)));
+            commit(new ArrayList<Request>(batch.subList(half, batch.size())));
+            return;
+         }//end if
+         this._failed.addAndGet(batch.size());
+         for (Request request : batch)
+            request.result.completeExceptionally(e);
+         return;
+      }//end try
+
+      ProductCatalog catalog = this._esql.getLoadedCatalog();
+      this._batches.incrementAndGet();
+      for (int i = 0; i < batch.size(); ++i) {
+         Request request = batch.get(i);
+         if (orderNumbers[i] < 0) {
+            this._rejected.incrementAndGet();
+         } else {
+            this._orders.incrementAndGet();
+            if (catalog != null)
+               catalog.adjustUnits(request.storeID, request.productName, -request.units);
+         }//end if
+         request.result.complete(orderNumbers[i]);
+      }//end for
+   }//end commit
+
+   // whether a failed batch may succeed without some of its orders: not
+   // when the pool timed out or the connection broke
+   private static boolean isDataError(Exception e) {
+      if (!(e instanceof SQLException))
+         return false;
+      String state = ((SQLException) e).getSQLState();
+      return state == null || !(state.equals(ConnectionPool.TIMEOUT_SQL_STATE) || state.startsWith("08"));
+   }//end isDataError
+
+   /**
+    * Runs the transaction of one batch
+    *
+    * @param batch the orders in arrival order
+    * @return the orderNumber of each order, -1 for rejected ones
+    */
+   private int[] place(List<Request> batch) throws SQLException {
+      // distinct keys in lock order
+      Map<String, Request> byKey = new HashMap<String, Request>();
+      for (Request request : batch)
+         if (!byKey.containsKey(request.key()))
+            byKey.put(request.key(), request);
+      List<Request> keys = new ArrayList<Request>(byKey.values());
+      Collections.sort(keys, new Comparator<Request>() {
+         public int compare(Request a, Request b) {
+            if (a.storeID != b.storeID)
+               return a.storeID < b.storeID ? -1 : 1;
+            return a.productName.compareTo(b.productName);
+         }
+      });
+      Object[] keyParams = new Object[keys.size() * 2];
+      for (int i = 0; i < keys.size(); ++i) {
+         keyParams[i * 2] = keys.get(i).storeID;
+         keyParams[i * 2 + 1] = keys.get(i).productName;
+      }//end for
+
+      int[] orderNumbers = new int[batch.size()];
+      // units taken per key
+      Map<String, Integer> taken = new HashMap<String, Integer>();
+      PooledConnection conn = this._esql.getPool().borrow();
+      try {
+         conn.getConnection().setAutoCommit(false);
+         try {
+            QueryResult stock = this._esql.executeQueryForResult(conn, Retail.cartLockQuery(keys.size()), keyParams);
+            Map<String, Integer> left = new HashMap<String, Integer>();
+            for (int row = 0; row < stock.getRowCount(); ++row)
+               left.put(stock.getInt(row, 0) + "/" + stock.getString(row, 1).trim(), stock.getInt(row, 2));
+
+            // accept in arrival order while stock lasts
+            int accepted = 0;
+            for (int i = 0; i < batch.size(); ++i) {
+               Request request = batch.get(i);
+               Integer units = left.get(request.key());
+               if (units == null || units < request.units) {
+                  orderNumbers[i] = -1;
+                  continue;
+               }//end if
+               left.put(request.key(), units - request.units);
+               Integer sum = taken.get(request.key());
+               taken.put(request.key(), (sum == null ? 0 : sum) + request.units);
+               orderNumbers[i] = 0;
+               ++accepted;
+            }//end for
+            if (accepted == 0) {
+               conn.getConnection().rollback();
+               return orderNumbers;
+            }//end if
+
+            Object[] valueParams = new Object[taken.size() * 3];
+            int v = 0;
+            for (Request key : keys) {
+               Integer units = taken.get(key.key());
+               if (units == null)
+                  continue;
+               valueParams[v++] = key.storeID;
+               valueParams[v++] = key.productName;
+               valueParams[v++] = units;
+            }//end for
+            int updated = this._esql.executeUpdate(conn, Retail.cartUpdateQuery(taken.size()), valueParams);
+            if (updated != taken.size())
+               throw new SQLException("Stock of " + (taken.size() - updated) + " products changed while locked");
+
+            QueryResult numbers = this._esql.executeQueryForResult(conn, NEXT_ORDER_NUMBERS, accepted);
+            PreparedStatement insert = this._esql.prepare(conn, INSERT_ORDER);
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+               int next = 0;
+               for (int i = 0; i < batch.size(); ++i) {
+                  if (orderNumbers[i] < 0)
+                     continue;
+                  Request request = batch.get(i);
+                  orderNumbers[i] = numbers.getInt(next++, 0);
+                  insert.setInt(1, orderNumbers[i]);
+                  insert.setInt(2, request.customerID);
+                  insert.setInt(3, request.storeID);
+                  insert.setString(4, request.productName);
+                  insert.setInt(5, request.units);
+                  insert.addBatch();
+               }//end for
+               insert.executeBatch();
+               failed = false;
+            } finally {
+               insert.clearBatch();
+               this._esql.getMetrics().recordStatement(INSERT_ORDER, System.nanoTime() - start,
+                                                       failed ? 0 : accepted, failed);
+            }//end try
+            conn.getConnection().commit();
+            return orderNumbers;
+         } catch (SQLException e) {
+            conn.getConnection().rollback();
+            throw e;
+         }//end try
+      } finally {
+         this._esql.getPool().release(conn);
+      }//end try
+   }//end place
+}//end OrderIngestor
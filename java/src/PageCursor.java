@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * This class turns the sort key of the last row of a page into an opaque
+ * token and back. The next page is then read with "key after the token's
+ * key" through an index instead of OFFSET, so page 1000 costs what page 1
+ * does, and a page does not shift when rows are added before it.
+ *
+ * A token is the URL-safe Base64 of the listing's name and the key values,
+ * so it can go in a query string and is refused by other listings.
+ *
+ */
+public final class PageCursor {
+
+   public static final int DEFAULT_PAGE_SIZE = 20;
+   public static final int MAX_PAGE_SIZE = 500;
+
+   // between the fields of a token, never part of a key value
+   private static final char SEPARATOR = '\u001f';
+
+   private PageCursor() {
+   }
+
+   /**
+    * @param listing the name of the listing, e.g. orders
+    * @param key the sort key values of the last row of the page
+    * @return the token of the next page
+    */
+   public static String encode(String listing, String... key) {
+      StringBuilder text = new StringBuilder(listing);
+      for (String value : key)
+         text.append(SEPARATOR).append(value);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(text.toString().getBytes(StandardCharsets.UTF_8));
+   }//end encode
+
+   /**
+    * @param listing the name of the listing the token must belong to
+    * @param token a token from encode()
+    * @param length the number of key values the listing's key has
+    * @return the key values
+    * @throws IllegalArgumentException if the token is malformed or belongs
+    *         to another listing
+    */
+   public static String[] decode(String listing, String token, int length) {
+      String text;
+      try {
+         text = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+         throw new IllegalArgumentException("Not a page cursor: " + token);
+      }//end try
+      String[] fields = text.split(String.valueOf(SEPARATOR), -1);
+      if (fields.length != length + 1 || !fields[0].equals(listing))
+         throw new IllegalArgumentException("Not a cursor of the " + listing + " pages: " + token);
+      String[] key = new String[length];
+      System.arraycopy(fields, 1, key, 0, length);
+      return key;
+   }//end decode
+
+   /**
+    * @return the page size, checked against MAX_PAGE_SIZE
+    * @throws IllegalArgumentException if it is out of range
+    */
+   public static int checkPageSize(int pageSize) {
+      if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE)
+         throw new IllegalArgumentException("page size must be between 1 and " + MAX_PAGE_SIZE + ": " + pageSize);
+      return pageSize;
+   }//end checkPageSize
+}//end PageCursor
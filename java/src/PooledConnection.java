@@ -0,0 +1,115 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class wraps a physical connection held by the ConnectionPool together
+ * with a cache of the prepared statements issued on it. Statements are keyed
+ * by their SQL text, so every call with the same statement shape reuses one
+ * statement object.
+ *
+ * With the bundled pg73jdbc3.jar this saves client-side work only. That
+ * driver substitutes the bound values into the SQL text and sends a plain
+ * query, so the server still parses and plans every execution. A driver
+ * that prepares on the server (pgjdbc 9.4 and later, after prepareThreshold
+ * executions) would reuse the server's plan through this same cache.
+ * StatementCacheBenchmark measures what the cache saves with the driver in
+ * use.
+ *
+ */
+public class PooledConnection {
+
+   // default number of prepared statements cached per connection
+   public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+   // the physical connection
+   private final Connection _connection;
+
+   // maximum number of cached statements before the least recently used is closed
+   private final int _cacheSize;
+
+   // SQL text -> prepared statement, kept in access order for LRU eviction
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // cache metrics
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * Creates a new pooled connection
+    *
+    * @param connection the physical connection
+    * @param cacheSize the maximum number of cached statements
+    */
+   public PooledConnection(Connection connection, int cacheSize) {
+      this._connection = connection;
+      this._cacheSize = cacheSize;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end PooledConnection
+
+   /**
+    * @return the physical connection
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * Returns the prepared statement for the given SQL text, preparing it on
+    * first use. The returned statement stays owned by the cache and must not
+    * be closed by the caller.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return the cached prepared statement
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null){
+         this._hits++;
+         return stmt;
+      }//end if
+      this._misses++;
+      stmt = this._connection.prepareStatement(sql);
+      this._statements.put(sql, stmt);
+      if (this._statements.size() > this._cacheSize){
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+         closeQuietly(eldest.next().getValue());
+         eldest.remove();
+      }//end if
+      return stmt;
+   }//end prepare
+
+   public long getCacheHits() { return this._hits; }
+
+   public long getCacheMisses() { return this._misses; }
+
+   public int getCachedStatementCount() { return this._statements.size(); }
+
+   public boolean isClosed() throws SQLException {
+      return this._connection.isClosed();
+   }//end isClosed
+
+   /**
+    * Closes every cached statement and the physical connection.
+    *
+    * @throws java.sql.SQLException when the connection could not be closed
+    */
+   public void close() throws SQLException {
+      for (PreparedStatement stmt : this._statements.values())
+         closeQuietly(stmt);
+      this._statements.clear();
+      this._connection.close();
+   }//end close
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try{
+         stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+}//end PooledConnection
@@ -0,0 +1,279 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class keeps the Product table in memory: the distinct product names,
+ * interned and sorted for prefix search, and for every store the products it
+ * sells with their stock and price. Product selection and listing are served
+ * from here instead of going to the database.
+ *
+ * Products are identified by their position in the sorted name list (the
+ * product id). Each store keeps its product ids sorted, so a lookup is one
+ * binary search and a listing comes out in name order.
+ *
+ */
+public class ProductCatalog {
+
+   // reads one product back after an update, shared with PlanRegressionCheck
+   static final String REFRESH_QUERY = "SELECT numberOfUnits, pricePerUnit FROM Product WHERE storeID = ? AND productName = ?";
+
+   // the order of the product ids: case-insensitive, ties broken by case
+   private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+      public int compare(String a, String b) {
+         int c = a.compareToIgnoreCase(b);
+         return c != 0 ? c : a.compareTo(b);
+      }
+   };
+
+   // distinct product names sorted case-insensitively, trimmed and interned
+   private final String[] _names;
+   private final String[] _lowerNames;
+
+   // trimmed name -> product id
+   private final Map<String, Integer> _ids;
+
+   // storeID -> products of that store
+   private final Map<Integer, StoreProducts> _stores;
+
+   /**
+    * The products one store sells, parallel arrays sorted by product id.
+    */
+   private static final class StoreProducts {
+      final int[] productIDs;
+      final AtomicIntegerArray units;
+      final double[] prices;
+
+      StoreProducts(int[] productIDs, int[] units, double[] prices) {
+         this.productIDs = productIDs;
+         this.units = new AtomicIntegerArray(units);
+         this.prices = prices;
+      }
+
+      int find(int productID) {
+         return Arrays.binarySearch(this.productIDs, productID);
+      }
+   }//end StoreProducts
+
+   /**
+    * Loads the whole Product table into a new catalog
+    *
+    * @param esql the Retail instance to query through
+    * @return the new catalog
+    * @throws java.sql.SQLException when failed to read the products
+    */
+   public static ProductCatalog load(Retail esql) throws SQLException {
+      QueryResult rows = esql.executeQueryForResult(
+         "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM Product ORDER BY storeID");
+      return new ProductCatalog(rows.getRowCount(), rows.getIntColumn(0), rows.getStringColumn(1),
+                                rows.getIntColumn(2), rows.getDoubleColumn(3));
+   }//end load
+
+   /**
+    * Builds a catalog from Product rows ordered by storeID
+    *
+    * @param n the number of rows
+    * @param storeIDs the storeID of each row
+    * @param productNames the productName of each row
+    * @param units the numberOfUnits of each row
+    * @param prices the pricePerUnit of each row
+    */
+   public ProductCatalog(int n, int[] storeIDs, String[] productNames, int[] units, double[] prices) {
+      // intern the names
+      Map<String, String> canonical = new HashMap<String, String>();
+      String[] trimmed = new String[n];
+      for (int i = 0; i < n; ++i) {
+         String name = productNames[i].trim();
+         String known = canonical.get(name);
+         if (known == null) {
+            canonical.put(name, name);
+            known = name;
+         }//end if
+         trimmed[i] = known;
+      }//end for
+
+      this._names = canonical.keySet().toArray(new String[canonical.size()]);
+      Arrays.sort(this._names, NAME_ORDER);
+      this._lowerNames = new String[this._names.length];
+      this._ids = new HashMap<String, Integer>(this._names.length * 2);
+      for (int id = 0; id < this._names.length; ++id) {
+         this._lowerNames[id] = this._names[id].toLowerCase();
+         this._ids.put(this._names[id], id);
+      }//end for
+
+      // one StoreProducts per run of rows with the same storeID
+      this._stores = new HashMap<Integer, StoreProducts>();
+      int start = 0;
+      while (start < n) {
+         int end = start;
+         while (end < n && storeIDs[end] == storeIDs[start])
+            ++end;
+         long[] keyed = new long[end - start];
+         for (int i = start; i < end; ++i)
+            keyed[i - start] = ((long) this._ids.get(trimmed[i]) << 32) | i;
+         Arrays.sort(keyed);
+         int[] ids = new int[keyed.length];
+         int[] storeUnits = new int[keyed.length];
+         double[] storePrices = new double[keyed.length];
+         for (int k = 0; k < keyed.length; ++k) {
+            int row = (int) keyed[k];
+            ids[k] = (int) (keyed[k] >>> 32);
+            storeUnits[k] = units[row];
+            storePrices[k] = prices[row];
+         }//end for
+         this._stores.put(storeIDs[start], new StoreProducts(ids, storeUnits, storePrices));
+         start = end;
+      }//end while
+   }//end ProductCatalog
+
+   // number of distinct product names
+   public int productCount() { return this._names.length; }
+
+   public String getName(int productID) { return this._names[productID]; }
+
+   /**
+    * @param productName the product name, surrounding blanks are ignored
+    * @return the product id, or -1 if no store sells the product
+    */
+   public int getProductID(String productName) {
+      Integer id = this._ids.get(productName.trim());
+      return id == null ? -1 : id;
+   }//end getProductID
+
+   /**
+    * Finds every product whose name starts with the given prefix, ignoring
+    * case.
+    *
+    * @param prefix the prefix to look for
+    * @return the matching product ids in name order
+    */
+   public int[] findByPrefix(String prefix) {
+      String lower = prefix.trim().toLowerCase();
+      int lo = 0, hi = this._lowerNames.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (this._lowerNames[mid].compareTo(lower) < 0)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }//end while
+      int end = lo;
+      while (end < this._lowerNames.length && this._lowerNames[end].startsWith(lower))
+         ++end;
+      int[] found = new int[end - lo];
+      for (int i = lo; i < end; ++i)
+         found[i - lo] = i;
+      return found;
+   }//end findByPrefix
+
+   public boolean hasStore(int storeID) { return this._stores.containsKey(storeID); }
+
+   /**
+    * @param storeID the store to list
+    * @return the product ids the store sells, in name order
+    */
+   public int[] listStore(int storeID) {
+      StoreProducts store = this._stores.get(storeID);
+      return store == null ? new int[0] : store.productIDs.clone();
+   }//end listStore
+
+   /**
+    * Lists one page of a store's products in name order, starting after a
+    * name, which need not be in the catalog any more.
+    *
+    * @param storeID the store to list
+    * @param after the name the page starts after, null for the first page
+    * @param limit the most products returned
+    * @return the product ids of the page
+    */
+   public int[] listStore(int storeID, String after, int limit) {
+      StoreProducts store = this._stores.get(storeID);
+      if (store == null)
+         return new int[0];
+      int start = 0;
+      if (after != null) {
+         // the first product id whose name sorts after the given one
+         int first = Arrays.binarySearch(this._names, after.trim(), NAME_ORDER);
+         first = first >= 0 ? first + 1 : -first - 1;
+         start = Arrays.binarySearch(store.productIDs, first);
+         if (start < 0)
+            start = -start - 1;
+      }//end if
+      return Arrays.copyOfRange(store.productIDs, start, Math.max(start, Math.min(store.productIDs.length, start + limit)));
+   }//end listStore
+
+   /**
+    * @return the units of the product left at the store, or -1 if the store
+    *         does not sell it
+    */
+   public int getUnits(int storeID, int productID) {
+      StoreProducts store = this._stores.get(storeID);
+      int pos = store == null ? -1 : store.find(productID);
+      return pos < 0 ? -1 : store.units.get(pos);
+   }//end getUnits
+
+   /**
+    * @return the price of the product at the store, or -1 if the store does
+    *         not sell it
+    */
+   public double getPrice(int storeID, int productID) {
+      StoreProducts store = this._stores.get(storeID);
+      int pos = store == null ? -1 : store.find(productID);
+      if (pos < 0)
+         return -1;
+      synchronized (store) {
+         return store.prices[pos];
+      }
+   }//end getPrice
+
+   /**
+    * Applies a change in stock the caller has already written to Product.
+    *
+    * @return false if the store does not sell the product
+    */
+   public boolean adjustUnits(int storeID, String productName, int delta) {
+      StoreProducts store = this._stores.get(storeID);
+      int pos = store == null ? -1 : store.find(getProductID(productName));
+      if (pos < 0)
+         return false;
+      store.units.addAndGet(pos, delta);
+      return true;
+   }//end adjustUnits
+
+   /**
+    * Re-reads one Product row after it was changed, e.g. by a manager.
+    *
+    * @param esql the Retail instance to query through
+    * @param storeID the store of the changed row
+    * @param productName the product of the changed row
+    * @return false if the row is not in the catalog; the caller should
+    *         reload the whole catalog
+    * @throws java.sql.SQLException when failed to read the row
+    */
+   public boolean refresh(Retail esql, int storeID, String productName) throws SQLException {
+      StoreProducts store = this._stores.get(storeID);
+      int pos = store == null ? -1 : store.find(getProductID(productName));
+      if (pos < 0)
+         return false;
+      QueryResult row = esql.executeQueryForResult(REFRESH_QUERY, storeID, productName);
+      if (row.isEmpty())
+         return false;
+      synchronized (store) {
+         store.units.set(pos, row.getInt(0, 0));
+         store.prices[pos] = row.getDouble(0, 1);
+      }
+      return true;
+   }//end refresh
+
+   /**
+    * Formats a price the way Postgres prints a float, without a trailing .0
+    */
+   public static String formatPrice(double price) {
+      if (price == Math.rint(price) && Math.abs(price) < 1e15)
+         return Long.toString((long) price);
+      return Double.toString(price);
+   }//end formatPrice
+}//end ProductCatalog
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class collects call counts, row counts, error counts and latency
+ * histograms per statement shape and per menu operation. Recording is lock
+ * free: a map lookup and a few atomic increments per call.
+ *
+ * A statement's shape is its SQL text with whitespace collapsed and
+ * repeated VALUES tuples or IN lists folded into one, so statements built
+ * for a variable number of rows (cart orders, bulk loads) share one entry.
+ *
+ */
+public class QueryMetrics {
+
+   // bound on the number of distinct shapes, later shapes are counted together
+   public static final int MAX_SHAPES = 1000;
+   public static final String OTHER_SHAPE = "(other statements)";
+
+   // a parenthesised group with at most one level of nesting, e.g. (?, CAST(? AS int))
+   private static final String GROUP = "\\((?:[^()]|\\([^()]*\\))*\\)";
+   private static final Pattern REPEATED_GROUPS = Pattern.compile("(" + GROUP + ")(?:\\s*,\\s*\\1)+");
+   private static final Pattern REPEATED_PARAMS = Pattern.compile("\\?(?:\\s*,\\s*\\?){2,}");
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+   /**
+    * Counters of one statement shape or operation.
+    */
+   public static final class Stats {
+      private final String _name;
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final AtomicLong _rows = new AtomicLong();
+      private final AtomicLong _errors = new AtomicLong();
+      // System.nanoTime() when a slow execution was last explained
+      final AtomicLong lastExplained = new AtomicLong(Long.MIN_VALUE);
+
+      Stats(String name) {
+         this._name = name;
+      }
+
+      public String getName() { return this._name; }
+
+      public LatencyHistogram getLatency() { return this._latency; }
+
+      public long getCalls() { return this._latency.getCount(); }
+
+      public long getRows() { return this._rows.get(); }
+
+      public long getErrors() { return this._errors.get(); }
+   }//end Stats
+
+   private final ConcurrentHashMap<String, Stats> _statements = new ConcurrentHashMap<String, Stats>();
+   private final ConcurrentHashMap<String, Stats> _operations = new ConcurrentHashMap<String, Stats>();
+
+   // raw SQL text -> shape, so the regular expressions run once per text
+   private final ConcurrentHashMap<String, String> _shapes = new ConcurrentHashMap<String, String>();
+
+   /**
+    * @param sql the SQL text with ? placeholders
+    * @return the shape the statement is counted under
+    */
+   public static String shape(String sql) {
+      String shape = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+      shape = REPEATED_PARAMS.matcher(shape).replaceAll("?, ...");
+      Matcher groups = REPEATED_GROUPS.matcher(shape);
+      return groups.replaceAll("$1, ...");
+   }//end shape
+
+   /**
+    * Records one execution of a statement
+    *
+    * @param sql the SQL text that was executed
+    * @param nanos how long it took
+    * @param rows the rows it returned or changed
+    * @param failed whether it threw
+    * @return the counters of the statement's shape
+    */
+   public Stats recordStatement(String sql, long nanos, long rows, boolean failed) {
+      String shape = this._shapes.get(sql);
+      if (shape == null) {
+         shape = shape(sql);
+         if (this._shapes.size() < MAX_SHAPES * 10)
+            this._shapes.put(sql, shape);
+      }//end if
+      Stats stats = stats(this._statements, shape);
+      record(stats, nanos, rows, failed);
+      return stats;
+   }//end recordStatement
+
+   /**
+    * Records one run of a menu operation
+    *
+    * @param name the operation, e.g. placeOrder
+    * @param nanos how long it took
+    * @param failed whether it threw
+    */
+   public void recordOperation(String name, long nanos, boolean failed) {
+      record(stats(this._operations, name), nanos, 0, failed);
+   }//end recordOperation
+
+   private static Stats stats(ConcurrentHashMap<String, Stats> map, String name) {
+      Stats stats = map.get(name);
+      if (stats == null) {
+         if (map.size() >= MAX_SHAPES)
+            name = OTHER_SHAPE;
+         map.putIfAbsent(name, new Stats(name));
+         stats = map.get(name);
+      }//end if
+      return stats;
+   }//end stats
+
+   private static void record(Stats stats, long nanos, long rows, boolean failed) {
+      stats._latency.record(nanos);
+      if (rows > 0)
+         stats._rows.addAndGet(rows);
+      if (failed)
+         stats._errors.incrementAndGet();
+   }//end record
+
+   public List<Stats> getStatements() { return sorted(this._statements); }
+
+   public List<Stats> getOperations() { return sorted(this._operations); }
+
+   // by total time spent, largest first
+   private static List<Stats> sorted(Map<String, Stats> map) {
+      List<Stats> list = new ArrayList<Stats>(map.values());
+      Collections.sort(list, new Comparator<Stats>() {
+         public int compare(Stats a, Stats b) {
+            long ta = a._latency.getTotal(), tb = b._latency.getTotal();
+            return ta == tb ? a._name.compareTo(b._name) : (ta > tb ? -1 : 1);
+         }
+      });
+      return list;
+   }//end sorted
+
+   /**
+    * @return a readable table of every operation and statement shape,
+    *         the most expensive first
+    */
+   public String snapshot() {
+      StringBuilder out = new StringBuilder();
+      table(out, "operation", getOperations());
+      out.append('\n');
+      table(out, "statement", getStatements());
+      return out.toString();
+   }//end snapshot
+
+   private static void table(StringBuilder out, String kind, List<Stats> rows) {
+      out.append(String.format("%10s %8s %10s %10s %10s %10s %10s %10s  %s%n", "calls", "errors", "rows", "total ms",
+                               "mean ms", "p50 ms", "p99 ms", "max ms", kind));
+      for (Stats s : rows) {
+         LatencyHistogram h = s._latency;
+         out.append(String.format("%10d %8d %10d %10.1f %10.3f %10.3f %10.3f %10.3f  %s%n", h.getCount(), s.getErrors(),
+                                  s.getRows(), h.getTotal() / 1e6, h.getMean() / 1e6, h.getPercentile(0.50) / 1e6,
+                                  h.getPercentile(0.99) / 1e6, h.getMax() / 1e6, s._name));
+      }//end for
+   }//end table
+
+   /**
+    * Writes every counter in the Prometheus text format, so a local
+    * scraper can collect them
+    */
+   public void writePrometheus(Appendable out) throws IOException {
+      prometheus(out, "retail_operation", "operation", getOperations());
+      prometheus(out, "retail_statement", "statement", getStatements());
+   }//end writePrometheus
+
+   private static void prometheus(Appendable out, String metric, String label, List<Stats> rows) throws IOException {
+      // every line of a metric family has to be written together
+      out.append("# TYPE ").append(metric).append("_seconds summary\n");
+      for (Stats s : rows) {
+         LatencyHistogram h = s._latency;
+         for (double q : new double[] { 0.5, 0.9, 0.99 })
+            sample(out, metric + "_seconds", label, s, ",quantile=\"" + q + "\"", h.getPercentile(q) / 1e9);
+         sample(out, metric + "_seconds_sum", label, s, "", h.getTotal() / 1e9);
+         sample(out, metric + "_seconds_count", label, s, "", h.getCount());
+      }//end for
+      out.append("# TYPE ").append(metric).append("_rows_total counter\n");
+      for (Stats s : rows)
+         sample(out, metric + "_rows_total", label, s, "", s.getRows());
+      out.append("# TYPE ").append(metric).append("_errors_total counter\n");
+      for (Stats s : rows)
+         sample(out, metric + "_errors_total", label, s, "", s.getErrors());
+   }//end prometheus
+
+   private static void sample(Appendable out, String metric, String label, Stats s, String extra, double value)
+         throws IOException {
+      String name = s._name.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", " ");
+      out.append(metric).append('{').append(label).append("=\"").append(name).append('"').append(extra)
+         .append("} ").append(value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value))
+         .append('\n');
+   }//end sample
+}//end QueryMetrics
@@ -0,0 +1,245 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * This class holds a query result column by column with one primitive array
+ * per numeric column: int[] for integer columns, long[] for bigint columns
+ * (e.g. COUNT(*)) and double[] for floating point and decimal columns. Other
+ * columns are kept as String[]. Reading a number back never boxes or parses.
+ *
+ */
+public class QueryResult {
+
+   // initial capacity of the column arrays
+   private static final int INITIAL_CAPACITY = 16;
+
+   private final String[] _names;
+
+   // one of int[], long[], double[] or String[] per column
+   private final Object[] _columns;
+
+   // null flags per column, only allocated for numeric columns that saw a null
+   private final boolean[][] _nulls;
+
+   private int _rowCount = 0;
+
+   private QueryResult(String[] names, Object[] columns) {
+      this._names = names;
+      this._columns = columns;
+      this._nulls = new boolean[names.length][];
+   }//end QueryResult
+
+   /**
+    * Reads every remaining row of the result set into a new QueryResult.
+    * The result set is not closed.
+    *
+    * @param rs the result set, positioned before the first row
+    * @return the columnar copy of the result
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public static QueryResult read(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] names = new String[numCol];
+      Object[] columns = new Object[numCol];
+      for (int i = 0; i < numCol; ++i) {
+         names[i] = rsmd.getColumnName(i + 1);
+         columns[i] = newColumn(rsmd.getColumnType(i + 1), INITIAL_CAPACITY);
+      }//end for
+
+      QueryResult result = new QueryResult(names, columns);
+      while (rs.next()) {
+         int row = result._rowCount;
+         if (row == result.capacity())
+            result.grow();
+         for (int i = 0; i < numCol; ++i) {
+            Object column = columns[i];
+            if (column instanceof int[])
+               ((int[]) column)[row] = rs.getInt(i + 1);
+            else if (column instanceof long[])
+               ((long[]) column)[row] = rs.getLong(i + 1);
+            else if (column instanceof double[])
+               ((double[]) column)[row] = rs.getDouble(i + 1);
+            else
+               ((String[]) column)[row] = rs.getString(i + 1);
+            if (!(column instanceof String[]) && rs.wasNull())
+               result.markNull(i, row);
+         }//end for
+         result._rowCount++;
+      }//end while
+      return result;
+   }//end read
+
+   private static Object newColumn(int sqlType, int capacity) {
+      switch (sqlType) {
+         case Types.INTEGER:
+         case Types.SMALLINT:
+         case Types.TINYINT:
+            return new int[capacity];
+         case Types.BIGINT:
+            return new long[capacity];
+         case Types.DOUBLE:
+         case Types.FLOAT:
+         case Types.REAL:
+         case Types.NUMERIC:
+         case Types.DECIMAL:
+            return new double[capacity];
+         default:
+            return new String[capacity];
+      }//end switch
+   }//end newColumn
+
+   private int capacity() {
+      Object column = this._columns.length > 0 ? this._columns[0] : null;
+      if (column == null)
+         return Integer.MAX_VALUE;
+      if (column instanceof int[]) return ((int[]) column).length;
+      if (column instanceof long[]) return ((long[]) column).length;
+      if (column instanceof double[]) return ((double[]) column).length;
+      return ((String[]) column).length;
+   }//end capacity
+
+   private void grow() {
+      int capacity = capacity() * 2;
+      for (int i = 0; i < this._columns.length; ++i) {
+         Object column = this._columns[i];
+         if (column instanceof int[])
+            this._columns[i] = Arrays.copyOf((int[]) column, capacity);
+         else if (column instanceof long[])
+            this._columns[i] = Arrays.copyOf((long[]) column, capacity);
+         else if (column instanceof double[])
+            this._columns[i] = Arrays.copyOf((double[]) column, capacity);
+         else
+            this._columns[i] = Arrays.copyOf((String[]) column, capacity);
+         if (this._nulls[i] != null)
+            this._nulls[i] = Arrays.copyOf(this._nulls[i], capacity);
+      }//end for
+   }//end grow
+
+   private void markNull(int col, int row) {
+      if (this._nulls[col] == null)
+         this._nulls[col] = new boolean[capacity()];
+      this._nulls[col][row] = true;
+   }//end markNull
+
+   /**
+    * @return a copy whose column arrays are its own, e.g. for a cache that
+    *         hands results out through the backing-array getters
+    */
+   public QueryResult copy() {
+      int capacity = Math.max(1, this._rowCount);
+      Object[] columns = new Object[this._columns.length];
+      for (int i = 0; i < columns.length; ++i) {
+         Object column = this._columns[i];
+         if (column instanceof int[])
+            columns[i] = Arrays.copyOf((int[]) column, capacity);
+         else if (column instanceof long[])
+            columns[i] = Arrays.copyOf((long[]) column, capacity);
+         else if (column instanceof double[])
+            columns[i] = Arrays.copyOf((double[]) column, capacity);
+         else
+            columns[i] = Arrays.copyOf((String[]) column, capacity);
+      }//end for
+      QueryResult copy = new QueryResult(this._names, columns);
+      for (int i = 0; i < columns.length; ++i)
+         if (this._nulls[i] != null)
+            copy._nulls[i] = Arrays.copyOf(this._nulls[i], capacity);
+      copy._rowCount = this._rowCount;
+      return copy;
+   }//end copy
+
+   public int getRowCount() { return this._rowCount; }
+
+   public int getColumnCount() { return this._names.length; }
+
+   public String getColumnName(int col) { return this._names[col]; }
+
+   public boolean isEmpty() { return this._rowCount == 0; }
+
+   public boolean isNull(int row, int col) {
+      checkRow(row);
+      if (this._columns[col] instanceof String[])
+         return ((String[]) this._columns[col])[row] == null;
+      return this._nulls[col] != null && this._nulls[col][row];
+   }//end isNull
+
+   /**
+    * @return the value at (row, col) as an int; decimals are truncated
+    */
+   public int getInt(int row, int col) {
+      checkRow(row);
+      Object column = this._columns[col];
+      if (column instanceof int[]) return ((int[]) column)[row];
+      if (column instanceof long[]) return (int) ((long[]) column)[row];
+      if (column instanceof double[]) return (int) ((double[]) column)[row];
+      return Integer.parseInt(((String[]) column)[row].trim());
+   }//end getInt
+
+   public long getLong(int row, int col) {
+      checkRow(row);
+      Object column = this._columns[col];
+      if (column instanceof int[]) return ((int[]) column)[row];
+      if (column instanceof long[]) return ((long[]) column)[row];
+      if (column instanceof double[]) return (long) ((double[]) column)[row];
+      return Long.parseLong(((String[]) column)[row].trim());
+   }//end getLong
+
+   public double getDouble(int row, int col) {
+      checkRow(row);
+      Object column = this._columns[col];
+      if (column instanceof int[]) return ((int[]) column)[row];
+      if (column instanceof long[]) return ((long[]) column)[row];
+      if (column instanceof double[]) return ((double[]) column)[row];
+      return Double.parseDouble(((String[]) column)[row].trim());
+   }//end getDouble
+
+   public String getString(int row, int col) {
+      checkRow(row);
+      Object column = this._columns[col];
+      if (column instanceof String[]) return ((String[]) column)[row];
+      if (isNull(row, col)) return null;
+      if (column instanceof int[]) return Integer.toString(((int[]) column)[row]);
+      if (column instanceof long[]) return Long.toString(((long[]) column)[row]);
+      return Double.toString(((double[]) column)[row]);
+   }//end getString
+
+   /**
+    * Returns the backing array of an integer column. Only the first
+    * getRowCount() entries are valid.
+    */
+   public int[] getIntColumn(int col) {
+      return (int[]) this._columns[col];
+   }//end getIntColumn
+
+   /**
+    * Returns the backing array of a bigint column. Only the first
+    * getRowCount() entries are valid.
+    */
+   public long[] getLongColumn(int col) {
+      return (long[]) this._columns[col];
+   }//end getLongColumn
+
+   /**
+    * Returns the backing array of a floating point or decimal column. Only
+    * the first getRowCount() entries are valid.
+    */
+   public double[] getDoubleColumn(int col) {
+      return (double[]) this._columns[col];
+   }//end getDoubleColumn
+
+   /**
+    * Returns the backing array of a text column. Only the first
+    * getRowCount() entries are valid.
+    */
+   public String[] getStringColumn(int col) {
+      return (String[]) this._columns[col];
+   }//end getStringColumn
+
+   private void checkRow(int row) {
+      if (row < 0 || row >= this._rowCount)
+         throw new IndexOutOfBoundsException("row " + row + " of " + this._rowCount);
+   }//end checkRow
+}//end QueryResult
@@ -0,0 +1,582 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class keeps the results of recent reads, keyed by the statement with
+ * its whitespace collapsed and the values bound to it, so a repeated read is
+ * answered without a round trip. It holds at most maxEntries results and
+ * about maxBytes of them, and evicts the least recently used first.
+ *
+ * Every entry knows the tables its statement reads. A statement that writes
+ * (INSERT, UPDATE or DELETE, also inside a WITH, or a function of
+ * create_tables.sql that writes) drops the entries that read a table it
+ * writes, or a table a trigger maintains from it: a write to Orders also
+ * drops what read the order counts and the sales rollups. The tables stay
+ * uncacheable until the connection that wrote is released, after its
+ * transaction committed or rolled back, and are dropped once more then, so
+ * a read that saw the rows from before the commit is never put back. A
+ * statement of another kind (DDL, TRUNCATE) drops everything.
+ *
+ * Only statements that read known tables and no clock, sequence or lock are
+ * cached. Writes by other processes are not seen; maxAgeMillis bounds how
+ * long a result can miss them.
+ *
+ */
+public class ResultCache implements ConnectionPool.ReleaseListener {
+
+   public static final int DEFAULT_MAX_ENTRIES = 10000;
+   public static final long DEFAULT_MAX_BYTES = 32L << 20;
+   public static final long DEFAULT_MAX_AGE_MILLIS = 60000;
+
+   // bound on the number of statements whose analysis is kept
+   private static final int MAX_STATEMENTS = 1000;
+
+   // the tables of create_tables.sql, lower case
+   private static final String[] TABLES = {
+      "users", "store", "product", "warehouse", "orders", "productsupplyrequests", "productupdates",
+      "storeproductordercounts", "storecustomerordercounts", "saleshourly", "salesdaily", "inventoryjournal"
+   };
+   private static final Map<String, Integer> TABLE_INDEX = new HashMap<String, Integer>();
+   static {
+      for (int t = 0; t < TABLES.length; ++t)
+         TABLE_INDEX.put(TABLES[t], t);
+   }
+
+   // the tables the triggers of a table write with it
+   private static final Map<String, String[]> MAINTAINED = new HashMap<String, String[]>();
+   // the tables the functions of create_tables.sql write
+   private static final Map<String, String[]> FUNCTION_WRITES = new HashMap<String, String[]>();
+   static {
+      String[] counts = { "storeproductordercounts", "storecustomerordercounts" };
+      String[] sales = { "saleshourly", "salesdaily" };
+      MAINTAINED.put("orders", new String[] {
+         "storeproductordercounts", "storecustomerordercounts", "saleshourly", "salesdaily" });
+      FUNCTION_WRITES.put("add_order_count", counts);
+      FUNCTION_WRITES.put("rebuild_order_counts", counts);
+      FUNCTION_WRITES.put("add_sales", sales);
+      FUNCTION_WRITES.put("rebuild_sales_rollups", sales);
+      FUNCTION_WRITES.put("create_orders_partition", new String[] { "orders" });
+      FUNCTION_WRITES.put("create_orders_partitions", new String[] { "orders" });
+      FUNCTION_WRITES.put("detach_orders_partition", new String[] { "orders" });
+      FUNCTION_WRITES.put("flush_inventory_journal", new String[] { "product", "inventoryjournal" });
+   }
+
+   private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+   private static final Pattern TABLE_NAMES = Pattern.compile(
+      "\\b(" + String.join("|", TABLES) + ")\\b", Pattern.CASE_INSENSITIVE);
+   // the target of every INSERT, UPDATE or DELETE, not FOR UPDATE or ON CONFLICT DO UPDATE
+   private static final Pattern WRITE_TARGETS = Pattern.compile(
+      "(?:\\bINSERT\\s+INTO|\\bDELETE\\s+FROM|(?<!FOR\\s)(?<!KEY\\s)(?<!DO\\s)\\bUPDATE)\\s+(?:ONLY\\s+)?(\\w+)",
+      Pattern.CASE_INSENSITIVE);
+   private static final Pattern FUNCTION_CALLS = Pattern.compile("\\b(\\w+)\\s*\\(");
+   // statements that change nothing unless they contain a write
+   private static final Pattern READ_OR_DML = Pattern.compile(
+      "^\\s*(SELECT|WITH|VALUES|INSERT|UPDATE|DELETE|EXPLAIN|SHOW|SET|BEGIN|START|COMMIT|ROLLBACK|ANALYZE)\\b",
+      Pattern.CASE_INSENSITIVE);
+   // results that depend on more than the tables
+   private static final Pattern VOLATILE = Pattern.compile(
+      "\\b(CURRENT_DATE|CURRENT_TIME|CURRENT_TIMESTAMP|LOCALTIME|LOCALTIMESTAMP|now|clock_timestamp|" +
+      "statement_timestamp|timeofday|nextval|currval|setval|random|pg_\\w+)\\b|\\bFOR\\s+(NO\\s+KEY\\s+|KEY\\s+)?(UPDATE|SHARE)\\b",
+      Pattern.CASE_INSENSITIVE);
+   private static final Pattern READ = Pattern.compile("^\\s*(SELECT|WITH|VALUES)\\b", Pattern.CASE_INSENSITIVE);
+   // the functions, types and keywords before a parenthesis that only read
+   private static final Set<String> READ_ONLY_CALLS = new HashSet<String>(Arrays.asList(
+      "select", "from", "join", "where", "and", "or", "not", "in", "exists", "any", "all", "as", "values", "over",
+      "filter", "using", "on", "by", "cast", "coalesce", "nullif", "greatest", "least", "count", "sum", "min", "max",
+      "avg", "round", "floor", "ceil", "abs", "sqrt", "date_trunc", "extract", "to_char", "lower", "upper", "trim",
+      "length", "generate_series", "numeric", "decimal", "char", "varchar", "calculate_distance"));
+
+   // what a statement reads and writes
+   private static final class Statement {
+      final String text;
+      // indexes of the tables read, null if the results are not cached
+      final int[] reads;
+      // indexes of the tables written, null for every table
+      final int[] writes;
+
+      Statement(String text, int[] reads, int[] writes) {
+         this.text = text;
+         this.reads = reads;
+         this.writes = writes;
+      }
+   }//end Statement
+
+   private static final int[] NOTHING = new int[0];
+
+   /**
+    * The key of a cacheable read: its statement, the values bound to it and
+    * what else shapes the cached value, e.g. the print format.
+    */
+   public static final class Key {
+      final Statement statement;
+      private final Object[] _params;
+      private final Object _variant;
+      private final int _hash;
+
+      Key(Statement statement, Object[] params, Object variant) {
+         this.statement = statement;
+         this._params = params.clone();
+         this._variant = variant;
+         this._hash = (statement.text.hashCode() * 31 + Arrays.hashCode(this._params)) * 31
+                      + (variant == null ? 0 : variant.hashCode());
+      }
+
+      @Override
+      public int hashCode() { return this._hash; }
+
+      @Override
+      public boolean equals(Object other) {
+         if (!(other instanceof Key))
+            return false;
+         Key key = (Key) other;
+         return this._hash == key._hash && this.statement.text.equals(key.statement.text)
+                && Arrays.equals(this._params, key._params)
+                && (this._variant == null ? key._variant == null : this._variant.equals(key._variant));
+      }
+   }//end Key
+
+   private static final class Entry {
+      final Key key;
+      final Object value;
+      final long bytes;
+      final long storedAt;
+
+      Entry(Key key, Object value, long bytes, long storedAt) {
+         this.key = key;
+         this.value = value;
+         this.bytes = bytes;
+         this.storedAt = storedAt;
+      }
+   }//end Entry
+
+   /**
+    * The output of executeQueryAndPrintResult, replayed on a hit.
+    */
+   public static final class Printed {
+      final byte[] bytes;
+      final int rows;
+      final String[] last;
+
+      Printed(byte[] bytes, int rows, String[] last) {
+         this.bytes = bytes;
+         this.rows = rows;
+         this.last = last;
+      }
+   }//end Printed
+
+   private final int _maxEntries;
+   private final long _maxBytes;
+   private final long _maxAgeMillis;
+
+   private final ConcurrentHashMap<String, Statement> _statements = new ConcurrentHashMap<String, Statement>();
+
+   // guarded by this: the entries in LRU order, the keys of the entries per
+   // table read, and per table the writes seen and the transactions open
+   private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+   private final List<Set<Key>> _readers = newSets(TABLES.length);
+   private final long[] _generations = new long[TABLES.length];
+   private final int[] _writers = new int[TABLES.length];
+   private final IdentityHashMap<PooledConnection, boolean[]> _writing = new IdentityHashMap<PooledConnection, boolean[]>();
+   private long _bytes = 0;
+
+   // metrics, guarded by this
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _stores = 0;
+   private long _stale = 0;
+   private long _evictions = 0;
+   private long _invalidations = 0;
+
+   /**
+    * @param maxEntries the most results kept
+    * @param maxBytes about the most bytes the results kept hold
+    * @param maxAgeMillis the age after which a result is read again, 0 for none
+    */
+   public ResultCache(int maxEntries, long maxBytes, long maxAgeMillis) {
+      if (maxEntries <= 0 || maxBytes <= 0)
+         throw new IllegalArgumentException("cache bounds must be positive: " + maxEntries + ", " + maxBytes);
+      this._maxEntries = maxEntries;
+      this._maxBytes = maxBytes;
+      this._maxAgeMillis = maxAgeMillis;
+   }//end ResultCache
+
+   private static List<Set<Key>> newSets(int n) {
+      List<Set<Key>> sets = new ArrayList<Set<Key>>(n);
+      for (int i = 0; i < n; ++i)
+         sets.add(new LinkedHashSet<Key>());
+      return sets;
+   }//end newSets
+
+   // analyses a statement once
+   private Statement analyse(String sql) {
+      Statement statement = this._statements.get(sql);
+      if (statement != null)
+         return statement;
+      String text = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+      int[] writes = writes(text);
+      int[] reads = null;
+      if (writes != null && writes.length == 0 && READ.matcher(text).find() && !VOLATILE.matcher(text).find()) {
+         boolean[] read = new boolean[TABLES.length];
+         Matcher m = TABLE_NAMES.matcher(text);
+         while (m.find())
+            read[TABLE_INDEX.get(m.group(1).toLowerCase())] = true;
+         reads = indexes(read);
+         if (reads.length == 0)
+            reads = null;
+      }//end if
+      statement = new Statement(text, reads, writes);
+      if (this._statements.size() >= MAX_STATEMENTS)
+         this._statements.clear();
+      this._statements.put(sql, statement);
+      return statement;
+   }//end analyse
+
+   // the tables a statement writes, null for every table
+   private static int[] writes(String text) {
+      if (!READ_OR_DML.matcher(text).find())
+         return null;
+      boolean[] written = new boolean[TABLES.length];
+      Matcher m = WRITE_TARGETS.matcher(text);
+      while (m.find()) {
+         if (!mark(written, m.group(1).toLowerCase()))
+            return null;
+      }//end while
+      m = FUNCTION_CALLS.matcher(text);
+      while (m.find()) {
+         String[] tables = FUNCTION_WRITES.get(m.group(1).toLowerCase());
+         if (tables != null)
+            for (String table : tables)
+               mark(written, table);
+      }//end while
+      return indexes(written);
+   }//end writes
+
+   // marks a table and those its triggers write, false if it is not known
+   private static boolean mark(boolean[] written, String table) {
+      Integer t = TABLE_INDEX.get(table);
+      if (t == null)
+         return false;
+      written[t] = true;
+      String[] maintained = MAINTAINED.get(table);
+      if (maintained != null)
+         for (String other : maintained)
+            written[TABLE_INDEX.get(other)] = true;
+      return true;
+   }//end mark
+
+   private static int[] indexes(boolean[] flags) {
+      int n = 0;
+      for (boolean flag : flags)
+         if (flag)
+            ++n;
+      if (n == 0)
+         return NOTHING;
+      int[] indexes = new int[n];
+      n = 0;
+      for (int t = 0; t < flags.length; ++t)
+         if (flags[t])
+            indexes[n++] = t;
+      return indexes;
+   }//end indexes
+
+   /**
+    * Whether running a statement once more changes nothing: it reads, writes
+    * no table and calls only functions known to read, so neither SELECT
+    * rebuild_order_counts() nor SELECT nextval(...) is.
+    *
+    * @param sql the statement
+    * @return true if it can safely be run again, e.g. to explain it
+    */
+   public static boolean isReadOnly(String sql) {
+      String text = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+      if (!READ.matcher(text).find() || VOLATILE.matcher(text).find())
+         return false;
+      int[] writes = writes(text);
+      if (writes == null || writes.length > 0)
+         return false;
+      Matcher m = FUNCTION_CALLS.matcher(text);
+      while (m.find()) {
+         String name = m.group(1).toLowerCase();
+         if (!READ_ONLY_CALLS.contains(name) && !TABLE_INDEX.containsKey(name))
+            return false;
+      }//end while
+      return true;
+   }//end isReadOnly
+
+   /**
+    * @param sql the statement
+    * @param params the values bound to it
+    * @param variant anything else the cached value depends on, may be null
+    * @return the key of the read, null if its results are not cached
+    */
+   public Key key(String sql, Object[] params, Object variant) {
+      Statement statement = analyse(sql);
+      return statement.reads == null ? null : new Key(statement, params, variant);
+   }//end key
+
+   /**
+    * @return the cached value of the read, null on a miss
+    */
+   public synchronized Object get(Key key) {
+      Entry entry = this._entries.get(key);
+      if (entry != null && this._maxAgeMillis > 0
+          && System.currentTimeMillis() - entry.storedAt > this._maxAgeMillis) {
+         remove(entry);
+         entry = null;
+      }//end if
+      if (entry == null) {
+         ++this._misses;
+         return null;
+      }//end if
+      ++this._hits;
+      return entry.value;
+   }//end get
+
+   /**
+    * Takes the state of the tables a read depends on, before it runs
+    *
+    * @return the stamp put() checks, -1 if a transaction is writing to one
+    *         of the tables
+    */
+   public synchronized long stamp(Key key) {
+      long stamp = 0;
+      for (int t : key.statement.reads) {
+         if (this._writers[t] > 0)
+            return -1;
+         stamp += this._generations[t];
+      }//end for
+      return stamp;
+   }//end stamp
+
+   /**
+    * Keeps the value of a read unless one of its tables was written since
+    * stamp() was taken, or is being written
+    *
+    * @param key the key of the read
+    * @param stamp stamp(key) from before the read ran
+    * @param value the result, handed to every hit: the caller copies
+    *        values that can be modified, on the way in and out
+    * @param bytes about the memory the result holds
+    */
+   public synchronized void put(Key key, long stamp, Object value, long bytes) {
+      if (stamp < 0 || stamp != stamp(key)) {
+         ++this._stale;
+         return;
+      }//end if
+      if (bytes > this._maxBytes / 8)
+         return;
+      Entry old = this._entries.get(key);
+      if (old != null)
+         remove(old);
+      Entry entry = new Entry(key, value, bytes, System.currentTimeMillis());
+      this._entries.put(key, entry);
+      for (int t : key.statement.reads)
+         this._readers.get(t).add(key);
+      this._bytes += bytes;
+      ++this._stores;
+      Iterator<Entry> eldest = this._entries.values().iterator();
+      while (this._entries.size() > this._maxEntries || this._bytes > this._maxBytes) {
+         Entry victim = eldest.next();
+         eldest.remove();
+         unlink(victim);
+         ++this._evictions;
+      }//end while
+   }//end put
+
+   private void remove(Entry entry) {
+      this._entries.remove(entry.key);
+      unlink(entry);
+   }//end remove
+
+   // takes an entry out of the per-table sets, once it left _entries
+   private void unlink(Entry entry) {
+      for (int t : entry.key.statement.reads)
+         this._readers.get(t).remove(entry.key);
+      this._bytes -= entry.bytes;
+   }//end unlink
+
+   // drops the entries that read a table and moves its generation on
+   private void invalidate(int t) {
+      ++this._generations[t];
+      Set<Key> keys = this._readers.get(t);
+      for (Key key : keys.toArray(new Key[keys.size()])) {
+         Entry entry = this._entries.remove(key);
+         if (entry != null) {
+            unlink(entry);
+            ++this._invalidations;
+         }//end if
+      }//end for
+   }//end invalidate
+
+   /**
+    * Called before a statement runs on a pooled connection. If it writes,
+    * the entries that read what it writes are dropped, and those tables are
+    * not cached again until the connection is released.
+    */
+   public void writing(PooledConnection conn, String sql) {
+      Statement statement = analyse(sql);
+      if (statement.writes != null && statement.writes.length == 0)
+         return;
+      synchronized (this) {
+         boolean[] written = this._writing.get(conn);
+         if (written == null) {
+            written = new boolean[TABLES.length];
+            this._writing.put(conn, written);
+         }//end if
+         for (int t = 0; t < TABLES.length; ++t) {
+            if (statement.writes != null && Arrays.binarySearch(statement.writes, t) < 0)
+               continue;
+            if (!written[t]) {
+               written[t] = true;
+               ++this._writers[t];
+            }//end if
+            invalidate(t);
+         }//end for
+      }//end synchronized
+   }//end writing
+
+   /**
+    * Called when a connection goes back to the pool: its transaction is
+    * over, so the tables it wrote are dropped once more and cached again.
+    */
+   public synchronized void released(PooledConnection conn) {
+      boolean[] written = this._writing.remove(conn);
+      if (written == null)
+         return;
+      for (int t = 0; t < TABLES.length; ++t) {
+         if (written[t]) {
+            --this._writers[t];
+            invalidate(t);
+         }//end if
+      }//end for
+   }//end released
+
+   /**
+    * Drops every result, e.g. after the database was changed behind the
+    * cache's back
+    */
+   public synchronized void clear() {
+      for (int t = 0; t < TABLES.length; ++t)
+         invalidate(t);
+   }//end clear
+
+   /**
+    * @return about the memory a result of executeQueryAndReturnResult holds
+    */
+   public static long weigh(List<List<String>> rows) {
+      long bytes = 64;
+      for (List<String> row : rows) {
+         bytes += 32;
+         for (String value : row)
+            bytes += value == null ? 8 : 48 + 2L * value.length();
+      }//end for
+      return bytes;
+   }//end weigh
+
+   /**
+    * @return about the memory a QueryResult holds, counting 24 bytes a cell
+    */
+   public static long weigh(QueryResult result) {
+      return 64 + 24L * result.getRowCount() * Math.max(1, result.getColumnCount());
+   }//end weigh
+
+   /**
+    * Copies what is written to a stream, up to a limit, so a printed result
+    * can be kept while it is streamed.
+    */
+   public static final class Recorder extends OutputStream {
+      private final OutputStream _out;
+      private final int _limit;
+      private ByteArrayOutputStream _copy = new ByteArrayOutputStream();
+
+      public Recorder(OutputStream out, int limit) {
+         this._out = out;
+         this._limit = limit;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         this._out.write(b);
+         copy(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         this._out.write(b, off, len);
+         copy(b, off, len);
+      }
+
+      private void copy(byte[] b, int off, int len) {
+         if (this._copy == null)
+            return;
+         if (this._copy.size() + len > this._limit)
+            this._copy = null;
+         else
+            this._copy.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+         this._out.flush();
+      }
+
+      /**
+       * @return what was written, null if it went over the limit
+       */
+      public byte[] getBytes() {
+         return this._copy == null ? null : this._copy.toByteArray();
+      }
+   }//end Recorder
+
+   /**
+    * @return the largest result put() keeps
+    */
+   public int getMaxResultBytes() {
+      return (int) Math.min(Integer.MAX_VALUE, this._maxBytes / 8);
+   }//end getMaxResultBytes
+
+   public synchronized long getHitCount() { return this._hits; }
+
+   public synchronized long getMissCount() { return this._misses; }
+
+   public synchronized String stats() {
+      long reads = this._hits + this._misses;
+      return String.format("cache entries=%d bytes=%d hits=%d misses=%d hitRate=%.1f%% stored=%d stale=%d " +
+                           "evicted=%d invalidated=%d", this._entries.size(), this._bytes, this._hits, this._misses,
+                           reads == 0 ? 0.0 : 100.0 * this._hits / reads, this._stores, this._stale,
+                           this._evictions, this._invalidations);
+   }//end stats
+
+   /**
+    * Writes the counters in the Prometheus text format
+    */
+   public synchronized void writePrometheus(Appendable out) throws IOException {
+      counter(out, "retail_cache_hits_total", this._hits);
+      counter(out, "retail_cache_misses_total", this._misses);
+      counter(out, "retail_cache_evictions_total", this._evictions);
+      counter(out, "retail_cache_invalidations_total", this._invalidations);
+      out.append("# TYPE retail_cache_entries gauge\nretail_cache_entries ").append(Integer.toString(this._entries.size()))
+         .append('\n');
+      out.append("# TYPE retail_cache_bytes gauge\nretail_cache_bytes ").append(Long.toString(this._bytes)).append('\n');
+   }//end writePrometheus
+
+   private static void counter(Appendable out, String metric, long value) throws IOException {
+      out.append("# TYPE ").append(metric).append(" counter\n").append(metric).append(' ')
+         .append(Long.toString(value)).append('\n');
+   }//end counter
+}//end ResultCache
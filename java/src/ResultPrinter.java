@@ -0,0 +1,231 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class streams a result set to an output stream through one large
+ * buffered writer, so printing costs a few big writes instead of one
+ * synchronized print per cell. Rows are written as they are fetched; only
+ * the aligned-table format holds rows back, and then at most one fetch
+ * window of them to measure the column widths.
+ *
+ * Whether the rows arrive a fetch window at a time is up to the driver:
+ * pg73jdbc3.jar ignores the fetch size and hands over a fully read result,
+ * see PrintFetchBenchmark.
+ *
+ */
+public class ResultPrinter {
+
+   public enum Format {
+      // columns padded to a common width
+      TABLE,
+      // tab separated, the format the console has always used
+      TSV,
+      // comma separated with RFC 4180 quoting
+      CSV
+   }
+
+   // default number of rows fetched per round trip
+   public static final int DEFAULT_FETCH_SIZE = 1000;
+
+   // size of the character buffer in front of the output stream
+   public static final int BUFFER_SIZE = 1 << 16;
+
+   // widest a TABLE column is padded to
+   private static final int MAX_COLUMN_WIDTH = 60;
+
+   private final Format _format;
+   private final int _fetchSize;
+
+   /**
+    * Creates a new printer
+    *
+    * @param format the output format
+    * @param fetchSize the number of rows fetched per round trip, also the
+    *        number of rows the TABLE format measures its widths on
+    */
+   public ResultPrinter(Format format, int fetchSize) {
+      this._format = format;
+      this._fetchSize = Math.max(1, fetchSize);
+   }//end ResultPrinter
+
+   public Format getFormat() { return this._format; }
+
+   public int getFetchSize() { return this._fetchSize; }
+
+   /**
+    * Writes every row of the result set to the output stream. The header is
+    * written only if there is at least one row. The stream is flushed but
+    * not closed.
+    *
+    * @param rs the result set, positioned before the first row
+    * @param out the stream to write to
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public int print(ResultSet rs, OutputStream out) throws SQLException {
+      return print(rs, out, null);
+   }//end print
+
+   /**
+    * Writes every row of the result set like print(rs, out) and keeps the
+    * values of the last row written, e.g. the key a next page starts after.
+    *
+    * @param rs the result set, positioned before the first row
+    * @param out the stream to write to
+    * @param last receives the values of the last row if not null, one per
+    *        column; left alone when there are no rows
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public int print(ResultSet rs, OutputStream out, String[] last) throws SQLException {
+      return print(rs, out, last, true);
+   }//end print
+
+   /**
+    * Writes every row of the result set like print(rs, out, last), with or
+    * without the header, e.g. to continue the output of an earlier FETCH.
+    *
+    * @param rs the result set, positioned before the first row
+    * @param out the stream to write to
+    * @param last receives the values of the last row if not null
+    * @param withHeader whether to write the header before the first row
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to read the result set
+    */
+   public int print(ResultSet rs, OutputStream out, String[] last, boolean withHeader) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      String[] header = new String[numCol];
+      for (int i = 0; i < numCol; ++i)
+         header[i] = rsmd.getColumnName(i + 1);
+
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+      int rowCount = 0;
+      try {
+         if (this._format == Format.TABLE) {
+            // measure the widths on the first fetch window
+            List<String[]> window = new ArrayList<String[]>();
+            while (window.size() < this._fetchSize && rs.next())
+               window.add(readRow(rs, numCol));
+            if (window.isEmpty())
+               return 0;
+            int[] widths = new int[numCol];
+            for (int i = 0; i < numCol; ++i)
+               widths[i] = Math.min(MAX_COLUMN_WIDTH, header[i].length());
+            for (String[] row : window)
+               for (int i = 0; i < numCol; ++i)
+                  widths[i] = Math.min(MAX_COLUMN_WIDTH, Math.max(widths[i], row[i].length()));
+
+            if (withHeader) {
+               writeTableRow(writer, header, widths);
+               for (int i = 0; i < numCol; ++i) {
+                  writer.write(i == 0 ? "" : "-+-");
+                  for (int w = 0; w < widths[i]; ++w)
+                     writer.write('-');
+               }//end for
+               writer.write('\n');
+            }//end if
+            for (String[] row : window)
+               writeTableRow(writer, row, widths);
+            rowCount = window.size();
+            String[] row = window.get(rowCount - 1);
+            window = null;
+            while (rs.next()) {
+               row = readRow(rs, numCol);
+               writeTableRow(writer, row, widths);
+               ++rowCount;
+            }//end while
+            if (last != null)
+               System.arraycopy(row, 0, last, 0, Math.min(numCol, last.length));
+         } else {
+            String[] row = new String[numCol];
+            while (rs.next()) {
+               if (rowCount == 0 && withHeader)
+                  writeDelimitedRow(writer, header);
+               for (int i = 0; i < numCol; ++i)
+                  row[i] = rs.getString(i + 1);
+               writeDelimitedRow(writer, row);
+               ++rowCount;
+            }//end while
+            if (last != null && rowCount > 0)
+               System.arraycopy(row, 0, last, 0, Math.min(numCol, last.length));
+         }//end if
+         return rowCount;
+      } catch (IOException e) {
+         throw new SQLException("Failed to write the result: " + e.getMessage());
+      } finally {
+         try {
+            writer.flush();
+         } catch (IOException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end print
+
+   private static String[] readRow(ResultSet rs, int numCol) throws SQLException {
+      String[] row = new String[numCol];
+      for (int i = 0; i < numCol; ++i) {
+         String value = rs.getString(i + 1);
+         row[i] = value == null ? "null" : value;
+      }//end for
+      return row;
+   }//end readRow
+
+   private static void writeTableRow(Writer writer, String[] row, int[] widths) throws IOException {
+      for (int i = 0; i < row.length; ++i) {
+         if (i > 0)
+            writer.write(" | ");
+         writer.write(row[i]);
+         for (int pad = row[i].length(); pad < widths[i]; ++pad)
+            writer.write(' ');
+      }//end for
+      writer.write('\n');
+   }//end writeTableRow
+
+   private void writeDelimitedRow(Writer writer, String[] row) throws IOException {
+      if (this._format == Format.TSV) {
+         // same layout as the original printer, trailing tab included
+         for (String value : row) {
+            writer.write(String.valueOf(value));
+            writer.write('\t');
+         }//end for
+      } else {
+         for (int i = 0; i < row.length; ++i) {
+            if (i > 0)
+               writer.write(',');
+            writeCsvValue(writer, row[i]);
+         }//end for
+      }//end if
+      writer.write('\n');
+   }//end writeDelimitedRow
+
+   private static void writeCsvValue(Writer writer, String value) throws IOException {
+      if (value == null)
+         return;
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote) {
+         writer.write(value);
+         return;
+      }//end if
+      writer.write('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"')
+            writer.write('"');
+         writer.write(c);
+      }//end for
+      writer.write('"');
+   }//end writeCsvValue
+}//end ResultPrinter
@@ -12,17 +12,40 @@
 
 
 import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.math.BigDecimal;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import java.lang.Math;
 import java.time.LocalDateTime; 
 import java.time.format.DateTimeFormatter;
@@ -34,17 +57,209 @@ import java.time.format.DateTimeFormatter;
  */
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // default number of physical connections kept by the pool
+   public static final int DEFAULT_POOL_SIZE = 8;
+
+   // default time a caller waits for a free connection
+   public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30000;
+
+   // radius in miles used by "stores within 30 miles"
+   public static final double STORE_RADIUS = 30;
+
+   // default age after which the in-memory store index is reloaded
+   public static final long DEFAULT_STORE_INDEX_TTL_MILLIS = 60000;
+
+   // default age after which the in-memory product catalog is reloaded
+   public static final long DEFAULT_CATALOG_TTL_MILLIS = 60000;
+
+   // largest number of products getProduct() lists as a numbered menu
+   public static final int PRODUCT_MENU_SIZE = 30;
+
+   // bounded pool of physical database connections shared by every session.
+   private ConnectionPool _pool = null;
+
+   // whether radius searches use the in-memory index or the SQL query
+   private final boolean _useStoreIndex = Boolean.parseBoolean (System.getProperty ("retail.storeIndex", "true"));
+
+   // authorization invalidation counters read by every Session, see
+   // invalidateAuthorization(). The epoch moves on any invalidation, the
+   // versions say whose cached authorization actually changed.
+   private final AtomicLong _authEpoch = new AtomicLong ();
+   private final AtomicLong _authAllVersion = new AtomicLong ();
+   private final ConcurrentHashMap<Integer, AtomicLong> _authVersions = new ConcurrentHashMap<Integer, AtomicLong> ();
+
+   // renders executeQueryAndPrintResult output, see setPrintFormat()
+   private volatile ResultPrinter _printer = new ResultPrinter (
+      ResultPrinter.Format.valueOf (System.getProperty ("retail.print.format", "TSV").toUpperCase ()),
+      Integer.getInteger ("retail.print.fetchSize", ResultPrinter.DEFAULT_FETCH_SIZE));
+
+   // in-memory grid over store coordinates, see getStoreIndex()
+   private volatile StoreIndex _storeIndex = null;
+   private volatile long _storeIndexLoadedAt = 0;
+   private final long _storeIndexTtlMillis = Long.getLong("retail.storeIndex.ttl", DEFAULT_STORE_INDEX_TTL_MILLIS);
+
+   // statements slower than this many milliseconds go to the slow query log,
+   // -1 turns the log off
+   public static final long DEFAULT_SLOW_QUERY_MILLIS = 500;
+
+   // a slow statement shape is explained at most this often
+   private static final long SLOW_QUERY_EXPLAIN_INTERVAL_NANOS = 60L * 1000000000L;
+
+   // per-statement and per-operation counters, see getMetrics()
+   private final QueryMetrics _metrics = new QueryMetrics ();
+
+   // slow query log: threshold, destination (-Dretail.slowQueryLog=<file>,
+   // stderr by default) and the thread that explains the statements
+   private final long _slowQueryNanos = Long.getLong ("retail.slowQueryMillis", DEFAULT_SLOW_QUERY_MILLIS) * 1000000L;
+   private final PrintStream _slowLogOut = openSlowLog (System.getProperty ("retail.slowQueryLog"));
+   private final ExecutorService _slowLog = new ThreadPoolExecutor (1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable> (16), new ThreadFactory () {
+         public Thread newThread (Runnable r) {
+            Thread thread = new Thread (r, "slow-query-log");
+            thread.setDaemon (true);
+            return thread;
+         }
+      }, new ThreadPoolExecutor.DiscardPolicy ());
+
+   // statements EXPLAIN accepts
+   private static final Pattern EXPLAINABLE = Pattern.compile ("^(SELECT|WITH|INSERT|UPDATE|DELETE|VALUES)\\b");
+
+   // group commit of single orders, see getOrderIngestor(). With
+   // -Dretail.ingest=true submitOrder goes through it.
+   private final boolean _useIngestor = Boolean.getBoolean ("retail.ingest");
+   private OrderIngestor _ingestor = null;
+
+   // authoritative in-memory stock, see getInventoryLedger(). With
+   // -Dretail.ledger=true orders, updates and restocks go through it.
+   private final boolean _useLedger = Boolean.getBoolean ("retail.ledger");
+   private InventoryLedger _ledger = null;
+
+   // results of recent reads, see getResultCache(). With -Dretail.cache=true
+   // the read helpers answer repeated reads from it.
+   private final ResultCache _cache = Boolean.getBoolean ("retail.cache") ? new ResultCache (
+      Integer.getInteger ("retail.cache.entries", ResultCache.DEFAULT_MAX_ENTRIES),
+      Long.getLong ("retail.cache.bytes", ResultCache.DEFAULT_MAX_BYTES),
+      Long.getLong ("retail.cache.ttl", ResultCache.DEFAULT_MAX_AGE_MILLIS)) : null;
+
+   // cached in place of a null value
+   private static final Object NULL_VALUE = new Object ();
+
+   // in-memory copy of the Product table, see getCatalog()
+   private volatile ProductCatalog _catalog = null;
+   private volatile long _catalogLoadedAt = 0;
+   private final long _catalogTtlMillis = Long.getLong("retail.catalog.ttl", DEFAULT_CATALOG_TTL_MILLIS);
+
+   // matches statements that add or remove Product rows. Updates of
+   // existing rows are applied to the catalog by refreshProduct().
+   private static final Pattern PRODUCT_ROWS_WRITE = Pattern.compile (
+      "^\\s*(INSERT\\s+INTO|DELETE\\s+FROM|TRUNCATE)\\s+product\\b", Pattern.CASE_INSENSITIVE);
+
+   // matches statements that write to the Store table
+   private static final Pattern STORE_WRITE = Pattern.compile (
+      "^\\s*(INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE)\\s+store\\b", Pattern.CASE_INSENSITIVE);
+
+   // stores within a radius of a user. The bounding box lets the planner use
+   // store_lat_long_idx before the exact distance check.
+   static final String STORES_WITHIN_RADIUS =
+      "SELECT S.storeID as Store_ID, S.name as Store_Name FROM Users U, Store S " +
+      "WHERE U.userID = ? " +
+      "AND S.latitude BETWEEN U.latitude - CAST(? AS decimal) AND U.latitude + CAST(? AS decimal) " +
+      "AND S.longitude BETWEEN U.longitude - CAST(? AS decimal) AND U.longitude + CAST(? AS decimal) " +
+      "AND calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude) < CAST(? AS decimal)";
+
+   // stores within a radius of a user that have enough units of a product,
+   // nearest first. product_stock_idx finds the stores that stock it.
+   static final String STORES_WITH_PRODUCT =
+      "SELECT S.storeID as Store_ID, S.name as Store_Name, " +
+      "ROUND(calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude), 2) as Distance, " +
+      "P.numberOfUnits FROM Users U, Store S, Product P " +
+      "WHERE U.userID = ? " +
+      "AND S.latitude BETWEEN U.latitude - CAST(? AS decimal) AND U.latitude + CAST(? AS decimal) " +
+      "AND S.longitude BETWEEN U.longitude - CAST(? AS decimal) AND U.longitude + CAST(? AS decimal) " +
+      "AND calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude) < CAST(? AS decimal) " +
+      "AND P.productName = ? AND P.storeID = S.storeID AND P.numberOfUnits >= ? " +
+      "ORDER BY calculate_distance(U.latitude, U.longitude, S.latitude, S.longitude), S.storeID";
+
+   // top 5 products and customers of a store, read from the order counts the
+   // orders_count trigger keeps in step with Orders
+   static final String TOP_PRODUCTS =
+      "SELECT C.productName, C.orderCount AS Number_of_Times_Ordered FROM StoreProductOrderCounts C " +
+      "WHERE C.storeID = ? ORDER BY C.orderCount DESC, C.productName LIMIT 5";
+   static final String TOP_CUSTOMERS =
+      "SELECT U.*, C.customerID, C.orderCount AS Number_of_Orders_Placed " +
+      "FROM StoreCustomerOrderCounts C, Users U WHERE C.storeID = ? AND U.userID = C.customerID " +
+      "ORDER BY C.orderCount DESC, C.customerID LIMIT 5";
+
+   // the other queries the operations issue, shared with PlanRegressionCheck
+   static final String LOG_IN = "SELECT userID FROM Users WHERE name = ? AND password = ?";
+   static final String PLACE_ORDER =
+      "WITH stock AS (UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+                     "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? " +
+                     "RETURNING storeID, productName) " +
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "SELECT ?, storeID, productName, ?, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp) FROM stock " +
+      "RETURNING orderNumber";
+   // the 5 most recent orders of a customer. Orders is partitioned by month:
+   // the first branch only reads the hot months, the current one and the two
+   // before it, and the older months are read only if those held fewer than
+   // 5 orders. Both bounds are stable, so the partitions are pruned when the
+   // statement starts.
+   static final String RECENT_ORDERS =
+      "WITH hot AS (SELECT O.customerID, O.storeID, O.productName, O.unitsOrdered, O.orderTime FROM Orders O " +
+      "WHERE O.customerID = ? AND O.orderTime >= date_trunc('month', LOCALTIMESTAMP) - interval '2 months' " +
+      "ORDER BY O.orderTime DESC LIMIT 5), " +
+      "recent AS (SELECT * FROM hot UNION ALL " +
+      "(SELECT O.customerID, O.storeID, O.productName, O.unitsOrdered, O.orderTime FROM Orders O " +
+      "WHERE O.customerID = ? AND O.orderTime < date_trunc('month', LOCALTIMESTAMP) - interval '2 months' " +
+      "AND (SELECT count(*) FROM hot) < 5 ORDER BY O.orderTime DESC LIMIT 5)) " +
+      "SELECT R.storeID, U.name AS username, S.name AS storename, R.productName, R.unitsOrdered, R.orderTime " +
+      "FROM recent R, Store S, Users U WHERE R.customerID = U.userID AND R.storeID = S.storeID " +
+      "ORDER BY R.orderTime DESC LIMIT 5";
+   static final String RECENT_UPDATES = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.storeID = ? ORDER BY P.updateNumber DESC LIMIT 5";
+   static final String RECENT_MANAGER_UPDATES = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.managerID = ? AND P.storeID = ? ORDER BY P.updateNumber DESC LIMIT 5";
+   // sales of a store (or one of its products) per day or hour over the last
+   // days, read from the rollups the orders_sales trigger maintains
+   static final String DAILY_SALES =
+      "SELECT D.day, SUM(D.orders) AS orders, SUM(D.units) AS units, ROUND(CAST(SUM(D.revenue) AS numeric), 2) AS revenue " +
+      "FROM SalesDaily D WHERE D.storeID = ? AND D.day > CURRENT_DATE - CAST(? AS integer) GROUP BY D.day ORDER BY D.day";
+   static final String PRODUCT_DAILY_SALES =
+      "SELECT D.day, D.orders, D.units, ROUND(CAST(D.revenue AS numeric), 2) AS revenue FROM SalesDaily D " +
+      "WHERE D.storeID = ? AND D.productName = ? AND D.day > CURRENT_DATE - CAST(? AS integer) ORDER BY D.day";
+   static final String HOURLY_SALES =
+      "SELECT H.hour, SUM(H.orders) AS orders, SUM(H.units) AS units, ROUND(CAST(SUM(H.revenue) AS numeric), 2) AS revenue " +
+      "FROM SalesHourly H WHERE H.storeID = ? AND H.hour >= CAST(CURRENT_DATE - CAST(? AS integer) + 1 AS timestamp) " +
+      "GROUP BY H.hour ORDER BY H.hour";
+   static final String PRODUCT_HOURLY_SALES =
+      "SELECT H.hour, H.orders, H.units, ROUND(CAST(H.revenue AS numeric), 2) AS revenue FROM SalesHourly H " +
+      "WHERE H.storeID = ? AND H.productName = ? AND H.hour >= CAST(CURRENT_DATE - CAST(? AS integer) + 1 AS timestamp) " +
+      "ORDER BY H.hour";
+
+   // keyset pages of order history and product updates, newest first. The
+   // _AFTER variants start after the key of the previous page's last row, so
+   // every page is one range scan of orders_customer_time_idx or the
+   // product_updates indexes however far back it is.
+   static final String ORDER_PAGE = "SELECT O.orderNumber, O.storeID, S.name AS storename, O.productName, O.unitsOrdered, O.orderTime FROM Orders O, Store S WHERE O.customerID = ? AND O.storeID = S.storeID ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?";
+   static final String ORDER_PAGE_AFTER = "SELECT O.orderNumber, O.storeID, S.name AS storename, O.productName, O.unitsOrdered, O.orderTime FROM Orders O, Store S WHERE O.customerID = ? AND (O.orderTime, O.orderNumber) < (CAST(? AS timestamp), ?) AND O.storeID = S.storeID ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?";
+   static final String UPDATE_PAGE = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.storeID = ? ORDER BY P.updateNumber DESC LIMIT ?";
+   static final String UPDATE_PAGE_AFTER = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.storeID = ? AND P.updateNumber < ? ORDER BY P.updateNumber DESC LIMIT ?";
+   static final String MANAGER_UPDATE_PAGE = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.managerID = ? AND P.storeID = ? ORDER BY P.updateNumber DESC LIMIT ?";
+   static final String MANAGER_UPDATE_PAGE_AFTER = "SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.managerID = ? AND P.storeID = ? AND P.updateNumber < ? ORDER BY P.updateNumber DESC LIMIT ?";
+   static final String MANAGER_UPDATE_PRODUCT = "UPDATE product P SET numberofUnits = ?, pricePerUnit = ? FROM users U JOIN store S ON S.managerID = U.userID WHERE U.userID = ? AND S.storeID = ? AND S.storeID = P.storeID AND P.productName = ?";
+   static final String MANAGER_ADD_UNITS = "UPDATE product P SET numberofUnits = P.numberOfUnits + ? FROM store S WHERE S.managerID = ? AND S.storeID = ? AND P.storeID = S.storeID AND P.productName = ?";
+   // the ledger's variants: stock changes go to InventoryJournal with the row they belong to
+   static final String JOURNAL_ENTRY = "INSERT INTO InventoryJournal (storeID, productName, delta) VALUES (?, ?, ?)";
+   static final String LEDGER_ORDER =
+      "WITH journal AS (INSERT INTO InventoryJournal (storeID, productName, delta) VALUES (?, ?, ?)) " +
+      "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "VALUES (?, ?, ?, ?, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp)) RETURNING orderNumber";
+   static final String SET_PRICE = "UPDATE product P SET pricePerUnit = ? WHERE P.storeID = ? AND P.productName = ?";
+   static final String PRODUCT_UNITS = "SELECT P.numberOfUnits FROM Product P WHERE P.storeID = ? AND P.productName = ?";
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
-   //keeps userID
-   private static int loggeduserID;
-
    /**
     * Creates a new instance of Retail shop
     *
@@ -55,6 +270,21 @@ public class Retail {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Retail(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(dbname, dbport, user, passwd,
+           Integer.getInteger("retail.pool.size", DEFAULT_POOL_SIZE));
+   }//end Retail
+
+   /**
+    * Creates a new instance of Retail shop backed by a connection pool
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param poolSize the maximum number of physical connections
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public Retail(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -62,8 +292,12 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // create the pool and obtain a first physical connection to fail early
+         this._pool = new ConnectionPool(url, user, passwd, poolSize,
+                                         Long.getLong("retail.pool.timeout", DEFAULT_BORROW_TIMEOUT_MILLIS));
+         if (this._cache != null)
+            this._pool.setReleaseListener(this._cache);
+         this._pool.release(this._pool.borrow());
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -72,164 +306,1663 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   private static PrintStream openSlowLog (String file) {
+      if (file == null)
+         return System.err;
+      try{
+         return new PrintStream (new FileOutputStream (file, true), true);
+      }catch (IOException e){
+         System.err.println ("Cannot open slow query log " + file + ": " + e.getMessage ());
+         return System.err;
+      }//end try
+   }//end openSlowLog
+
+   /**
+    * @return the connection pool used by this instance
+    */
+   public ConnectionPool getPool() {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * @return the result cache of the read helpers, null unless
+    *         -Dretail.cache=true
+    */
+   public ResultCache getResultCache() {
+      return this._cache;
+   }//end getResultCache
+
+   // the cache key of a read on a connection of its own, null if it is not cached
+   private ResultCache.Key cacheKey (String query, Object[] params, Object variant) {
+      return this._cache == null ? null : this._cache.key (query, params, variant);
+   }//end cacheKey
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+   public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
    /**
-    * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         return executeUpdate (conn, sql, params);
+      }finally{
+         this._pool.release (conn);
+      }//end try
+   }//end executeUpdate
+
+   /**
+    * Method to execute an update SQL statement on a connection the caller
+    * already holds, e.g. inside a transaction.
+    *
+    * @param conn the borrowed connection
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (PooledConnection conn, String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      try{
+         // fetches the cached statement for this shape and binds the values
+         PreparedStatement stmt = prepare (conn, sql, params);
+
+         // issues the update instruction
+         rows = stmt.executeUpdate ();
+      }finally{
+         statementDone (sql, params, start, rows);
+      }//end try
+
+      // a write to Store makes the in-memory store index and every cached
+      // list of managed stores stale
+      if (STORE_WRITE.matcher (sql).find ()){
+         this._storeIndex = null;
+         invalidateAllAuthorization ();
+      }//end if
+      if (PRODUCT_ROWS_WRITE.matcher (sql).find ())
+         this._catalog = null;
+      return rows;
+   }//end executeUpdate
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndPrintResult (System.out, query, params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * stream the results to the given output in the configured format. The
+    * fetch size asks the driver to read the rows through a cursor fetchSize
+    * rows at a time. pg73jdbc3.jar ignores it and reads the whole result
+    * before the first row is printed, so only a driver with cursor fetch
+    * (pgjdbc 7.4 and later) keeps memory flat; the buffered printing helps
+    * with either.
+    *
+    * @param out the stream to print to
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (OutputStream out, String query, Object... params) throws SQLException {
+      return executeQueryAndPrintPage (out, null, query, params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a query and print its rows like
+    * executeQueryAndPrintResult, keeping the values of the last row
+    * printed, from which the cursor of the next page is made.
+    *
+    * @param out the stream to print to
+    * @param last receives the values of the last row, if there is one
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   private int executeQueryAndPrintPage (OutputStream out, String[] last, String query, Object... params) throws SQLException {
+      ResultPrinter printer = this._printer;
+      ResultCache.Key key = cacheKey (query, params,
+                                      Arrays.asList (printer, last == null ? 0 : last.length));
+      if (key == null)
+         return printPage (printer, out, last, query, params);
+
+      ResultCache.Printed cached = (ResultCache.Printed) this._cache.get (key);
+      if (cached != null){
+         try{
+            out.write (cached.bytes);
+            out.flush ();
+         }catch (IOException e){
+            throw new SQLException ("Failed to write the result: " + e.getMessage ());
+         }//end try
+         if (last != null && cached.last != null && cached.rows > 0)
+            System.arraycopy (cached.last, 0, last, 0, last.length);
+         return cached.rows;
+      }//end if
+      long stamp = this._cache.stamp (key);
+      ResultCache.Recorder recorder = new ResultCache.Recorder (out, this._cache.getMaxResultBytes ());
+      int rows = printPage (printer, recorder, last, query, params);
+      byte[] bytes = recorder.getBytes ();
+      if (bytes != null)
+         this._cache.put (key, stamp, new ResultCache.Printed (bytes, rows, last == null ? null : last.clone ()),
+                          64 + bytes.length);
+      return rows;
+   }//end executeQueryAndPrintPage
+
+   // streams a query's rows through the printer
+   private int printPage (ResultPrinter printer, OutputStream out, String[] last, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         // a driver with cursor fetch only uses one inside a transaction,
+         // pg73jdbc3 ignores the fetch size
+         conn.getConnection ().setAutoCommit (false);
+         PreparedStatement stmt = prepare (conn, query, params);
+         stmt.setFetchSize (printer.getFetchSize ());
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         try{
+            rows = printer.print (rs, out, last);
+            return rows;
+         }finally{
+            rs.close ();
+            conn.getConnection ().commit ();
+         }//end try
+      }finally{
+         this._pool.release (conn);
+         statementDone (query, params, start, rows);
+      }//end try
+   }//end printPage
+
+   /**
+    * Sets how executeQueryAndPrintResult renders and fetches results.
+    *
+    * @param format TABLE, TSV or CSV
+    * @param fetchSize the number of rows fetched per round trip
+    */
+   public void setPrintFormat (ResultPrinter.Format format, int fetchSize) {
+      this._printer = new ResultPrinter (format, fetchSize);
+   }//end setPrintFormat
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      ResultCache.Key key = cacheKey (query, params, "rows");
+      long stamp = -1;
+      if (key != null){
+         // callers may change the lists, so the cache keeps its own copy
+         @SuppressWarnings ("unchecked")
+         List<List<String>> cached = (List<List<String>>) this._cache.get (key);
+         if (cached != null)
+            return copyRows (cached);
+         stamp = this._cache.stamp (key);
+      }//end if
+      List<List<String>> result;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         result = executeQueryAndReturnResult (conn, query, params);
+      }finally{
+         this._pool.release (conn);
+      }//end try
+      if (key != null)
+         this._cache.put (key, stamp, copyRows (result), ResultCache.weigh (result));
+      return result;
+   }//end executeQueryAndReturnResult
+
+   private static List<List<String>> copyRows (List<List<String>> rows) {
+      List<List<String>> copy = new ArrayList<List<String>> (rows.size ());
+      for (List<String> row : rows)
+         copy.add (new ArrayList<String> (row));
+      return copy;
+   }//end copyRows
+
+   /**
+    * Same as executeQueryAndReturnResult but on a connection the caller
+    * already holds, e.g. inside a transaction.
+    *
+    * @param conn the borrowed connection
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (PooledConnection conn, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<List<String>> result = null;
+      try{
+         result = readResult (prepare (conn, query, params));
+         return result;
+      }finally{
+         statementDone (query, params, start, result == null ? -1 : result.size ());
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   private static List<List<String>> readResult (PreparedStatement stmt) throws SQLException {
+      // issues the query instruction
+      ResultSet rs = stmt.executeQuery ();
+      try{
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }finally{
+         rs.close ();
+      }//end try
+   }//end readResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      ResultCache.Key key = cacheKey (query, params, "count");
+      if (key == null)
+         return countRows (query, params);
+      Integer cached = (Integer) this._cache.get (key);
+      if (cached != null)
+         return cached;
+      long stamp = this._cache.stamp (key);
+      int rowCount = countRows (query, params);
+      this._cache.put (key, stamp, rowCount, 16);
+      return rowCount;
+   }//end executeQuery
+
+   private int countRows (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         // issues the query instruction
+         ResultSet rs = prepare (conn, query, params).executeQuery ();
+         try{
+            int rows = 0;
+
+            // iterates through the result set and count nuber of results.
+            while (rs.next()){
+               rows++;
+            }//end while
+            rowCount = rows;
+            return rowCount;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         this._pool.release (conn);
+         statementDone (query, params, start, rowCount);
+      }//end try
+   }//end countRows
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * return the results column by column, with numeric columns held in
+    * primitive arrays.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public QueryResult executeQueryForResult (String query, Object... params) throws SQLException {
+      ResultCache.Key key = cacheKey (query, params, "result");
+      long stamp = -1;
+      if (key != null){
+         // callers get the backing arrays, so the cache keeps its own copy
+         QueryResult cached = (QueryResult) this._cache.get (key);
+         if (cached != null)
+            return cached.copy ();
+         stamp = this._cache.stamp (key);
+      }//end if
+      QueryResult result;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         result = executeQueryForResult (conn, query, params);
+      }finally{
+         this._pool.release (conn);
+      }//end try
+      if (key != null)
+         this._cache.put (key, stamp, result.copy (), ResultCache.weigh (result));
+      return result;
+   }//end executeQueryForResult
+
+   /**
+    * Same as executeQueryForResult but on a connection the caller already
+    * holds, e.g. inside a transaction.
+    */
+   public QueryResult executeQueryForResult (PooledConnection conn, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      QueryResult result = null;
+      try{
+         ResultSet rs = prepare (conn, query, params).executeQuery ();
+         try{
+            result = QueryResult.read (rs);
+            return result;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         statementDone (query, params, start, result == null ? -1 : result.getRowCount ());
+      }//end try
+   }//end executeQueryForResult
+
+   /**
+    * Method to execute a query that returns a single integer, e.g. a stock
+    * count or a generated key. Nothing is boxed or converted to a String.
+    *
+    * @param query the input query string with ? placeholders
+    * @param defaultValue the value returned when the query returns no row
+    * @param params the values bound to the placeholders, in order
+    * @return the first column of the first row, or defaultValue
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryForInt (String query, int defaultValue, Object... params) throws SQLException {
+      ResultCache.Key key = cacheKey (query, params, "int " + defaultValue);
+      long stamp = -1;
+      if (key != null){
+         Integer cached = (Integer) this._cache.get (key);
+         if (cached != null)
+            return cached;
+         stamp = this._cache.stamp (key);
+      }//end if
+      int value;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         value = executeQueryForInt (conn, query, defaultValue, params);
+      }finally{
+         this._pool.release (conn);
+      }//end try
+      if (key != null)
+         this._cache.put (key, stamp, value, 16);
+      return value;
+   }//end executeQueryForInt
+
+   /**
+    * Same as executeQueryForInt but on a connection the caller already
+    * holds, e.g. inside a transaction.
+    */
+   public int executeQueryForInt (PooledConnection conn, String query, int defaultValue, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      try{
+         ResultSet rs = prepare (conn, query, params).executeQuery ();
+         try{
+            if (!rs.next ()){
+               rows = 0;
+               return defaultValue;
+            }//end if
+            rows = 1;
+            int value = rs.getInt (1);
+            return rs.wasNull () ? defaultValue : value;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         statementDone (query, params, start, rows);
+      }//end try
+   }//end executeQueryForInt
+
+   /**
+    * Method to execute a query that returns a single value as a String,
+    * e.g. a user's type.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the first column of the first row, or null if there is no row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String executeQueryForString (String query, Object... params) throws SQLException {
+      ResultCache.Key key = cacheKey (query, params, "string");
+      if (key == null)
+         return readString (query, params);
+      Object cached = this._cache.get (key);
+      if (cached != null)
+         return cached == NULL_VALUE ? null : (String) cached;
+      long stamp = this._cache.stamp (key);
+      String value = readString (query, params);
+      this._cache.put (key, stamp, value == null ? NULL_VALUE : value, value == null ? 16 : 48 + 2L * value.length ());
+      return value;
+   }//end executeQueryForString
+
+   private String readString (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = -1;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         ResultSet rs = prepare (conn, query, params).executeQuery ();
+         try{
+            rows = rs.next () ? 1 : 0;
+            return rows > 0 ? rs.getString (1) : null;
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         this._pool.release (conn);
+         statementDone (query, params, start, rows);
+      }//end try
+   }//end readString
+
+   /**
+    * @return the per-statement and per-operation counters of this instance
+    */
+   public QueryMetrics getMetrics () {
+      return this._metrics;
+   }//end getMetrics
+
+   /**
+    * Writes the metrics to a file in the Prometheus text format, or as a
+    * table to standard out when the file is "-".
+    *
+    * @param file the file to write, nothing is written if null
+    */
+   public void dumpMetrics (String file) {
+      if (file == null)
+         return;
+      try{
+         if (file.equals ("-")){
+            System.out.print (this._metrics.snapshot ());
+            if (this._cache != null)
+               System.out.println (this._cache.stats ());
+            return;
+         }//end if
+         Writer out = new OutputStreamWriter (new FileOutputStream (file), "UTF-8");
+         try{
+            this._metrics.writePrometheus (out);
+            if (this._cache != null)
+               this._cache.writePrometheus (out);
+         }finally{
+            out.close ();
+         }//end try
+      }catch (IOException e){
+         System.err.println ("Cannot write metrics to " + file + ": " + e.getMessage ());
+      }//end try
+   }//end dumpMetrics
+
+   /**
+    * Records a finished statement and logs it with its plan if it took
+    * longer than -Dretail.slowQueryMillis.
+    *
+    * @param sql the statement that ran
+    * @param params the values it was run with
+    * @param start System.nanoTime() before it ran
+    * @param rows the rows it returned or changed, -1 if it failed
+    */
+   private void statementDone (String sql, Object[] params, long start, long rows) {
+      long nanos = System.nanoTime () - start;
+      QueryMetrics.Stats stats = this._metrics.recordStatement (sql, nanos, rows, rows < 0);
+      if (this._slowQueryNanos >= 0 && nanos >= this._slowQueryNanos && rows >= 0)
+         logSlowStatement (stats, sql, params, nanos, rows);
+   }//end statementDone
+
+   /**
+    * Records a finished menu operation.
+    *
+    * @param name the operation, named after its menu function
+    * @param start System.nanoTime() before it ran
+    * @param failed whether it threw
+    */
+   private void operationDone (String name, long start, boolean failed) {
+      this._metrics.recordOperation (name, System.nanoTime () - start, failed);
+   }//end operationDone
+
+   /**
+    * Writes a slow statement and its plan to the slow query log on a
+    * background thread, at most once a minute per statement shape. Queries
+    * are explained with EXPLAIN (ANALYZE, BUFFERS), which runs them again;
+    * statements that write, or call a function that may write or is
+    * volatile (see ResultCache.isReadOnly), are only explained, never re-run.
+    * Parameter values are not logged since they may hold passwords.
+    */
+   private void logSlowStatement (final QueryMetrics.Stats stats, final String sql, final Object[] params,
+                                  final long nanos, final long rows) {
+      long now = System.nanoTime ();
+      long last = stats.lastExplained.get ();
+      if (now - last < SLOW_QUERY_EXPLAIN_INTERVAL_NANOS && last != Long.MIN_VALUE)
+         return;
+      if (!stats.lastExplained.compareAndSet (last, now))
+         return;
+      final String time = LocalDateTime.now ().format (DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+      this._slowLog.execute (new Runnable () {
+         public void run () {
+            StringBuilder entry = new StringBuilder ();
+            entry.append ("-- slow statement at ").append (time).append (String.format (": %.1f ms, %d rows, %d parameters%n",
+                          nanos / 1e6, rows, params.length));
+            entry.append (sql.trim ()).append ('\n');
+            entry.append (explain (sql, params));
+            synchronized (Retail.this._slowLogOut){
+               Retail.this._slowLogOut.println (entry);
+               Retail.this._slowLogOut.flush ();
+            }
+         }
+      });
+   }//end logSlowStatement
+
+   // the plan of a statement, or why there is none
+   private String explain (String sql, Object[] params) {
+      String head = sql.trim ().toUpperCase ();
+      if (!EXPLAINABLE.matcher (head).find ())
+         return "(no plan for this kind of statement)\n";
+      String explain = ResultCache.isReadOnly (sql) ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+      StringBuilder plan = new StringBuilder ();
+      try{
+         PooledConnection conn = this._pool.borrow ();
+         try{
+            PreparedStatement stmt = conn.getConnection ().prepareStatement (explain + sql);
+            try{
+               bind (stmt, params);
+               ResultSet rs = stmt.executeQuery ();
+               while (rs.next ())
+                  plan.append (rs.getString (1)).append ('\n');
+               rs.close ();
+            }finally{
+               stmt.close ();
+            }//end try
+         }finally{
+            this._pool.release (conn);
+         }//end try
+      }catch (SQLException e){
+         plan.append ("(explain failed: ").append (e.getMessage ()).append (")\n");
+      }//end try
+      return plan.toString ();
+   }//end explain
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys. currval is tracked per
+    * physical connection, so it must run on the connection that advanced
+    * the sequence.
+    *
+    * @param conn the connection that issued the insert
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal(PooledConnection conn, String sequence) throws SQLException {
+      ResultSet rs = prepare (conn, "SELECT currval(?)", sequence).executeQuery ();
+      try{
+         if (rs.next())
+            return rs.getInt(1);
+         return -1;
+      }finally{
+         rs.close ();
+      }//end try
+   }
+
+   /**
+    * Returns the in-memory index over store coordinates, loading it on first
+    * use. The index is reloaded after a write to Store through
+    * executeUpdate, and after -Dretail.storeIndex.ttl milliseconds to pick up
+    * changes made by other processes.
+    *
+    * @return the current store index
+    * @throws java.sql.SQLException when failed to load the stores
+    */
+   public StoreIndex getStoreIndex () throws SQLException {
+      StoreIndex index = this._storeIndex;
+      if (index == null || System.currentTimeMillis () - this._storeIndexLoadedAt > this._storeIndexTtlMillis)
+         index = refreshStoreIndex ();
+      return index;
+   }//end getStoreIndex
+
+   /**
+    * Reloads the in-memory store index from the Store table.
+    *
+    * @return the new store index
+    * @throws java.sql.SQLException when failed to load the stores
+    */
+   public synchronized StoreIndex refreshStoreIndex () throws SQLException {
+      StoreIndex index = StoreIndex.load (this, STORE_RADIUS / 2);
+      this._storeIndexLoadedAt = System.currentTimeMillis ();
+      this._storeIndex = index;
+      return index;
+   }//end refreshStoreIndex
+
+   /**
+    * Returns the in-memory product catalog, loading it on first use. The
+    * catalog is reloaded after rows were added to or removed from Product
+    * through executeUpdate, and after -Dretail.catalog.ttl milliseconds to
+    * pick up changes made by other processes. Orders and product updates
+    * made through this instance are applied to it as they happen.
+    *
+    * @return the current catalog
+    * @throws java.sql.SQLException when failed to load the products
+    */
+   public ProductCatalog getCatalog () throws SQLException {
+      ProductCatalog catalog = this._catalog;
+      if (catalog == null || System.currentTimeMillis () - this._catalogLoadedAt > this._catalogTtlMillis)
+         catalog = refreshCatalog ();
+      return catalog;
+   }//end getCatalog
+
+   // the catalog if it is loaded, for code that only keeps it current
+   ProductCatalog getLoadedCatalog () {
+      return this._catalog;
+   }//end getLoadedCatalog
+
+   /**
+    * Returns the inventory ledger if -Dretail.ledger=true, loading it (and
+    * replaying the journal of an earlier run) on first use. Its journal is
+    * flushed to Product every -Dretail.ledger.flushMillis.
+    *
+    * @return the ledger, or null if it is not enabled
+    * @throws java.sql.SQLException when failed to load the stock
+    */
+   public synchronized InventoryLedger getInventoryLedger () throws SQLException {
+      if (this._useLedger && this._ledger == null)
+         this._ledger = InventoryLedger.load (this,
+            Long.getLong ("retail.ledger.flushMillis", InventoryLedger.DEFAULT_FLUSH_MILLIS));
+      return this._ledger;
+   }//end getInventoryLedger
+
+   /**
+    * Returns the group-commit order ingestor, starting it on first use with
+    * -Dretail.ingest.batchSize, -Dretail.ingest.lingerMillis and
+    * -Dretail.ingest.queue.
+    *
+    * @return the ingestor of this instance
+    */
+   public synchronized OrderIngestor getOrderIngestor () {
+      if (this._ingestor == null)
+         this._ingestor = new OrderIngestor (this,
+            Integer.getInteger ("retail.ingest.batchSize", OrderIngestor.DEFAULT_BATCH_SIZE),
+            Long.getLong ("retail.ingest.lingerMillis", OrderIngestor.DEFAULT_LINGER_MILLIS),
+            Integer.getInteger ("retail.ingest.queue", OrderIngestor.DEFAULT_QUEUE_CAPACITY));
+      return this._ingestor;
+   }//end getOrderIngestor
+
+   /**
+    * Reloads the in-memory product catalog from the Product table.
+    *
+    * @return the new catalog
+    * @throws java.sql.SQLException when failed to load the products
+    */
+   public synchronized ProductCatalog refreshCatalog () throws SQLException {
+      ProductCatalog catalog = ProductCatalog.load (this);
+      this._catalogLoadedAt = System.currentTimeMillis ();
+      this._catalog = catalog;
+      return catalog;
+   }//end refreshCatalog
+
+   /**
+    * Re-reads the stock and price of one product after it was updated, so
+    * the catalog does not have to be reloaded as a whole.
+    *
+    * @param storeID the store of the updated product
+    * @param productName the updated product
+    * @throws java.sql.SQLException when failed to read the product
+    */
+   public void refreshProduct (int storeID, String productName) throws SQLException {
+      ProductCatalog catalog = this._catalog;
+      if (catalog != null && !catalog.refresh (this, storeID, productName))
+         this._catalog = null;
+   }//end refreshProduct
+
+   /**
+    * Finds the stores within STORE_RADIUS of a user in the database.
+    *
+    * @param userID the user to search around
+    * @return the storeID and name of every store in range
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> findStoresWithinRadius (int userID) throws SQLException {
+      return executeQueryAndReturnResult (STORES_WITHIN_RADIUS + " ORDER BY S.storeID", radiusParams (userID));
+   }//end findStoresWithinRadius
+
+   /**
+    * Checks whether a store is within STORE_RADIUS of the session's user,
+    * using the in-memory index unless -Dretail.storeIndex=false.
+    *
+    * @param session the session of the user
+    * @param storeID the store to check
+    * @return true if the store exists and is in range
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean isStoreWithinRadius (Session session, int storeID) throws SQLException {
+      if (this._useStoreIndex)
+         return getStoreIndex ().isWithinRadius (storeID, session.getLatitude (), session.getLongitude (), STORE_RADIUS);
+      Object[] params = radiusParams (session.getUserID ());
+      Object[] withStore = Arrays.copyOf (params, params.length + 1);
+      withStore[params.length] = storeID;
+      return executeQuery (STORES_WITHIN_RADIUS + " AND S.storeID = ?", withStore) > 0;
+   }//end isStoreWithinRadius
+
+   /**
+    * @return whether radius searches are answered by the in-memory index
+    */
+   public boolean usesStoreIndex () {
+      return this._useStoreIndex;
+   }//end usesStoreIndex
+
+   static Object[] radiusParams (int userID) {
+      return new Object[] { userID, STORE_RADIUS, STORE_RADIUS, STORE_RADIUS, STORE_RADIUS, STORE_RADIUS };
+   }//end radiusParams
+
+   /**
+    * Marks the cached authorization (type, location, managed stores) of a
+    * user as stale. Sessions of that user reload it on their next check.
+    *
+    * @param userID the user whose row in Users or whose stores changed
+    */
+   public void invalidateAuthorization (int userID) {
+      AtomicLong version = this._authVersions.get (userID);
+      if (version == null){
+         this._authVersions.putIfAbsent (userID, new AtomicLong ());
+         version = this._authVersions.get (userID);
+      }//end if
+      version.incrementAndGet ();
+      this._authEpoch.incrementAndGet ();
+   }//end invalidateAuthorization
+
+   /**
+    * Marks the cached authorization of every session as stale, e.g. after
+    * stores were reassigned to other managers.
+    */
+   public void invalidateAllAuthorization () {
+      this._authAllVersion.incrementAndGet ();
+      this._authEpoch.incrementAndGet ();
+   }//end invalidateAllAuthorization
+
+   // changes whenever any authorization was invalidated
+   long authorizationEpoch () {
+      return this._authEpoch.get ();
+   }//end authorizationEpoch
+
+   // changes whenever the authorization of this user was invalidated
+   long authorizationVersion (int userID) {
+      AtomicLong version = this._authVersions.get (userID);
+      return this._authAllVersion.get () + (version == null ? 0 : version.get ());
+   }//end authorizationVersion
+
+   /**
+    * Method to place an order as one atomic statement. The stock of the
+    * product is decremented only if enough units are left and the order row
+    * is inserted from the decremented row, so both happen in the same
+    * round trip and transaction, or neither does. With -Dretail.ingest=true
+    * the order is queued on the OrderIngestor instead and committed with
+    * the other orders of its batch; the call still waits for the commit.
+    *
+    * @param customerID the userID of the customer placing the order
+    * @param storeID the store the product is ordered from
+    * @param productName the product to order
+    * @param units the number of units to order
+    * @return the orderNumber of the new order, or -1 if the store does not
+    *         sell the product or has fewer than units left
+    * @throws java.sql.SQLException when failed to execute the statement
+    */
+   public int submitOrder (int customerID, int storeID, String productName, int units) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (units <= 0)
+            throw new IllegalArgumentException("units must be positive: " + units);
+         InventoryLedger ledger = getInventoryLedger ();
+         if (ledger != null && ledger.covers (storeID, productName))
+            return submitLedgerOrder (ledger, customerID, storeID, productName, units);
+         if (this._useIngestor)
+            return awaitOrder (getOrderIngestor ().submit (customerID, storeID, productName, units));
+         int orderNumber = executeQueryForInt (PLACE_ORDER, -1, units, storeID, productName, units, customerID, units);
+         ProductCatalog catalog = this._catalog;
+         if (orderNumber >= 0 && catalog != null)
+            catalog.adjustUnits (storeID, productName, -units);
+         return orderNumber;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("placeOrder", start, failed);
+      }//end try
+   }//end submitOrder
+
+   // an order whose stock the ledger takes; the units go back if the insert fails
+   private int submitLedgerOrder (InventoryLedger ledger, int customerID, int storeID, String productName, int units) throws SQLException {
+      if (!ledger.tryTake (storeID, productName, units))
+         return -1;
+      int orderNumber = -1;
+      try{
+         orderNumber = executeQueryForInt (LEDGER_ORDER, -1, storeID, productName, -units,
+                                           customerID, storeID, productName, units);
+      }finally{
+         if (orderNumber < 0)
+            ledger.add (storeID, productName, units);
+      }//end try
+      ProductCatalog catalog = this._catalog;
+      if (orderNumber >= 0 && catalog != null)
+         catalog.adjustUnits (storeID, productName, -units);
+      return orderNumber;
+   }//end submitLedgerOrder
+
+   // waits for an order queued on the ingestor
+   private static int awaitOrder (Future<Integer> order) throws SQLException {
+      try{
+         return order.get ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted while waiting for the order to commit");
+      }catch (ExecutionException e){
+         if (e.getCause () instanceof SQLException)
+            throw (SQLException) e.getCause ();
+         throw new SQLException ("Order failed: " + e.getCause ());
+      }//end try
+   }//end awaitOrder
+
+   /**
+    * Method to place every line of a cart in one transaction. The Product
+    * rows of the cart are locked in key order and checked first; if any
+    * line cannot be filled nothing is written and the units found are
+    * recorded on each line. Otherwise the stock is decremented by one
+    * set-based UPDATE and the orders are inserted as one JDBC batch, so a
+    * basket costs the same number of round trips whatever its size.
+    *
+    * @param customerID the userID of the customer placing the order
+    * @param cart the lines to order
+    * @return the number of orders placed, or -1 if a store does not sell a
+    *         product or has fewer units left than ordered
+    * @throws java.sql.SQLException when failed to execute the statements
+    */
+   public int submitCart (int customerID, Cart cart) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         List<Cart.Line> lines = new ArrayList<Cart.Line> (cart.getLines ());
+         int n = lines.size ();
+         if (n == 0)
+            return 0;
+         // a fixed lock order keeps concurrent carts from deadlocking
+         Collections.sort (lines, new Comparator<Cart.Line> () {
+            public int compare (Cart.Line a, Cart.Line b) {
+               if (a.getStoreID () != b.getStoreID ())
+                  return a.getStoreID () < b.getStoreID () ? -1 : 1;
+               return a.getProductName ().compareTo (b.getProductName ());
+            }
+         });
+
+         Object[] keyParams = new Object[n * 2];
+         Object[] valueParams = new Object[n * 3];
+         for (int i = 0; i < n; ++i){
+            Cart.Line line = lines.get (i);
+            keyParams[i * 2] = line.getStoreID ();
+            keyParams[i * 2 + 1] = line.getProductName ();
+            valueParams[i * 3] = line.getStoreID ();
+            valueParams[i * 3 + 1] = line.getProductName ();
+            valueParams[i * 3 + 2] = line.getUnits ();
+         }//end for
+
+         // with the ledger the stock is taken in memory, all lines or none
+         InventoryLedger ledger = getInventoryLedger ();
+         boolean inLedger = ledger != null;
+         for (int i = 0; i < n && inLedger; ++i)
+            inLedger = ledger.covers (lines.get (i).getStoreID (), lines.get (i).getProductName ());
+         boolean taken = false;
+         boolean committed = false;
+
+         PooledConnection conn = this._pool.borrow ();
+         try{
+            conn.getConnection ().setAutoCommit (false);
+            if (inLedger){
+               if (!takeCart (ledger, lines))
+                  return -1;
+               taken = true;
+               Object[] journal = new Object[n * 3];
+               for (int i = 0; i < n; ++i){
+                  journal[i * 3] = valueParams[i * 3];
+                  journal[i * 3 + 1] = valueParams[i * 3 + 1];
+                  journal[i * 3 + 2] = -lines.get (i).getUnits ();
+               }//end for
+               executeUpdate (conn, journalQuery (n), journal);
+            }else{
+               // lock and read the stock of every line
+               QueryResult stock = executeQueryForResult (conn, cartLockQuery (n), keyParams);
+               Map<String, Integer> units = new HashMap<String, Integer> ();
+               for (int row = 0; row < stock.getRowCount (); ++row)
+                  units.put (stock.getInt (row, 0) + "/" + stock.getString (row, 1).trim (), stock.getInt (row, 2));
+               boolean filled = true;
+               for (Cart.Line line : lines){
+                  Integer available = units.get (line.getStoreID () + "/" + line.getProductName ());
+                  line.setAvailable (available == null ? -1 : available);
+                  filled &= line.isAvailable ();
+               }//end for
+               if (!filled){
+                  conn.getConnection ().rollback ();
+                  return -1;
+               }//end if
+
+               int updated = executeUpdate (conn, cartUpdateQuery (n), valueParams);
+               if (updated != n)
+                  throw new SQLException ("Stock of " + (n - updated) + " cart lines changed while locked");
+            }//end if
+
+            String sql = "INSERT INTO Orders (customerID, storeID, productName, unitsOrdered, orderTime) " +
+                         "VALUES (?, ?, ?, ?, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp))";
+            PreparedStatement insert = prepare (conn, sql);
+            long batchStart = System.nanoTime ();
+            boolean batchFailed = true;
+            try{
+               for (Cart.Line line : lines){
+                  insert.setInt (1, customerID);
+                  insert.setInt (2, line.getStoreID ());
+                  insert.setString (3, line.getProductName ());
+                  insert.setInt (4, line.getUnits ());
+                  insert.addBatch ();
+               }//end for
+               insert.executeBatch ();
+               batchFailed = false;
+            }finally{
+               insert.clearBatch ();
+               // batches are counted but not explained, they have no single set of values
+               this._metrics.recordStatement (sql, System.nanoTime () - batchStart, batchFailed ? 0 : n, batchFailed);
+            }//end try
+            conn.getConnection ().commit ();
+            committed = true;
+         }finally{
+            this._pool.release (conn);
+            if (taken && !committed){
+               for (Cart.Line line : lines)
+                  ledger.add (line.getStoreID (), line.getProductName (), line.getUnits ());
+            }//end if
+         }//end try
+
+         ProductCatalog catalog = this._catalog;
+         if (catalog != null){
+            for (Cart.Line line : lines)
+               catalog.adjustUnits (line.getStoreID (), line.getProductName (), -line.getUnits ());
+         }//end if
+         return n;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("placeCartOrder", start, failed);
+      }//end try
+   }//end submitCart
+
+   // takes every line off the ledger, or none of them and records what was left
+   private static boolean takeCart (InventoryLedger ledger, List<Cart.Line> lines) {
+      for (int i = 0; i < lines.size (); ++i){
+         Cart.Line line = lines.get (i);
+         if (ledger.tryTake (line.getStoreID (), line.getProductName (), line.getUnits ()))
+            continue;
+         for (int j = 0; j < i; ++j)
+            ledger.add (lines.get (j).getStoreID (), lines.get (j).getProductName (), lines.get (j).getUnits ());
+         for (Cart.Line each : lines)
+            each.setAvailable (ledger.getUnits (each.getStoreID (), each.getProductName ()));
+         return false;
+      }//end for
+      return true;
+   }//end takeCart
+
+   // journals n (storeID, productName, delta) changes
+   static String journalQuery (int n) {
+      StringBuilder values = new StringBuilder ();
+      for (int i = 0; i < n; ++i)
+         values.append (i == 0 ? "" : ", ").append ("(?, ?, ?)");
+      return "INSERT INTO InventoryJournal (storeID, productName, delta) VALUES " + values;
+   }//end journalQuery
+
+   // locks and reads the stock of n (storeID, productName) keys
+   static String cartLockQuery (int n) {
+      StringBuilder keys = new StringBuilder ();
+      for (int i = 0; i < n; ++i)
+         keys.append (i == 0 ? "" : ", ").append ("(?, CAST(? AS char(30)))");
+      return "SELECT storeID, productName, numberOfUnits FROM Product " +
+             "WHERE (storeID, productName) IN (" + keys + ") " +
+             "ORDER BY storeID, productName FOR UPDATE";
+   }//end cartLockQuery
+
+   // takes n (storeID, productName, units) lines off the stock
+   static String cartUpdateQuery (int n) {
+      StringBuilder values = new StringBuilder ();
+      for (int i = 0; i < n; ++i)
+         values.append (i == 0 ? "" : ", ").append ("(CAST(? AS integer), CAST(? AS char(30)), CAST(? AS integer))");
+      return "UPDATE Product P SET numberOfUnits = P.numberOfUnits - L.units " +
+             "FROM (VALUES " + values + ") AS L (storeID, productName, units) " +
+             "WHERE P.storeID = L.storeID AND P.productName = L.productName AND P.numberOfUnits >= L.units";
+   }//end cartUpdateQuery
+
+   /**
+    * Method to list the stores within STORE_RADIUS of the session's user,
+    * from the in-memory index unless -Dretail.storeIndex=false.
+    *
+    * @param session the session of the user
+    * @param out the stream the listing is written to
+    * @return the number of stores listed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the listing
+    */
+   public int printStoresNear (Session session, OutputStream out) throws SQLException, IOException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         StringBuilder listing = new StringBuilder ();
+         int count;
+         if (this._useStoreIndex){
+            StoreIndex index = getStoreIndex ();
+            int[] stores = index.withinRadius (session.getLatitude (), session.getLongitude (), STORE_RADIUS);
+            for (int pos : stores)
+               listing.append (index.getStoreID (pos)).append ('\t').append (index.getName (pos)).append ("\t\n");
+            count = stores.length;
+         }else{
+            List<List<String>> rows = findStoresWithinRadius (session.getUserID ());
+            for (List<String> row : rows)
+               listing.append (row.get (0)).append ('\t').append (row.get (1)).append ("\t\n");
+            count = rows.size ();
+         }//end if
+         if (count > 0)
+            listing.insert (0, "store_id\tstore_name\t\n");
+         out.write (listing.toString ().getBytes ());
+         out.flush ();
+         return count;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewStores", start, failed);
+      }//end try
+   }//end printStoresNear
+
+   /**
+    * Method to list the stores within STORE_RADIUS of the session's user
+    * that have at least the given number of units of a product, nearest
+    * first, with their distance and stock. With the store index the stores
+    * in range are found in the grid and their stock is read from the
+    * inventory ledger or the catalog, without a query.
+    *
+    * @param session the session of the user
+    * @param productName the product to look for
+    * @param units the units the stores must have
+    * @param out the stream the stores are written to
+    * @return the number of stores listed
+    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.io.IOException when failed to write the stores
+    */
+   public int printStoresWithProduct (Session session, String productName, int units, OutputStream out) throws SQLException, IOException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (!this._useStoreIndex){
+            Object[] radius = radiusParams (session.getUserID ());
+            Object[] params = Arrays.copyOf (radius, radius.length + 2);
+            params[radius.length] = productName.trim ();
+            params[radius.length + 1] = units;
+            return executeQueryAndPrintResult (out, STORES_WITH_PRODUCT, params);
+         }//end if
+
+         StoreIndex index = getStoreIndex ();
+         ProductCatalog catalog = getCatalog ();
+         InventoryLedger ledger = getInventoryLedger ();
+         int productID = catalog.getProductID (productName);
+         int[] stores = productID < 0 ? new int[0]
+                        : index.withinRadius (session.getLatitude (), session.getLongitude (), STORE_RADIUS);
+         final double[] distances = new double[stores.length];
+         int[] stock = new int[stores.length];
+         List<Integer> found = new ArrayList<Integer> ();
+         for (int i = 0; i < stores.length; ++i){
+            int storeID = index.getStoreID (stores[i]);
+            stock[i] = ledger != null && ledger.covers (storeID, productName)
+                       ? ledger.getUnits (storeID, productName) : catalog.getUnits (storeID, productID);
+            if (stock[i] < units)
+               continue;
+            distances[i] = calculateDistance (session.getLatitude (), session.getLongitude (),
+                                              index.getLatitude (stores[i]), index.getLongitude (stores[i]));
+            found.add (i);
+         }//end for
+         // nearest first; withinRadius returned them by storeID, which breaks ties
+         Collections.sort (found, new Comparator<Integer> () {
+            public int compare (Integer a, Integer b) {
+               return Double.compare (distances[a], distances[b]);
+            }
+         });
+
+         StringBuilder listing = new StringBuilder ();
+         if (!found.isEmpty ())
+            listing.append ("store_id\tstore_name\tdistance\tnumberofunits\t\n");
+         for (int i : found){
+            listing.append (index.getStoreID (stores[i])).append ('\t').append (index.getName (stores[i])).append ('\t')
+                   .append (String.format (Locale.ROOT, "%.2f", distances[i])).append ('\t')
+                   .append (stock[i]).append ("\t\n");
+         }//end for
+         out.write (listing.toString ().getBytes ());
+         out.flush ();
+         return found.size ();
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("findProduct", start, failed);
+      }//end try
+   }//end printStoresWithProduct
+
+   /**
+    * Method to list the products of a store with their stock and price,
+    * from the in-memory catalog.
+    *
+    * @param storeID the store to list
+    * @param out the stream the listing is written to
+    * @return the number of products listed
+    * @throws java.sql.SQLException when failed to load the catalog
+    * @throws java.io.IOException when failed to write the listing
+    */
+   public int printProducts (int storeID, OutputStream out) throws SQLException, IOException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         ProductCatalog catalog = getCatalog ();
+         InventoryLedger ledger = getInventoryLedger ();
+         int[] products = catalog.listStore (storeID);
+         writeProducts (catalog, ledger, storeID, products, out);
+         return products.length;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewProducts", start, failed);
+      }//end try
+   }//end printProducts
+
+   /**
+    * Method to list one page of a store's products in name order, read
+    * from the catalog like printProducts.
+    *
+    * @param storeID the store to list
+    * @param cursor the cursor the previous page returned, null for the first
+    * @param pageSize the most products listed
+    * @param out the stream the products are written to
+    * @return the cursor of the next page, null if this page is the last
+    * @throws java.sql.SQLException when failed to load the catalog
+    * @throws java.io.IOException when failed to write the products
+    */
+   public String printProductPage (int storeID, String cursor, int pageSize, OutputStream out) throws SQLException, IOException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         PageCursor.checkPageSize (pageSize);
+         String after = null;
+         if (cursor != null){
+            String[] key = PageCursor.decode ("products", cursor, 2);
+            if (parseCursorInt (key[0]) != storeID)
+               throw new IllegalArgumentException ("The cursor is for another store");
+            after = key[1];
+         }//end if
+         ProductCatalog catalog = getCatalog ();
+         int[] products = catalog.listStore (storeID, after, pageSize);
+         writeProducts (catalog, getInventoryLedger (), storeID, products, out);
+         if (products.length < pageSize)
+            return null;
+         return PageCursor.encode ("products", Integer.toString (storeID), catalog.getName (products[products.length - 1]));
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("pageProducts", start, failed);
+      }//end try
+   }//end printProductPage
+
+   // the listing of products, units from the ledger when it has them
+   private static void writeProducts (ProductCatalog catalog, InventoryLedger ledger, int storeID, int[] products, OutputStream out) throws IOException {
+      StringBuilder listing = new StringBuilder ();
+      if (products.length > 0)
+         listing.append ("productname\tnumberofunits\tpriceperunit\t\n");
+      for (int productID : products){
+         listing.append (catalog.getName (productID)).append ('\t')
+                .append (ledger != null && ledger.covers (storeID, catalog.getName (productID))
+                         ? ledger.getUnits (storeID, catalog.getName (productID))
+                         : catalog.getUnits (storeID, productID)).append ('\t')
+                .append (ProductCatalog.formatPrice (catalog.getPrice (storeID, productID))).append ("\t\n");
+      }//end for
+      out.write (listing.toString ().getBytes ());
+      out.flush ();
+   }//end writeProducts
+
+   /**
+    * Method to list the 5 most recent orders of the session's user.
+    *
+    * @param session the session of the user
+    * @param out the stream the orders are written to
+    * @return the number of orders listed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int printRecentOrders (Session session, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         return executeQueryAndPrintResult (out, RECENT_ORDERS, session.getUserID (), session.getUserID ());
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewRecentOrders", start, failed);
+      }//end try
+   }//end printRecentOrders
+
+   /**
+    * Method to list the 5 most recent product updates of a store: every
+    * update for an admin, the manager's own updates otherwise.
+    *
+    * @param session the session of the user
+    * @param storeID the store to list
+    * @param out the stream the updates are written to
+    * @return the number of updates listed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int printRecentUpdates (Session session, int storeID, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (session.isAdmin ()){
+            return executeQueryAndPrintResult (out, RECENT_UPDATES, storeID);
+         }//end if
+         return executeQueryAndPrintResult (out, RECENT_MANAGER_UPDATES, session.getUserID (), storeID);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewRecentUpdates", start, failed);
+      }//end try
+   }//end printRecentUpdates
+
+   /**
+    * Method to list one page of the session's user's orders, newest first.
+    *
+    * @param session the session of the user
+    * @param cursor the cursor the previous page returned, null for the first
+    * @param pageSize the most orders listed
+    * @param out the stream the orders are written to
+    * @return the cursor of the next page, null if this page is the last
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public String printOrderPage (Session session, String cursor, int pageSize, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         PageCursor.checkPageSize (pageSize);
+         // orderNumber, ..., orderTime
+         String[] last = new String[6];
+         int rows;
+         if (cursor == null){
+            rows = executeQueryAndPrintPage (out, last, ORDER_PAGE, session.getUserID (), pageSize);
+         }else{
+            String[] key = PageCursor.decode ("orders", cursor, 2);
+            rows = executeQueryAndPrintPage (out, last, ORDER_PAGE_AFTER, session.getUserID (), key[0],
+                                             parseCursorInt (key[1]), pageSize);
+         }//end if
+         return rows < pageSize ? null : PageCursor.encode ("orders", last[5], last[0]);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("pageOrders", start, failed);
+      }//end try
+   }//end printOrderPage
+
+   /**
+    * Method to list one page of a store's product updates, newest first:
+    * every update for an admin, the manager's own updates otherwise.
     *
-    * @param sql the input SQL string
-    * @throws java.sql.SQLException when update failed
+    * @param session the session of the user
+    * @param storeID the store to list
+    * @param cursor the cursor the previous page returned, null for the first
+    * @param pageSize the most updates listed
+    * @param out the stream the updates are written to
+    * @return the cursor of the next page, null if this page is the last
+    * @throws java.sql.SQLException when failed to execute the query
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public String printUpdatePage (Session session, int storeID, String cursor, int pageSize, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         PageCursor.checkPageSize (pageSize);
+         // updateNumber, ...
+         String[] last = new String[5];
+         int rows;
+         if (cursor == null){
+            rows = session.isAdmin ()
+                   ? executeQueryAndPrintPage (out, last, UPDATE_PAGE, storeID, pageSize)
+                   : executeQueryAndPrintPage (out, last, MANAGER_UPDATE_PAGE, session.getUserID (), storeID, pageSize);
+         }else{
+            int after = parseCursorInt (PageCursor.decode ("updates", cursor, 1)[0]);
+            rows = session.isAdmin ()
+                   ? executeQueryAndPrintPage (out, last, UPDATE_PAGE_AFTER, storeID, after, pageSize)
+                   : executeQueryAndPrintPage (out, last, MANAGER_UPDATE_PAGE_AFTER, session.getUserID (), storeID, after, pageSize);
+         }//end if
+         return rows < pageSize ? null : PageCursor.encode ("updates", last[0]);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("pageUpdates", start, failed);
+      }//end try
+   }//end printUpdatePage
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   // a number from a cursor, which came from the client
+   private static int parseCursorInt (String value) {
+      try{
+         return Integer.parseInt (value.trim ());
+      }catch (NumberFormatException e){
+         throw new IllegalArgumentException ("Not a page cursor");
+      }//end try
+   }//end parseCursorInt
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * Method to list the 5 most ordered products of a store.
     *
-    * @param query the input query string
-    * @return the number of rows returned
+    * @param storeID the store to list
+    * @param out the stream the products are written to
+    * @return the number of products listed
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   public int printPopularProducts (int storeID, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         return executeQueryAndPrintResult (out, TOP_PRODUCTS, storeID);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewPopularProducts", start, failed);
+      }//end try
+   }//end printPopularProducts
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * Method to list the 5 customers with the most orders at a store.
     *
-    * @param query the input query string
-    * @return the query result as a list of records
+    * @param storeID the store to list
+    * @param out the stream the customers are written to
+    * @return the number of customers listed
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
-   }//end executeQueryAndReturnResult
+   public int printPopularCustomers (int storeID, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         return executeQueryAndPrintResult (out, TOP_CUSTOMERS, storeID);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewPopularCustomers", start, failed);
+      }//end try
+   }//end printPopularCustomers
 
    /**
-    * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and returns the number of results
+    * Method to list the sales of a store, or of one of its products, per
+    * day or per hour over the last days, today included.
     *
-    * @param query the input query string
-    * @return the number of rows returned
+    * @param storeID the store to report on
+    * @param productName the product to report on, null for the whole store
+    * @param days the number of days
+    * @param hourly whether to list hours instead of days
+    * @param out the stream the sales are written to
+    * @return the number of days or hours listed, those without orders are left out
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   public int printSalesTrend (int storeID, String productName, int days, boolean hourly, OutputStream out) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (days <= 0)
+            throw new IllegalArgumentException ("days must be positive: " + days);
+         if (productName == null)
+            return executeQueryAndPrintResult (out, hourly ? HOURLY_SALES : DAILY_SALES, storeID, days);
+         return executeQueryAndPrintResult (out, hourly ? PRODUCT_HOURLY_SALES : PRODUCT_DAILY_SALES,
+                                            storeID, productName.trim (), days);
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("viewSalesTrend", start, failed);
+      }//end try
+   }//end printSalesTrend
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to recompute the sales rollups of a range of days from Orders,
+    * e.g. after orders were loaded with the triggers disabled. Admins only.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @param session the session of the admin
+    * @param first the first day, yyyy-mm-dd
+    * @param last the last day, yyyy-mm-dd
+    * @return the number of hourly rows written, -1 if the user is not an admin
+    * @throws java.sql.SQLException when failed to rebuild the rollups
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public long rebuildSalesRollups (Session session, String first, String last) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (!session.isAdmin ())
+            return -1;
+         String hours = executeQueryForString (
+            "SELECT rebuild_sales_rollups(CAST(? AS timestamp), CAST(? AS timestamp))", first, last);
+         return hours == null ? 0 : Long.parseLong (hours.trim ());
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("rebuildSales", start, failed);
+      }//end try
+   }//end rebuildSalesRollups
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Method to set the stock and price of a product and record the update.
+    * Admins may update any store, managers only the stores they manage.
+    *
+    * @param session the session of the admin or manager
+    * @param storeID the store of the product
+    * @param productName the product to update
+    * @param units the new number of units
+    * @param price the new price per unit
+    * @return false if the store does not sell the product or the user may
+    *         not update it
+    * @throws java.sql.SQLException when failed to execute the statements
+    */
+   public boolean updateProduct (Session session, int storeID, String productName, int units, double price) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
+      try{
+         if (units < 0)
+            throw new IllegalArgumentException ("The number of units cannot be negative: " + units);
+         InventoryLedger ledger = getInventoryLedger ();
+         if (ledger != null && ledger.covers (storeID, productName))
+            return updateLedgerProduct (ledger, session, storeID, productName, units, price);
+         int updated;
+         if (session.isAdmin ()){
+            String query = "UPDATE product P SET numberofUnits = ?, pricePerUnit = ? WHERE P.storeID = ? AND P.productName = ?";
+            updated = executeUpdate (query, units, price, storeID, productName);
+         }else{
+            updated = executeUpdate (MANAGER_UPDATE_PRODUCT, units, price, session.getUserID (), storeID, productName);
+         }//end if
+         if (updated == 0)
+            return false;
+         refreshProduct (storeID, productName);
+         String query = "INSERT INTO productupdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, CURRENT_TIMESTAMP(0))";
+         executeUpdate (query, session.getUserID (), storeID, productName);
+         return true;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("updateProduct", start, failed);
+      }//end try
+   }//end updateProduct
+
+   // journals the new stock level with the price and the update record. The
+   // ledger has the new level at once, so orders meanwhile take from it
+   // rather than being refused, and gets the old one back if the
+   // transaction fails.
+   private boolean updateLedgerProduct (InventoryLedger ledger, Session session, int storeID, String productName, int units, double price) throws SQLException {
+      if (!session.isAdmin () && !session.manages (storeID))
+         return false;
+      int previous = -1;
+      boolean committed = false;
+      PooledConnection conn = this._pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (false);
+         if (executeUpdate (conn, SET_PRICE, price, storeID, productName) == 0)
+            return false;
+         previous = ledger.set (storeID, productName, units);
+         if (previous < 0)
+            return false;
+         // orders and restocks that land meanwhile change the new level and
+         // journal their own entries, so they stay counted on both sides
+         if (units != previous)
+            executeUpdate (conn, JOURNAL_ENTRY, storeID, productName, units - previous);
+         String query = "INSERT INTO productupdates (managerID, storeID, productName, updatedOn) VALUES (?, ?, ?, CURRENT_TIMESTAMP(0))";
+         executeUpdate (conn, query, session.getUserID (), storeID, productName);
+         conn.getConnection ().commit ();
+         committed = true;
+      }finally{
+         // release() rolls back what was not committed
+         this._pool.release (conn);
+         if (previous >= 0 && !committed)
+            ledger.add (storeID, productName, previous - units);
+      }//end try
+      // the price; units are listed from the ledger
+      refreshProduct (storeID, productName);
+      return true;
+   }//end updateLedgerProduct
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to request units of a product from a warehouse for a store the
+    * session's user manages. The units are added to the store's stock and
+    * the request is recorded.
+    *
+    * @param session the session of the manager
+    * @param storeID the store the units are for
+    * @param productName the product to restock
+    * @param units the number of units requested
+    * @param warehouseID the warehouse to request from
+    * @return false if the store does not sell the product or the user does
+    *         not manage the store
+    * @throws java.sql.SQLException when failed to execute the statements
     */
-   public void cleanup(){
+   public boolean requestSupply (Session session, int storeID, String productName, int units, int warehouseID) throws SQLException {
+      long start = System.nanoTime ();
+      boolean failed = false;
       try{
-         if (this._connection != null){
-            this._connection.close ();
+         String query = "INSERT INTO productSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)";
+         InventoryLedger ledger = getInventoryLedger ();
+         if (ledger != null && ledger.covers (storeID, productName)){
+            if (!session.manages (storeID))
+               return false;
+            PooledConnection conn = this._pool.borrow ();
+            try{
+               conn.getConnection ().setAutoCommit (false);
+               executeUpdate (conn, JOURNAL_ENTRY, storeID, productName, units);
+               executeUpdate (conn, query, session.getUserID (), warehouseID, storeID, productName, units);
+               conn.getConnection ().commit ();
+            }finally{
+               this._pool.release (conn);
+            }//end try
+            // the units exist once the request is committed
+            ledger.add (storeID, productName, units);
+            ProductCatalog catalog = this._catalog;
+            if (catalog != null)
+               catalog.adjustUnits (storeID, productName, units);
+            return true;
          }//end if
-      }catch (SQLException e){
-         // ignored.
+         if (executeUpdate (MANAGER_ADD_UNITS, units, session.getUserID (), storeID, productName) == 0)
+            return false;
+         refreshProduct (storeID, productName);
+         executeUpdate (query, session.getUserID (), warehouseID, storeID, productName, units);
+         return true;
+      }catch (Exception e){
+         failed = true;
+         throw e;
+      }finally{
+         operationDone ("placeProductSupplyRequests", start, failed);
       }//end try
+   }//end requestSupply
+
+   /**
+    * Fetches the cached prepared statement for the given SQL text from the
+    * connection and binds the parameter values to it. With pg73jdbc3.jar the
+    * values are substituted on the client and the server parses every
+    * execution, see PooledConnection.
+    *
+    * @param conn the borrowed connection
+    * @param sql the SQL text with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the bound statement, owned by the connection's statement cache
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   PreparedStatement prepare (PooledConnection conn, String sql, Object... params) throws SQLException {
+      // drops the cached results a write makes stale
+      if (this._cache != null)
+         this._cache.writing (conn, sql);
+      PreparedStatement stmt = conn.prepare (sql);
+      stmt.clearParameters ();
+      bind (stmt, params);
+      return stmt;
+   }//end prepare
+
+   // binds the values to the placeholders, nulls as VARCHAR
+   private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i){
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else
+            stmt.setObject (i + 1, params[i]);
+      }//end for
+   }//end bind
+
+   /**
+    * Method to close the physical connections held by the pool.
+    */
+   public void cleanup(){
+      synchronized (this){
+         if (this._ingestor != null)
+            this._ingestor.close ();
+         if (this._ledger != null)
+            this._ledger.close ();
+      }
+      this._slowLog.shutdown ();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -238,20 +1971,24 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [-f <file> | <command> [; <command> ...]]");
          return;
       }//end if
+      if (args.length > 3){
+         // scripted mode, see BatchRunner
+         System.exit (BatchRunner.run (args));
+      }//end if
 
       Greeting();
       Retail esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the Retail object and creates a physical
          // connection.
          String dbname = args[0];
@@ -273,14 +2010,14 @@ public class Retail {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (session != null) {
               boolean usermenu = true;
               while(usermenu) {
                 System.out.println("\nMAIN MENU");
@@ -297,19 +2034,27 @@ public class Retail {
                 System.out.println("8. View 5 Popular Customers");
                 System.out.println("9. Place Product Supply Request to Warehouse");
                 System.out.println("10. Administrator User Update");
+                System.out.println("11. Place a Cart Order (several products)");
+                System.out.println("12. Find the Nearest Stores with a Product");
+                System.out.println("13. Browse Order History");
+                System.out.println("14. View Sales Trend");
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
-                   case 1: viewStores(esql); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql); break;
-                   case 4: viewRecentOrders(esql); break;
-                   case 5: updateProduct(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewPopularProducts(esql); break;
-                   case 8: viewPopularCustomers(esql); break;
-                   case 9: placeProductSupplyRequests(esql); break;
-                   case 10: updateUser(esql); break;
+                   case 1: viewStores(esql, session); break;
+                   case 2: viewProducts(esql, session); break;
+                   case 3: placeOrder(esql, session); break;
+                   case 4: viewRecentOrders(esql, session); break;
+                   case 5: updateProduct(esql, session); break;
+                   case 6: viewRecentUpdates(esql, session); break;
+                   case 7: viewPopularProducts(esql, session); break;
+                   case 8: viewPopularCustomers(esql, session); break;
+                   case 9: placeProductSupplyRequests(esql, session); break;
+                   case 10: updateUser(esql, session); break;
+                   case 11: placeCartOrder(esql, session); break;
+                   case 12: findProduct(esql, session); break;
+                   case 13: browseOrders(esql, session); break;
+                   case 14: viewSalesTrend(esql, session); break;
                    case 20: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
@@ -322,6 +2067,10 @@ public class Retail {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               System.out.println(esql.getPool().stats());
+               if (esql.getResultCache() != null)
+                  System.out.println(esql.getResultCache().stats());
+               esql.dumpMetrics(System.getProperty("retail.metrics.dump"));
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
@@ -384,9 +2133,9 @@ public class Retail {
             type = "customer";
          }
 
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+			String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, new BigDecimal(latitude), new BigDecimal(longitude), type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -396,26 +2145,19 @@ public class Retail {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the session of the logged in user or null is the user does not exist
     **/
-   public static String LogIn(Retail esql){
-      loggeduserID = -1;
-
+   public static Session LogIn(Retail esql){
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-
-         //update the logged userID for access in other functions
-         query = String.format("SELECT userID FROM Users  WHERE name = '%s' AND password = '%s'", name, password);
-         List<List<String>> a = esql.executeQueryAndReturnResult(query);
-         loggeduserID = Integer.parseInt(a.get(0).get(0));
-         if (userNum > 0)
-		      return name;
+         //keep the logged userID in the session for access in other functions
+         int loggeduserID = esql.executeQueryForInt(LOG_IN, -1, name, password);
+         if (loggeduserID >= 0)
+		      return Session.open(esql, loggeduserID, name);
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -425,59 +2167,56 @@ public class Retail {
 
 // Rest of the functions definition go in here
 
-   public static String getProduct() {
-      int product_num;
+   /*
+    * Asks for a product by its number in the menu or by the start of its name.
+    * The menu lists every product when there are few of them, otherwise the
+    * products matching the typed name.
+    * @return the name of the chosen product
+    **/
+   public static String getProduct(Retail esql) throws SQLException {
+      ProductCatalog catalog = esql.getCatalog();
+      int[] choices = null;
+      if (catalog.productCount() <= PRODUCT_MENU_SIZE)
+         choices = catalog.findByPrefix("");
       while(true) {
          try {
-            System.out.println("\n\t1. 7up");
-            System.out.println("\t2. Brisk");
-            System.out.println("\t3. Donuts");
-            System.out.println("\t4. Egg");
-            System.out.println("\t5. Hot and Sour Soup");
-            System.out.println("\t6. Ice Cream");
-            System.out.println("\t7. Lemonade");
-            System.out.println("\t8. Orange Juice");
-            System.out.println("\t9. Pepsi");
-            System.out.println("\t10. Pudding");
-            System.out.print("Enter the number of the product: ");
-            product_num = Integer.parseInt(in.readLine());
-
-            if (product_num == 1) {
-               return "7up";
+            if (choices != null) {
+               System.out.println();
+               for (int i = 0; i < choices.length; ++i)
+                  System.out.println("\t" + (i + 1) + ". " + catalog.getName(choices[i]));
+               System.out.print("Enter the number or the name of the product: ");
             }
-            else if (product_num == 2) {
-               return "Brisk";
-            }
-            else if (product_num == 3) {
-               return "Donuts";
-            }
-            else if (product_num == 4) {
-               return "Egg";
-            }
-            else if (product_num == 5) {
-               return "Hot and Sour Soup";
+            else {
+               System.out.print("Enter the name of the product: ");
             }
-            else if (product_num == 6) {
-               return "Ice Cream";
+            String input = in.readLine().trim();
+            if (choices != null && input.matches("\\d+")) {
+               int product_num = Integer.parseInt(input);
+               if (product_num >= 1 && product_num <= choices.length) {
+                  return catalog.getName(choices[product_num - 1]);
+               }
+               System.out.println("No such product.\n");
+               continue;
             }
-            else if (product_num == 7) {
-               return "Lemonade";
+
+            int exact = catalog.getProductID(input);
+            if (exact >= 0) {
+               return catalog.getName(exact);
             }
-            else if (product_num == 8) {
-               return "Orange Juice";
+            int[] found = catalog.findByPrefix(input);
+            if (found.length == 1) {
+               return catalog.getName(found[0]);
             }
-            else if (product_num == 9) {
-               return "Pepsi";
+            else if (found.length == 0) {
+               System.out.println("No such product.\n");
             }
-            else if (product_num == 10) {
-               return "Pudding";
+            else if (found.length <= PRODUCT_MENU_SIZE) {
+               choices = found;
             }
             else {
-               System.out.println("No such product.\n");
-               continue;
+               System.out.println(found.length + " products start with \"" + input + "\", please enter more of the name.\n");
             }
          }
-      
          catch(Exception e) {
             System.out.println(e);
             continue;
@@ -485,18 +2224,17 @@ public class Retail {
       }
    }
 
-   public static void viewStores(Retail esql) {
+   public static void viewStores(Retail esql, Session session) {
       try {
-         String Query = String.format("SELECT S.storeID as Store_ID, S.name as Store_Name FROM Store S, Users U WHERE U.userID = " + loggeduserID + " AND calculate_distance(U.latitude, u.longitude, s.latitude, s.longitude) < 30;");
          System.out.println("\nStores within 30 miles:");
-         esql.executeQueryAndPrintResult(Query);
+         esql.printStoresNear(session, System.out);
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
 
-   public static void viewProducts(Retail esql) {
+   public static void viewProducts(Retail esql, Session session) {
       int storeID;
       try {
          System.out.print("Enter Store ID: ");
@@ -505,16 +2243,15 @@ public class Retail {
             System.out.println("\nInvalid Store ID\n");
             return;
          }   
-			String Query = ("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P, Store S WHERE S.storeID = " + storeID + " AND P.storeID = " + storeID + ";");
 		   System.out.println("\nProducts available at Store " + storeID + ":");
-         esql.executeQueryAndPrintResult(Query);
+         esql.printProducts(storeID, System.out);
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
 
-   public static void placeOrder(Retail esql) {
+   public static void placeOrder(Retail esql, Session session) {
       int storeID;
       String productName;
       int numberOfUnits;
@@ -526,10 +2263,7 @@ public class Retail {
             //gets the id
 				storeID = Integer.parseInt(in.readLine());
             //checks if id is within user radius
-            String Query = String.format("SELECT S.storeID FROM Store S, Users U WHERE U.userID = " + loggeduserID + " AND calculate_distance(U.latitude, u.longitude, s.latitude, s.longitude) < 30 AND S.storeID = " + storeID + ";");
-            //throws error if out of range because the list is empty
-            List<List<String>> storeList = esql.executeQueryAndReturnResult(Query); 
-            if (storeList.size() <= 0) {
+            if (!esql.isStoreWithinRadius(session, storeID)) {
                System.out.println("That store is too far or does not exist. Please select a store within 30 miles.");
                continue;
             }
@@ -544,7 +2278,7 @@ public class Retail {
       //get name of product
       while(true) {
          try {
-				productName = getProduct();
+				productName = getProduct(esql);
             System.out.println(productName);
 				break;
 			}
@@ -555,338 +2289,325 @@ public class Retail {
 			}
       }  
 
-      //get number of units
+      //get number of units and place the order
       while(true) {
          System.out.print("Enter the amount of product you wish to order: ");
          try {
-            String query = String.format("SELECT P.numberOfUnits FROM Product P, Store S WHERE S.storeID = " + storeID + " AND P.storeID = " + storeID + " AND P.productName = '" + productName + "';");
-            List<List<String>> productAmntList = esql.executeQueryAndReturnResult(query);
             numberOfUnits = Integer.parseInt(in.readLine());
-            int productAmnt = Integer.parseInt(productAmntList.get(0).get(0));
-            if(productAmnt - numberOfUnits < 0) {
+            if (numberOfUnits <= 0) {
+               System.out.println("Not a valid amount");
+               continue;
+            }
+            int orderNumber = esql.submitOrder(session.getUserID(), storeID, productName, numberOfUnits);
+            if (orderNumber < 0) {
+               //rejected, read what is left for the message
+               int productAmnt = esql.executeQueryForInt(PRODUCT_UNITS, -1, storeID, productName);
+               if (productAmnt < 0) {
+                  System.out.println("Store " + storeID + " does not sell " + productName + ".");
+                  return;
+               }
                System.out.println("The amount of product you wish to order exceeds the amount of product left, please re-enter the product amount. Amount of product left: " + productAmnt);
                continue;
             }
+            System.out.println ("Order successfully placed!");
             break;
          }
-			catch(Exception e) {
+			catch(NumberFormatException e) {
 				System.out.println("Not a valid amount");
 				System.out.println(e);
 				continue;
 			}
+         catch(Exception e){
+            System.err.println(e.getMessage ());
+            return;
+         }
+      }
+   }
+
+   public static void placeCartOrder(Retail esql, Session session) {
+      Cart cart = new Cart();
+
+      //collect the lines until an empty store id
+      while(true) {
+         System.out.print("Enter Store ID (or press enter to check out): ");
+         try {
+            String input = in.readLine().trim();
+            if (input.isEmpty()) {
+               break;
+            }
+            int storeID = Integer.parseInt(input);
+            if (!esql.isStoreWithinRadius(session, storeID)) {
+               System.out.println("That store is too far or does not exist. Please select a store within 30 miles.");
+               continue;
+            }
+            String productName = getProduct(esql);
+            System.out.print("Enter the amount of " + productName + " you wish to order: ");
+            int numberOfUnits = Integer.parseInt(in.readLine());
+            if (numberOfUnits <= 0) {
+               System.out.println("Not a valid amount");
+               continue;
+            }
+            cart.add(storeID, productName, numberOfUnits);
+            System.out.println("Cart: " + cart.size() + " products");
+         }
+         catch(NumberFormatException e) {
+            System.out.println("Not a valid number");
+            continue;
+         }
+         catch(Exception e) {
+            System.err.println(e.getMessage());
+            return;
+         }
+      }
+      if (cart.isEmpty()) {
+         return;
+      }
+
+      try {
+         int placed = esql.submitCart(session.getUserID(), cart);
+         if (placed < 0) {
+            System.out.println("Your cart could not be ordered, nothing was placed:");
+            for (Cart.Line line : cart.getLines()) {
+               if (line.getAvailable() < 0) {
+                  System.out.println("\tStore " + line.getStoreID() + " does not sell " + line.getProductName() + ".");
+               }
+               else if (!line.isAvailable()) {
+                  System.out.println("\t" + line.getUnits() + " " + line.getProductName() + " at Store " + line.getStoreID() + " exceeds the amount of product left: " + line.getAvailable());
+               }
+            }
+            return;
+         }
+         System.out.println(placed + " orders successfully placed!");
+      }
+      catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void findProduct(Retail esql, Session session) {
+      try {
+         String productName = getProduct(esql);
+         System.out.print("Enter the amount of " + productName + " you need: ");
+         int numberOfUnits = Integer.parseInt(in.readLine());
+         if (numberOfUnits <= 0) {
+            System.out.println("Not a valid amount");
+            return;
+         }
+         System.out.println("\nStores within 30 miles with " + numberOfUnits + " " + productName + ", nearest first:");
+         if (esql.printStoresWithProduct(session, productName, numberOfUnits, System.out) == 0) {
+            System.out.println("None, try a smaller amount.");
+         }
+      }
+      catch(NumberFormatException e) {
+         System.out.println("Not a valid number");
+      }
+      catch(Exception e) {
+         System.err.println(e.getMessage());
       }
+   }
 
+   public static void browseOrders(Retail esql, Session session) {
       try {
-         //inserting the new order
-         String query = String.format("INSERT INTO ORDERS (customerID, storeID, productName, unitsOrdered, orderTime) VALUES (%s, %s, '%s', %s, DATE_TRUNC('second', CURRENT_TIMESTAMP::timestamp))", loggeduserID, storeID, productName, numberOfUnits);
-         esql.executeUpdate(query);
-         //subtracting the number of units from specific store
-         query = String.format("SELECT P.numberOfUnits FROM Product P WHERE P.storeID = " + storeID + " AND P.productName = '" + productName + "';");
-         List<List<String>> productAmntList = esql.executeQueryAndReturnResult(query);
-         int productAmnt = Integer.parseInt(productAmntList.get(0).get(0));
-         productAmnt -= numberOfUnits;
-
-         query = String.format("UPDATE Product SET numberOfUnits = " + productAmnt + " WHERE storeID = " + storeID + " AND productName = '" + productName + "';");
-         esql.executeUpdate(query);
-         System.out.println ("Order successfully placed!");
+         String cursor = null;
+         do {
+            cursor = esql.printOrderPage(session, cursor, PageCursor.DEFAULT_PAGE_SIZE, System.out);
+            if (cursor == null) {
+               System.out.println("\nNo more orders.");
+               return;
+            }
+            System.out.print("\nPress enter for older orders, anything else to stop: ");
+         } while (in.readLine().trim().isEmpty());
       }
-      catch(Exception e){
-         System.err.println(e.getMessage ());
+      catch(Exception e) {
+         System.err.println(e.getMessage());
       }
    }
 
-   public static void viewRecentOrders(Retail esql) {
+   public static void viewRecentOrders(Retail esql, Session session) {
       try {
-         String query = String.format("SELECT O.storeID, U.name AS username, S.name AS storename, O.productName, O.unitsOrdered, O.orderTime FROM Orders O, Store S, user U WHERE O.customerID = " + loggeduserID + " AND O.storeID = S.storeID ORDER BY orderTime DESC LIMIT 5;");
-         esql.executeQueryAndPrintResult(query);
+         esql.printRecentOrders(session, System.out);
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
 
-   public static void updateProduct(Retail esql) {
+   /*
+    * Asks a manager or admin for a store they may work on
+    * @return the store id, or -1 if the store is invalid or not theirs
+    **/
+   public static int readManagedStoreID(Session session) throws Exception {
+      System.out.print("Enter Store ID: ");
+      int storeID = Integer.parseInt(in.readLine());
+      if(storeID > 20 || storeID <= 0) {
+         System.out.println("\nInvalid Store ID.\n");
+         return -1;
+      }
+      if (!session.isAdmin() && !session.manages(storeID)) {
+         System.out.println("\nYou are not the manager of Store " + storeID + "\n");
+         return -1;
+      }
+      return storeID;
+   }
+
+   public static void updateProduct(Retail esql, Session session) {
       int storeID;
       String product_to_update = "";
       int updated_num_units;
       int updated_price_per_unit;
       try {
-         String query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
-
-         if (userType.equals("manager")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\n Invalid Store ID.\n");
-               return;
-            }
-
-            query = String.format("SELECT storeID, name, managerID FROM store WHERE managerID = " + loggeduserID + " AND storeID = " + storeID + ";");
-            List<List<String>> storeIDList = esql.executeQueryAndReturnResult(query);
-            int enteredstoreID = storeIDList.size();
-            if (enteredstoreID <= 0) {
-               System.out.println("\nYou are not the manager of Store " + storeID + "\n");
-               return;
-            }
-
-            product_to_update = getProduct();
-            System.out.printf("Update the number of units of %s at Store %d: ", product_to_update, storeID);
-            updated_num_units = Integer.parseInt(in.readLine());
-            System.out.print("Update the price of " + product_to_update + ": ");
-            updated_price_per_unit = Integer.parseInt(in.readLine()); 
-
-            query = String.format("UPDATE product P SET numberofUnits = " + updated_num_units + ", pricePerUnit = " + updated_price_per_unit + " FROM users U JOIN store S ON S.managerID = U.userID WHERE U.userID = " + loggeduserID + " AND S.storeID = " + storeID + " AND S.storeID = P.storeID AND P.productName = \'" + product_to_update + "\';");
-            esql.executeUpdate(query);
-            System.out.printf("\nSuccessfully updated %s at Store %d", product_to_update, storeID);
-            query = String.format("INSERT INTO productupdates (managerID, storeID, productName, updatedOn) VALUES (%s, %s,'%s', CURRENT_TIMESTAMP(0))",  loggeduserID, storeID, product_to_update);
-            esql.executeUpdate(query);   
-            System.out.println("\nSuccessfully updated productUpdates table\n");
-         }        
-
-         else if (userType.equals("admin")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\n Invalid Store ID.\n");
-               return;
-            }
-
-            product_to_update = getProduct();
-            System.out.printf("Update the number of units of %s at Store %d: ", product_to_update, storeID);
-            updated_num_units = Integer.parseInt(in.readLine());
-            System.out.print("Update the price of " + product_to_update + ": ");
-            updated_price_per_unit = Integer.parseInt(in.readLine()); 
-
-            query = String.format("UPDATE product P SET numberofUnits = " + updated_num_units + ", pricePerUnit = " + updated_price_per_unit + " WHERE P.storeID = " + storeID + "  AND P.productName = \'" + product_to_update + "\';");
-            esql.executeUpdate(query);
-            System.out.printf("\nSuccessfully updated %s at Store %d", product_to_update, storeID);
-            query = String.format("INSERT INTO productupdates (managerID, storeID, productName, updatedOn) VALUES (%s, %s,'%s', CURRENT_TIMESTAMP(0))",  loggeduserID, storeID, product_to_update);
-            esql.executeUpdate(query);   
-            System.out.println("\nSuccessfully updated productUpdates table\n");
-         }      
-
-         else {
+         if (!session.isManager() && !session.isAdmin()) {
             System.out.println("You do not have access to this.\n");
             return;            
          }  
+         storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+
+         product_to_update = getProduct(esql);
+         System.out.printf("Update the number of units of %s at Store %d: ", product_to_update, storeID);
+         updated_num_units = Integer.parseInt(in.readLine());
+         System.out.print("Update the price of " + product_to_update + ": ");
+         updated_price_per_unit = Integer.parseInt(in.readLine()); 
+
+         if (!esql.updateProduct(session, storeID, product_to_update, updated_num_units, updated_price_per_unit)) {
+            System.out.println("\nStore " + storeID + " does not sell " + product_to_update + "\n");
+            return;
+         }
+         System.out.printf("\nSuccessfully updated %s at Store %d", product_to_update, storeID);
+         System.out.println("\nSuccessfully updated productUpdates table\n");
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
-   public static void viewRecentUpdates(Retail esql) {
-      //check to make sure if type is manager or admin
-      //need to implement two queries where manager only sees their stores and admin sees all
+   public static void viewRecentUpdates(Retail esql, Session session) {
+      //managers only see their own updates, admins see all
       try {
-         String query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
-         if(userType.equals("manager")) {
-            int storeID;
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\nInvalid Store ID.\n");
-               return;
-            }
-            query = String.format("SELECT storeID, name, managerID FROM store WHERE managerID = " + loggeduserID + " AND storeID = " + storeID + ";");
-            List<List<String>> storeIDList = esql.executeQueryAndReturnResult(query);
-            int enteredstoreID = storeIDList.size();
-            if (enteredstoreID <= 0) {
-               System.out.println("\nYou are not the manager of Store " + storeID + "\n");
-               return;
-            }
-            
-            System.out.println("The most recent updates to the products of Store " + storeID + " are: ");
-            query = String.format("SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.managerID = " + loggeduserID + " AND P.storeID = " + storeID  + " ORDER BY P.updateNumber DESC LIMIT 5;");
-            esql.executeQueryAndPrintResult(query);
-            System.out.println("\n");
-         }
-         else if (userType.equals("admin")) {
-            int storeID;
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\nInvalid Store ID.\n");
-               return;
-            }            
-            System.out.println("The most recent updates to the products of Store " + storeID + " are: ");
-            query = String.format("SELECT P.updatenumber, P.managerId, P.storeID, P.productName, P.updatedOn FROM productUpdates P WHERE P.storeID = " + storeID  + " ORDER BY P.updateNumber DESC LIMIT 5;");
-            esql.executeQueryAndPrintResult(query);            
-         }
-         else {
+         if (!session.isManager() && !session.isAdmin()) {
             System.out.println("You do not have access to this.");
             return;
          }
+         int storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+         System.out.println("The most recent updates to the products of Store " + storeID + " are: ");
+         esql.printRecentUpdates(session, storeID, System.out);
+         System.out.println("\n");
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
-   public static void viewPopularProducts(Retail esql) {
-      int storeID;
+   public static void viewPopularProducts(Retail esql, Session session) {
       try {
-         String query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
-
-         if (userType.equals("manager")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\n Store ID.\n");
-               return;
-            }
-            query = String.format("SELECT storeID, name, managerID FROM store WHERE managerID = " + loggeduserID + " AND storeID = " + storeID + ";");
-            List<List<String>> storeIDList = esql.executeQueryAndReturnResult(query);
-            int enteredstoreID = storeIDList.size();
-            if (enteredstoreID <= 0) {
-               System.out.println("\nYou are not the manager of Store " + storeID + "\n");
-               return;
-            }
-            else {
-               System.out.println("\nTop 5 products from Store " + storeID + ": ");
-               query = String.format("SELECT P.productname, COUNT(O.unitsOrdered) AS Number_of_Times_Ordered FROM product P, users U, store S, orders O WHERE U.userID = " + loggeduserID + " AND U.userID = S.managerID AND S.storeID = " + storeID + " AND S.storeID = P.storeID AND O.storeID = P.storeID AND P.productName = O.productname GROUP BY P.productname ORDER BY Number_of_Times_Ordered DESC LIMIT 5;");
-               esql.executeQueryAndPrintResult(query);
-               System.out.println("\n"); 
-            }
-         }
-
-         else if (userType.equals("admin")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\n Store ID.\n");
-               return;
-            }
-            System.out.println("\nTop 5 products from Store " + storeID + ": ");
-            query = String.format("SELECT O.productname, COUNT(O.unitsOrdered) AS Number_of_Times_Ordered FROM orders O WHERE O.storeID = " + storeID + " GROUP BY O.productname ORDER BY Number_of_Times_Ordered DESC LIMIT 5;");
-            esql.executeQueryAndPrintResult(query);
-            System.out.println("\n"); 
-            }
-         else {
+         if (!session.isManager() && !session.isAdmin()) {
             System.out.println("You do not have access to this.\n");
             return;            
          }
-
+         int storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+         System.out.println("\nTop 5 products from Store " + storeID + ": ");
+         esql.printPopularProducts(storeID, System.out);
+         System.out.println("\n"); 
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
 
-   public static void viewPopularCustomers(Retail esql) {
-      int storeID;
+   public static void viewPopularCustomers(Retail esql, Session session) {
       try {
-         String query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
-
-         if (userType.equals("manager")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\nInvalid Store ID.\n");
-               return;
-            }
-            query = String.format("SELECT storeID, name, managerID FROM store WHERE managerID = " + loggeduserID + " AND storeID = " + storeID + ";");
-            List<List<String>> storeIDList = esql.executeQueryAndReturnResult(query);
-            int enteredstoreID = storeIDList.size();
-            if (enteredstoreID <= 0) {
-               System.out.println("\nYou are not the manager of Store " + storeID + "\n");
-               return;
-            }
-            System.out.println("\nYour top 5 customers from Store " + storeID + ": ");
-            query = String.format("SELECT * FROM users U INNER JOIN (SELECT O.customerID, COUNT(O.customerID) as Number_of_Orders_Placed FROM orders O, users U, store S WHERE  U.userID = " + loggeduserID +" AND U.userID = S.managerID AND S.storeID = " + storeID + " AND S.storeID = O.storeID GROUP BY O.customerID ORDER BY Number_of_Orders_Placed DESC) AS x ON U.userID = x.CustomerID ORDER BY Number_of_Orders_Placed DESC LIMIT 5;");
-            esql.executeQueryAndPrintResult(query);
-            System.out.println("\n");
-         }
-
-         else if (userType.equals("admin")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\nInvalid Store ID.\n");
-               return;
-            }
-            
-            System.out.println("\nYour top 5 customers from Store " + storeID + ": ");
-            query = String.format("SELECT * FROM users U INNER JOIN (SELECT O.customerID, COUNT(O.customerID) as Number_of_Orders_Placed FROM orders O WHERE O.storeID = " + storeID + " GROUP BY O.customerID ORDER BY Number_of_Orders_Placed DESC) AS x ON U.userID = x.CustomerID ORDER BY Number_of_Orders_Placed DESC LIMIT 5;");
-            esql.executeQueryAndPrintResult(query);
-            System.out.println("\n");
-         }
-         else {
+         if (!session.isManager() && !session.isAdmin()) {
             System.out.println("You do not have access to this.\n");
             return;            
          }
+         int storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+         System.out.println("\nYour top 5 customers from Store " + storeID + ": ");
+         esql.printPopularCustomers(storeID, System.out);
+         System.out.println("\n");
       }
 		catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
-   public static void placeProductSupplyRequests(Retail esql) {
+   public static void viewSalesTrend(Retail esql, Session session) {
+      try {
+         if (!session.isManager() && !session.isAdmin()) {
+            System.out.println("You do not have access to this.\n");
+            return;
+         }
+         int storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+         System.out.print("Enter the number of days (press enter for 30): ");
+         String input = in.readLine().trim();
+         int days = input.isEmpty() ? 30 : Integer.parseInt(input);
+         if (days <= 0) {
+            System.out.println("Not a valid number of days");
+            return;
+         }
+         System.out.print("Enter a product, or press enter for the whole store: ");
+         String productName = in.readLine().trim();
+         System.out.println("\nDaily sales of " + (productName.isEmpty() ? "Store " + storeID : productName + " at Store " + storeID)
+                            + " over the last " + days + " days:");
+         if (esql.printSalesTrend(storeID, productName.isEmpty() ? null : productName, days, false, System.out) == 0) {
+            System.out.println("No sales.");
+         }
+         System.out.println();
+      }
+      catch(NumberFormatException e) {
+         System.out.println("Not a valid number");
+      }
+      catch(Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }
+
+   public static void placeProductSupplyRequests(Retail esql, Session session) {
       int storeID;
       String product_to_order = "";
       int num_units_needed;
       int warehouse_num;
-      int productAmnt;
       try {
-         String query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
-
-         if (userType.equals("manager")) {
-            System.out.print("Enter Store ID: ");
-            storeID = Integer.parseInt(in.readLine());
-            if(storeID > 20 || storeID <= 0) {
-               System.out.println("\nInvalid Store ID.\n");
-               return;
-            }
-            query = String.format("SELECT storeID, name, managerID FROM store WHERE managerID = " + loggeduserID + " AND storeID = " + storeID + ";");
-            List<List<String>> storeIDList = esql.executeQueryAndReturnResult(query);
-            int enteredstoreID = storeIDList.size();
-            if (enteredstoreID <= 0) {
-               System.out.println("\nYou are not the manager of Store " + storeID + "\n");
-               return;
-            }
-
-            else {
-               product_to_order = getProduct();
-               System.out.printf("Number of units of %s needed: ", product_to_order);
-               num_units_needed = Integer.parseInt(in.readLine());
-               System.out.print("Enter the warehouse ID you'd like to place an order for " + product_to_order + " from: ");
-               warehouse_num = Integer.parseInt(in.readLine()); 
-               if (warehouse_num < 0 || warehouse_num > 5) {
-                  System.out.println("No such warehouse.");
-                  return;
-               }
-               else {
-                  System.out.println ("\nOrder from Warehouse " + warehouse_num + " successfully placed! \n");
-                  query = String.format("SELECT P.numberOfUnits FROM Product P WHERE P.storeID = " + storeID + " AND P.productName = '" + product_to_order + "';");
-                  esql.executeQuery(query);
-                  List<List<String>> productAmntList = esql.executeQueryAndReturnResult(query);
-                  productAmnt = Integer.parseInt(productAmntList.get(0).get(0));
-                  productAmnt += num_units_needed;
-                  query = String.format("UPDATE product P SET numberofUnits = " + productAmnt + " FROM store S WHERE S.managerID = " + loggeduserID + " AND S.storeID = " + storeID + " AND P.storeID = S.storeID AND P.productName = '" + product_to_order + "';");
-                  esql.executeUpdate(query);
-                  query = String.format("INSERT INTO productSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES ( %s, %s, %s, '%s', %s )", loggeduserID, warehouse_num, storeID, product_to_order, num_units_needed);
-                  esql.executeUpdate(query);
-               }
-            }
-         }
-         else {
+         if (!session.isManager()) {
             System.out.println("You do not have access to this.\n");
             return;            
          }
+         storeID = readManagedStoreID(session);
+         if (storeID < 0) {
+            return;
+         }
+
+         product_to_order = getProduct(esql);
+         System.out.printf("Number of units of %s needed: ", product_to_order);
+         num_units_needed = Integer.parseInt(in.readLine());
+         System.out.print("Enter the warehouse ID you'd like to place an order for " + product_to_order + " from: ");
+         warehouse_num = Integer.parseInt(in.readLine()); 
+         if (warehouse_num < 0 || warehouse_num > 5) {
+            System.out.println("No such warehouse.");
+            return;
+         }
+         if (!esql.requestSupply(session, storeID, product_to_order, num_units_needed, warehouse_num)) {
+            System.out.println("\nStore " + storeID + " does not sell " + product_to_order + "\n");
+            return;
+         }
+         System.out.println ("\nOrder from Warehouse " + warehouse_num + " successfully placed! \n");
       }
       catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
    }
 
-   public static void updateUser(Retail esql) {
+   public static void updateUser(Retail esql, Session session) {
       int userID;
       int updateNumber;
       String name;
@@ -896,9 +2617,7 @@ public class Retail {
       String query;
       //check if user is an Admin
       try {
-         query = String.format("SELECT type FROM Users WHERE userID = " + loggeduserID + ";");
-         List<List<String>> userTypeList = esql.executeQueryAndReturnResult(query);
-         String userType = userTypeList.get(0).get(0).replaceAll("\\s+", "");
+         String userType = session.getType();
          if(!userType.equals("admin")) {
             System.out.println("You are not an administrator.");
             return;
@@ -914,9 +2633,8 @@ public class Retail {
          try {
             System.out.println("\nEnter userID that you would like to update: ");
             userID = Integer.parseInt(in.readLine());
-            query = String.format("SELECT name FROM Users WHERE userID = " + userID + ";");
-            List<List<String>> userExistsList = esql.executeQueryAndReturnResult(query);
-            if(userExistsList.size() <= 0) {
+            query = "SELECT name FROM Users WHERE userID = ?";
+            if(esql.executeQuery(query, userID) <= 0) {
                System.out.println("This user does not exist, please enter a valid userID");
                continue;
             }
@@ -938,32 +2656,36 @@ public class Retail {
             if(updateNumber == 1) {
                System.out.println("\nEnter the new name: ");
                name = in.readLine();
-               query = String.format("UPDATE Users U SET name = '" + name + "' WHERE userID = " + userID + ";");
-               esql.executeUpdate(query);
+               query = "UPDATE Users U SET name = ? WHERE userID = ?";
+               esql.executeUpdate(query, name, userID);
+               esql.invalidateAuthorization(userID);
                System.out.println("Name successfully updated!");
                break;
             }
             else if(updateNumber == 2) {
                System.out.println("\nEnter the new password: ");
                password = in.readLine();
-               query = String.format("UPDATE Users U SET password = '" + password + "' WHERE userID = " + userID + ";");
-               esql.executeUpdate(query);
+               query = "UPDATE Users U SET password = ? WHERE userID = ?";
+               esql.executeUpdate(query, password, userID);
+               esql.invalidateAuthorization(userID);
                System.out.println("Password successfully updated!");
                break;
             }
             else if(updateNumber == 3) {
                System.out.println("\nEnter the new latitude: ");
                latitude = in.readLine();
-               query = String.format("UPDATE Users U SET latitude = " + latitude + " WHERE userID = " + userID + ";");
-               esql.executeUpdate(query);
+               query = "UPDATE Users U SET latitude = ? WHERE userID = ?";
+               esql.executeUpdate(query, new BigDecimal(latitude), userID);
+               esql.invalidateAuthorization(userID);
                System.out.println("Latitude successfully updated!");
                break;
             }
             else if(updateNumber == 4) {
                System.out.println("\nEnter the new latitude: ");
                longitude = in.readLine();
-               query = String.format("UPDATE Users U SET latitude = " + longitude + " WHERE userID = " + userID + ";");
-               esql.executeUpdate(query);
+               query = "UPDATE Users U SET latitude = ? WHERE userID = ?";
+               esql.executeUpdate(query, new BigDecimal(longitude), userID);
+               esql.invalidateAuthorization(userID);
                System.out.println("Longitude successfully updated!");
                break;
             }
@@ -0,0 +1,289 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class serves the Retail operations over HTTP with the JDK's built-in
+ * server. Every operation BatchRunner knows is available at /api/<name>,
+ * with its arguments in the query string or, for POST, a form encoded body:
+ *
+ *    GET  /api/viewStores
+ *    GET  /api/viewProducts?store=3
+ *    GET  /api/findProduct?product=Pepsi&units=4
+ *    GET  /api/pageOrders?limit=50&cursor=<next of the previous page>
+ *    POST /api/placeOrder           store=3&product=Pepsi&units=4
+ *    GET  /api/viewPopularProducts?store=3
+ *
+ * Users authenticate with HTTP Basic (name and password, as at log in);
+ * the user= argument is always the authenticated user. The response is the
+ * JSON object BatchRunner returns, with the status mapped to 200, 409
+ * (rejected), 403, 400, 503 or 500. GET /metrics serves QueryMetrics and the
+ * pool counters in the Prometheus text format, GET /health the pool stats.
+ *
+ * Requests run on a virtual thread each when the JVM has them (Java 21+),
+ * on a cached thread pool otherwise. Backpressure is explicit: at most
+ * -Dretail.http.maxInFlight requests run at once and the others are turned
+ * away with 503 and Retry-After at once, and a request that waits longer
+ * than -Dretail.pool.timeout (2 s by default here) for a database
+ * connection gets 503 too, instead of queueing without bound.
+ *
+ * Usage: RetailServer <dbname> <port> <user> [httpPort]
+ */
+public class RetailServer {
+
+   public static final int DEFAULT_HTTP_PORT = 8080;
+
+   // requests admitted at once, per pooled connection
+   public static final int DEFAULT_IN_FLIGHT_PER_CONNECTION = 64;
+
+   // borrow timeout for requests unless -Dretail.pool.timeout is set
+   public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 2000;
+
+   // operations that change data and must be POSTed
+   private static final Set<String> WRITES = new HashSet<String>(Arrays.asList(
+      "placeOrder", "placeCartOrder", "updateProduct", "placeProductSupplyRequests", "rebuildSales"));
+
+   private final Retail _esql;
+   private final BatchRunner _runner;
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final Semaphore _inFlight;
+   private final int _maxInFlight;
+
+   public RetailServer(Retail esql, int port, int maxInFlight) throws IOException {
+      this._esql = esql;
+      // BatchRunner reads the listings back as TSV, whatever -Dretail.print.format says
+      esql.setPrintFormat(ResultPrinter.Format.TSV, ResultPrinter.DEFAULT_FETCH_SIZE);
+      this._runner = new BatchRunner(esql);
+      this._inFlight = new Semaphore(maxInFlight);
+      this._maxInFlight = maxInFlight;
+      this._executor = newExecutor();
+      this._server = HttpServer.create(new InetSocketAddress(port), 1024);
+      this._server.setExecutor(this._executor);
+      this._server.createContext("/api/", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            admit(exchange);
+         }
+      });
+      this._server.createContext("/metrics", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            metrics(exchange);
+         }
+      });
+      this._server.createContext("/health", new HttpHandler() {
+         public void handle(HttpExchange exchange) throws IOException {
+            send(exchange, 200, "{\"pool\":" + BatchRunner.quote(RetailServer.this._esql.getPool().stats()) + "}");
+         }
+      });
+   }//end RetailServer
+
+   public void start() {
+      this._server.start();
+   }//end start
+
+   /**
+    * Stops accepting requests, waits up to the given time for running ones
+    * and stops the request threads.
+    */
+   public void stop(int seconds) {
+      this._server.stop(seconds);
+      this._executor.shutdown();
+   }//end stop
+
+   // runs the request if there is room for it, 503 otherwise
+   private void admit(HttpExchange exchange) throws IOException {
+      if (!this._inFlight.tryAcquire()) {
+         exchange.getResponseHeaders().set("Retry-After", "1");
+         send(exchange, 503, "{\"status\":\"busy\",\"error\":\"Too many requests in flight\"}");
+         return;
+      }//end if
+      try {
+         api(exchange);
+      } finally {
+         this._inFlight.release();
+      }//end try
+   }//end admit
+
+   private void api(HttpExchange exchange) throws IOException {
+      String op = exchange.getRequestURI().getPath().substring("/api/".length());
+      String method = exchange.getRequestMethod();
+      if (WRITES.contains(op) ? !method.equals("POST") : !(method.equals("GET") || method.equals("POST"))) {
+         exchange.getResponseHeaders().set("Allow", WRITES.contains(op) ? "POST" : "GET, POST");
+         send(exchange, 405, "{\"status\":\"invalid\",\"error\":\"Use " + (WRITES.contains(op) ? "POST" : "GET") + "\"}");
+         return;
+      }//end if
+
+      Map<String, String> args = new LinkedHashMap<String, String>();
+      parseForm(exchange.getRequestURI().getRawQuery(), args);
+      if (method.equals("POST"))
+         parseForm(new String(readBody(exchange.getRequestBody()), "UTF-8"), args);
+
+      // the user is who authenticated, never an argument
+      args.remove("user");
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      int userID;
+      try {
+         userID = authenticate(authorization);
+      } catch (SQLException e) {
+         boolean busy = ConnectionPool.TIMEOUT_SQL_STATE.equals(e.getSQLState());
+         if (busy)
+            exchange.getResponseHeaders().set("Retry-After", "1");
+         send(exchange, busy ? 503 : 500, "{\"status\":\"" + (busy ? "busy" : "error") + "\",\"error\":"
+                                          + BatchRunner.quote(String.valueOf(e.getMessage())) + "}");
+         return;
+      }//end try
+      if (userID < 0) {
+         exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"retail\"");
+         send(exchange, 401, "{\"status\":\"denied\",\"error\":\"Log in with your name and password\"}");
+         return;
+      }//end if
+      args.put("user", Integer.toString(userID));
+
+      BatchRunner.Result result = this._runner.execute(op, args);
+      if (result.getStatus().equals("busy"))
+         exchange.getResponseHeaders().set("Retry-After", "1");
+      send(exchange, httpStatus(result.getStatus()), result.toJson());
+   }//end api
+
+   // the userID of a Basic Authorization header, -1 if it does not log in;
+   // checked against Users on every request, past the result cache, so a
+   // changed password stops working at once
+   private int authenticate(String authorization) throws SQLException {
+      if (authorization == null || !authorization.startsWith("Basic "))
+         return -1;
+      String decoded;
+      try {
+         decoded = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), "UTF-8");
+      } catch (IllegalArgumentException e) {
+         return -1;
+      } catch (UnsupportedEncodingException e) {
+         return -1;
+      }//end try
+      int colon = decoded.indexOf(':');
+      if (colon < 0)
+         return -1;
+      PooledConnection conn = this._esql.getPool().borrow();
+      try {
+         return this._esql.executeQueryForInt(conn, Retail.LOG_IN, -1, decoded.substring(0, colon),
+                                              decoded.substring(colon + 1));
+      } finally {
+         this._esql.getPool().release(conn);
+      }//end try
+   }//end authenticate
+
+   private void metrics(HttpExchange exchange) throws IOException {
+      ConnectionPool pool = this._esql.getPool();
+      StringBuilder text = new StringBuilder();
+      this._esql.getMetrics().writePrometheus(text);
+      if (this._esql.getResultCache() != null)
+         this._esql.getResultCache().writePrometheus(text);
+      text.append("# TYPE retail_pool_active gauge\nretail_pool_active ").append(pool.getActiveCount()).append('\n');
+      text.append("# TYPE retail_pool_size gauge\nretail_pool_size ").append(pool.getMaxSize()).append('\n');
+      text.append("# TYPE retail_pool_timeouts_total counter\nretail_pool_timeouts_total ")
+          .append(pool.getTimeoutCount()).append('\n');
+      text.append("# TYPE retail_http_in_flight gauge\nretail_http_in_flight ")
+          .append(this._maxInFlight - this._inFlight.availablePermits()).append('\n');
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+      byte[] body = text.toString().getBytes("UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }//end metrics
+
+   private static int httpStatus(String status) {
+      if (status.equals("ok"))
+         return 200;
+      if (status.equals("rejected"))
+         return 409;
+      if (status.equals("denied"))
+         return 403;
+      if (status.equals("invalid"))
+         return 400;
+      if (status.equals("busy"))
+         return 503;
+      return 500;
+   }//end httpStatus
+
+   private static void send(HttpExchange exchange, int status, String json) throws IOException {
+      byte[] body = json.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+   }//end send
+
+   private static void parseForm(String form, Map<String, String> args) throws UnsupportedEncodingException {
+      if (form == null || form.isEmpty())
+         return;
+      for (String pair : form.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0)
+            args.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }//end for
+   }//end parseForm
+
+   private static byte[] readBody(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) > 0; )
+         body.write(buffer, 0, n);
+      in.close();
+      return body.toByteArray();
+   }//end readBody
+
+   // a virtual thread per request when available, found by reflection so
+   // this compiles and runs on older JVMs too
+   private static ExecutorService newExecutor() {
+      try {
+         Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) virtual.invoke(null);
+      } catch (Exception e) {
+         return Executors.newCachedThreadPool();
+      }//end try
+   }//end newExecutor
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java RetailServer <dbname> <port> <user> [httpPort]");
+         return;
+      }//end if
+      int httpPort = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HTTP_PORT;
+      if (System.getProperty("retail.pool.timeout") == null)
+         System.setProperty("retail.pool.timeout", Long.toString(DEFAULT_BORROW_TIMEOUT_MILLIS));
+
+      Class.forName("org.postgresql.Driver");
+      final Retail esql = new Retail(args[0], args[1], args[2], "");
+      int maxInFlight = Integer.getInteger("retail.http.maxInFlight",
+                                           esql.getPool().getMaxSize() * DEFAULT_IN_FLIGHT_PER_CONNECTION);
+      final RetailServer server = new RetailServer(esql, httpPort, maxInFlight);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+         public void run() {
+            server.stop(5);
+            esql.cleanup();
+         }
+      });
+      server.start();
+      System.out.println("Serving on port " + httpPort + ", " + maxInFlight + " requests in flight over "
+                         + esql.getPool().getMaxSize() + " connections");
+   }//end main
+}//end RetailServer
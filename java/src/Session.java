@@ -0,0 +1,135 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * This class holds the per-shopper context of a logged in user. Every menu
+ * operation takes the session of the user it runs for, so one Retail
+ * instance can serve many users at once.
+ *
+ * The session also caches what authorization needs: the user's type, the
+ * stores the user manages and the user's location. They are loaded once at
+ * log in and only reloaded after Retail.invalidateAuthorization() was called
+ * for this user (or for everyone), so checking a role or store costs one
+ * volatile read on the hot path.
+ *
+ */
+public class Session {
+
+   // what a session loads, shared with PlanRegressionCheck
+   static final String USER_QUERY = "SELECT type, latitude, longitude FROM Users WHERE userID = ?";
+   static final String MANAGED_STORES_QUERY = "SELECT storeID FROM Store WHERE managerID = ? ORDER BY storeID";
+
+   // the Retail instance the session was opened on, used to reload
+   private final Retail _esql;
+
+   // userID of the logged in user
+   private final int _userID;
+
+   // name the user logged in with
+   private final String _name;
+
+   // current authorization snapshot, replaced as a whole on reload
+   private volatile Authorization _auth;
+
+   /**
+    * Immutable snapshot of a user's role, location and managed stores.
+    */
+   private static final class Authorization {
+      final String type;
+      final double latitude;
+      final double longitude;
+      // sorted storeIDs of the stores the user manages
+      final int[] managedStores;
+      // Retail.authorizationEpoch() when the snapshot was taken or confirmed
+      final long epoch;
+      // Retail.authorizationVersion(userID) when the snapshot was taken
+      final long version;
+
+      Authorization(String type, double latitude, double longitude, int[] managedStores, long epoch, long version) {
+         this.type = type;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.managedStores = managedStores;
+         this.epoch = epoch;
+         this.version = version;
+      }
+   }//end Authorization
+
+   private Session(Retail esql, int userID, String name) {
+      this._esql = esql;
+      this._userID = userID;
+      this._name = name;
+   }//end Session
+
+   /**
+    * Opens a session for a user whose credentials were already checked,
+    * loading the user's type, location and managed stores.
+    *
+    * @param esql the Retail instance the session runs on
+    * @param userID the userID of the user
+    * @param name the name the user logged in with
+    * @return the new session
+    * @throws java.sql.SQLException when failed to load the user
+    */
+   public static Session open(Retail esql, int userID, String name) throws SQLException {
+      Session session = new Session(esql, userID, name);
+      session._auth = session.load();
+      return session;
+   }//end open
+
+   private Authorization load() throws SQLException {
+      // read the versions first so a concurrent invalidation forces another reload
+      long epoch = this._esql.authorizationEpoch();
+      long version = this._esql.authorizationVersion(this._userID);
+      QueryResult user = this._esql.executeQueryForResult(USER_QUERY, this._userID);
+      if (user.isEmpty())
+         throw new SQLException("User " + this._userID + " no longer exists");
+      QueryResult stores = this._esql.executeQueryForResult(MANAGED_STORES_QUERY, this._userID);
+      return new Authorization(user.getString(0, 0).trim(), user.getDouble(0, 1), user.getDouble(0, 2),
+                               Arrays.copyOf(stores.getIntColumn(0), stores.getRowCount()), epoch, version);
+   }//end load
+
+   // returns the current snapshot, reloading it only if this user was invalidated
+   private Authorization auth() throws SQLException {
+      Authorization auth = this._auth;
+      long epoch = this._esql.authorizationEpoch();
+      if (auth.epoch == epoch)
+         return auth;
+      synchronized (this) {
+         auth = this._auth;
+         if (auth.epoch != epoch) {
+            if (auth.version == this._esql.authorizationVersion(this._userID))
+               auth = new Authorization(auth.type, auth.latitude, auth.longitude, auth.managedStores, epoch, auth.version);
+            else
+               auth = load();
+            this._auth = auth;
+         }//end if
+      }//end synchronized
+      return auth;
+   }//end auth
+
+   public int getUserID() { return this._userID; }
+
+   public String getName() { return this._name; }
+
+   /**
+    * @return the user's type: customer, manager or admin
+    */
+   public String getType() throws SQLException { return auth().type; }
+
+   public boolean isAdmin() throws SQLException { return "admin".equals(auth().type); }
+
+   public boolean isManager() throws SQLException { return "manager".equals(auth().type); }
+
+   /**
+    * @param storeID the store to check
+    * @return true if the user is the manager of the store
+    */
+   public boolean manages(int storeID) throws SQLException {
+      return Arrays.binarySearch(auth().managedStores, storeID) >= 0;
+   }//end manages
+
+   public double getLatitude() throws SQLException { return auth().latitude; }
+
+   public double getLongitude() throws SQLException { return auth().longitude; }
+}//end Session
@@ -0,0 +1,199 @@
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps every store's coordinates in memory in a uniform grid so
+ * that "stores within a radius" can be answered without going to the
+ * database. Distances use the same euclidean metric as
+ * Retail.calculateDistance and the calculate_distance SQL function.
+ *
+ * The grid is stored compactly: stores are sorted by cell and cellStart[c]
+ * points at the first store of cell c, so a radius query only touches the
+ * cells overlapping the query's bounding box.
+ *
+ */
+public class StoreIndex {
+
+   // store attributes, ordered by grid cell
+   private final int[] _storeIDs;
+   private final String[] _names;
+   private final double[] _lats;
+   private final double[] _longs;
+
+   // grid geometry
+   private final double _cellSize;
+   private final double _minLat;
+   private final double _minLong;
+   private final int _rows;
+   private final int _cols;
+
+   // cellStart[c] .. cellStart[c + 1] are the positions of the stores in cell c
+   private final int[] _cellStart;
+
+   // storeID -> position in the arrays above
+   private final Map<Integer, Integer> _positions;
+
+   /**
+    * Loads every store from the database into a new index
+    *
+    * @param esql the Retail instance to query through
+    * @param cellSize the side length of a grid cell
+    * @return the new index
+    * @throws java.sql.SQLException when failed to read the stores
+    */
+   public static StoreIndex load(Retail esql, double cellSize) throws SQLException {
+      QueryResult rows = esql.executeQueryForResult(
+         "SELECT storeID, name, latitude, longitude FROM Store");
+      int n = rows.getRowCount();
+      return new StoreIndex(Arrays.copyOf(rows.getIntColumn(0), n), Arrays.copyOf(rows.getStringColumn(1), n),
+                            Arrays.copyOf(rows.getDoubleColumn(2), n), Arrays.copyOf(rows.getDoubleColumn(3), n),
+                            cellSize);
+   }//end load
+
+   /**
+    * Builds an index over the given stores
+    *
+    * @param storeIDs the store ids
+    * @param names the store names
+    * @param lats the store latitudes
+    * @param longs the store longitudes
+    * @param cellSize the side length of a grid cell
+    */
+   public StoreIndex(int[] storeIDs, String[] names, double[] lats, double[] longs, double cellSize) {
+      if (cellSize <= 0)
+         throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+      int n = storeIDs.length;
+      double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+      double minLong = Double.MAX_VALUE, maxLong = -Double.MAX_VALUE;
+      for (int i = 0; i < n; ++i) {
+         minLat = Math.min(minLat, lats[i]);
+         maxLat = Math.max(maxLat, lats[i]);
+         minLong = Math.min(minLong, longs[i]);
+         maxLong = Math.max(maxLong, longs[i]);
+      }//end for
+      if (n == 0)
+         minLat = maxLat = minLong = maxLong = 0;
+
+      this._cellSize = cellSize;
+      this._minLat = minLat;
+      this._minLong = minLong;
+      this._rows = (int) ((maxLat - minLat) / cellSize) + 1;
+      this._cols = (int) ((maxLong - minLong) / cellSize) + 1;
+
+      // counting sort of the stores by cell
+      int[] cellOf = new int[n];
+      this._cellStart = new int[this._rows * this._cols + 1];
+      for (int i = 0; i < n; ++i) {
+         cellOf[i] = cell(row(lats[i]), col(longs[i]));
+         this._cellStart[cellOf[i] + 1]++;
+      }//end for
+      for (int c = 0; c < this._rows * this._cols; ++c)
+         this._cellStart[c + 1] += this._cellStart[c];
+
+      int[] next = Arrays.copyOf(this._cellStart, this._cellStart.length - 1);
+      this._storeIDs = new int[n];
+      this._names = new String[n];
+      this._lats = new double[n];
+      this._longs = new double[n];
+      this._positions = new HashMap<Integer, Integer>(n * 2);
+      for (int i = 0; i < n; ++i) {
+         int pos = next[cellOf[i]]++;
+         this._storeIDs[pos] = storeIDs[i];
+         this._names[pos] = names[i];
+         this._lats[pos] = lats[i];
+         this._longs[pos] = longs[i];
+         this._positions.put(storeIDs[i], pos);
+      }//end for
+   }//end StoreIndex
+
+   /**
+    * Finds the stores within the given radius of a point
+    *
+    * @param lat the latitude of the point
+    * @param lon the longitude of the point
+    * @param radius the search radius
+    * @return the positions of the matching stores, ordered by storeID
+    */
+   public int[] withinRadius(double lat, double lon, double radius) {
+      int r0 = Math.max(0, row(lat - radius)), r1 = Math.min(this._rows - 1, row(lat + radius));
+      int c0 = Math.max(0, col(lon - radius)), c1 = Math.min(this._cols - 1, col(lon + radius));
+      int[] found = new int[16];
+      int count = 0;
+      for (int r = r0; r <= r1; ++r) {
+         for (int c = c0; c <= c1; ++c) {
+            int cell = cell(r, c);
+            for (int pos = this._cellStart[cell]; pos < this._cellStart[cell + 1]; ++pos) {
+               if (Retail.calculateDistance(lat, lon, this._lats[pos], this._longs[pos]) < radius) {
+                  if (count == found.length)
+                     found = Arrays.copyOf(found, count * 2);
+                  found[count++] = pos;
+               }//end if
+            }//end for
+         }//end for
+      }//end for
+      found = Arrays.copyOf(found, count);
+      sortByStoreID(found);
+      return found;
+   }//end withinRadius
+
+   /**
+    * Checks whether a store lies within the given radius of a point
+    *
+    * @param storeID the store to check
+    * @param lat the latitude of the point
+    * @param lon the longitude of the point
+    * @param radius the search radius
+    * @return true if the store exists and is within the radius
+    */
+   public boolean isWithinRadius(int storeID, double lat, double lon, double radius) {
+      Integer pos = this._positions.get(storeID);
+      return pos != null && Retail.calculateDistance(lat, lon, this._lats[pos], this._longs[pos]) < radius;
+   }//end isWithinRadius
+
+   public int size() { return this._storeIDs.length; }
+
+   public int getStoreID(int pos) { return this._storeIDs[pos]; }
+
+   public String getName(int pos) { return this._names[pos]; }
+
+   public double getLatitude(int pos) { return this._lats[pos]; }
+
+   public double getLongitude(int pos) { return this._longs[pos]; }
+
+   private int row(double lat) {
+      return (int) Math.floor((lat - this._minLat) / this._cellSize);
+   }
+
+   private int col(double lon) {
+      return (int) Math.floor((lon - this._minLong) / this._cellSize);
+   }
+
+   private int cell(int row, int col) {
+      return row * this._cols + col;
+   }
+
+   // insertion sort is enough for the few stores a radius query returns,
+   // larger results fall back to sorting by (storeID, position) pairs
+   private void sortByStoreID(int[] positions) {
+      if (positions.length > 32) {
+         long[] keyed = new long[positions.length];
+         for (int i = 0; i < positions.length; ++i)
+            keyed[i] = ((long) this._storeIDs[positions[i]] << 32) | positions[i];
+         Arrays.sort(keyed);
+         for (int i = 0; i < positions.length; ++i)
+            positions[i] = (int) keyed[i];
+         return;
+      }//end if
+      for (int i = 1; i < positions.length; ++i) {
+         int p = positions[i];
+         int j = i - 1;
+         while (j >= 0 && this._storeIDs[positions[j]] > this._storeIDs[p]) {
+            positions[j + 1] = positions[j];
+            --j;
+         }//end while
+         positions[j + 1] = p;
+      }//end for
+   }//end sortByStoreID
+}//end StoreIndex
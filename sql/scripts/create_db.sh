@@ -2,5 +2,4 @@
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_tables.sql
 psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/create_indexes.sql
-psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/load_data.sql
-
+$DIR/../../java/scripts/load_data.sh
@@ -0,0 +1,24 @@
+--bounding box pruning for the "stores within 30 miles" search
+CREATE INDEX store_lat_long_idx ON Store (latitude, longitude);
+--stores of a manager, read when a session loads its authorization
+CREATE INDEX store_manager_idx ON Store (managerID, storeID);
+--log in looks users up by name
+CREATE INDEX users_name_idx ON Users (name);
+--top 5 products and customers of a store read the first rows of these
+CREATE INDEX store_product_order_count_idx ON StoreProductOrderCounts (storeID, orderCount DESC, productName);
+CREATE INDEX store_customer_order_count_idx ON StoreCustomerOrderCounts (storeID, orderCount DESC, customerID);
+--recent orders and order history pages of a customer, already in (orderTime, orderNumber) order
+CREATE INDEX orders_customer_time_idx ON Orders (customerID, orderTime DESC, orderNumber DESC);
+--orders of a store and product: per-store reports and the foreign key to Product
+CREATE INDEX orders_store_product_idx ON Orders (storeID, productName);
+--5 most recent updates of a store, for an admin or for the store's manager
+CREATE INDEX product_updates_store_idx ON ProductUpdates (storeID, updateNumber DESC);
+CREATE INDEX product_updates_manager_store_idx ON ProductUpdates (managerID, storeID, updateNumber DESC);
+--foreign keys to Product, so deleting a product does not scan these
+CREATE INDEX product_updates_product_idx ON ProductUpdates (storeID, productName);
+CREATE INDEX supply_requests_product_idx ON ProductSupplyRequests (storeID, productName);
+--stores that have enough units of a product, for "nearest store that has it"
+CREATE INDEX product_stock_idx ON Product (productName, numberOfUnits, storeID);
+--sales trends of a whole store over a range of days or hours
+CREATE INDEX sales_daily_store_day_idx ON SalesDaily (storeID, day);
+CREATE INDEX sales_hourly_store_hour_idx ON SalesHourly (storeID, hour);
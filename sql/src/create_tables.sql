@@ -5,6 +5,11 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StoreProductOrderCounts CASCADE;
+DROP TABLE IF EXISTS StoreCustomerOrderCounts CASCADE;
+DROP TABLE IF EXISTS InventoryJournal CASCADE;
+DROP TABLE IF EXISTS SalesHourly CASCADE;
+DROP TABLE IF EXISTS SalesDaily CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -41,6 +46,11 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+--Orders is range partitioned by orderTime (PostgreSQL 11 or later), one
+--partition per month named orders_yYYYYmMM, so queries bounded by time only
+--read the months they need and old months can be detached and archived
+--(OrderArchiver). Rows outside every month go to Orders_default until
+--create_orders_partition() moves them into their month.
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -48,10 +58,12 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
                      FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+) PARTITION BY RANGE (orderTime);
+
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
@@ -78,8 +90,291 @@ CREATE TABLE ProductUpdates (
 );
 
 --calculate distance function so it can be in one query/simpler syntax
+--plain SQL and IMMUTABLE so the planner can inline it into the calling query
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
-BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+SELECT sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+$dist$ LANGUAGE sql IMMUTABLE;
+
+--number of orders per product and per customer of every store, kept in step
+--with Orders by the triggers below so the top 5 screens don't scan Orders
+CREATE TABLE StoreProductOrderCounts ( storeID integer NOT NULL,
+                                       productName char(30) NOT NULL,
+                                       orderCount bigint NOT NULL,
+                                       PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE StoreCustomerOrderCounts ( storeID integer NOT NULL,
+                                        customerID integer NOT NULL,
+                                        orderCount bigint NOT NULL,
+                                        PRIMARY KEY(storeID, customerID)
+);
+
+--adds delta orders to the counts of a store's product and customer, rows
+--that drop to zero are removed so the counts match a GROUP BY over Orders
+CREATE OR REPLACE FUNCTION add_order_count(sid integer, pname char(30), cid integer, delta integer)
+RETURNS void AS $count$
+BEGIN
+    INSERT INTO StoreProductOrderCounts AS C (storeID, productName, orderCount) VALUES (sid, pname, delta)
+    ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = C.orderCount + EXCLUDED.orderCount;
+
+    INSERT INTO StoreCustomerOrderCounts AS C (storeID, customerID, orderCount) VALUES (sid, cid, delta)
+    ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = C.orderCount + EXCLUDED.orderCount;
+
+    IF delta < 0 THEN
+        DELETE FROM StoreProductOrderCounts WHERE storeID = sid AND productName = pname AND orderCount <= 0;
+        DELETE FROM StoreCustomerOrderCounts WHERE storeID = sid AND customerID = cid AND orderCount <= 0;
+    END IF;
+END;
+$count$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION orders_count_row()
+RETURNS trigger AS $count$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM add_order_count(OLD.storeID, OLD.productName, OLD.customerID, -1);
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        PERFORM add_order_count(NEW.storeID, NEW.productName, NEW.customerID, 1);
+    END IF;
+    RETURN NULL;
+END;
+$count$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION orders_count_truncate()
+RETURNS trigger AS $count$
+BEGIN
+    TRUNCATE StoreProductOrderCounts, StoreCustomerOrderCounts;
+    RETURN NULL;
+END;
+$count$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_count
+AFTER INSERT OR DELETE OR UPDATE OF customerID, storeID, productName ON Orders
+FOR EACH ROW EXECUTE PROCEDURE orders_count_row();
+
+CREATE TRIGGER orders_count_truncate
+AFTER TRUNCATE ON Orders
+FOR EACH STATEMENT EXECUTE PROCEDURE orders_count_truncate();
+
+--recomputes both count tables from Orders, e.g. after loading Orders with
+--the triggers disabled
+CREATE OR REPLACE FUNCTION rebuild_order_counts()
+RETURNS void AS $count$
+BEGIN
+    DELETE FROM StoreProductOrderCounts;
+    DELETE FROM StoreCustomerOrderCounts;
+    INSERT INTO StoreProductOrderCounts (storeID, productName, orderCount)
+    SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName;
+    INSERT INTO StoreCustomerOrderCounts (storeID, customerID, orderCount)
+    SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
+END;
+$count$ LANGUAGE plpgsql;
+
+--orders, units and revenue per store, product and hour or day, kept in step
+--with Orders by the orders_sales trigger so sales trends read a few rows per
+--day instead of every order. Revenue is priced at the pricePerUnit the
+--product had when the order was placed. Archiving a month of Orders keeps
+--its sales here.
+CREATE TABLE SalesHourly ( storeID integer NOT NULL,
+                           productName char(30) NOT NULL,
+                           hour timestamp NOT NULL,
+                           orders bigint NOT NULL,
+                           units bigint NOT NULL,
+                           revenue double precision NOT NULL,
+                           PRIMARY KEY(storeID, productName, hour)
+);
+
+CREATE TABLE SalesDaily ( storeID integer NOT NULL,
+                          productName char(30) NOT NULL,
+                          day date NOT NULL,
+                          orders bigint NOT NULL,
+                          units bigint NOT NULL,
+                          revenue double precision NOT NULL,
+                          PRIMARY KEY(storeID, productName, day)
+);
+
+--adds delta orders of units each to the hour and the day of t
+CREATE OR REPLACE FUNCTION add_sales(sid integer, pname char(30), t timestamp, units integer, delta integer)
+RETURNS void AS $sales$
+DECLARE
+    price double precision;
+BEGIN
+    SELECT pricePerUnit INTO price FROM Product WHERE storeID = sid AND productName = pname;
+    INSERT INTO SalesHourly AS H (storeID, productName, hour, orders, units, revenue)
+    VALUES (sid, pname, date_trunc('hour', t), delta, delta * units, delta * units * COALESCE(price, 0))
+    ON CONFLICT (storeID, productName, hour) DO UPDATE
+    SET orders = H.orders + EXCLUDED.orders, units = H.units + EXCLUDED.units, revenue = H.revenue + EXCLUDED.revenue;
+
+    INSERT INTO SalesDaily AS D (storeID, productName, day, orders, units, revenue)
+    VALUES (sid, pname, CAST(t AS date), delta, delta * units, delta * units * COALESCE(price, 0))
+    ON CONFLICT (storeID, productName, day) DO UPDATE
+    SET orders = D.orders + EXCLUDED.orders, units = D.units + EXCLUDED.units, revenue = D.revenue + EXCLUDED.revenue;
+
+    IF delta < 0 THEN
+        DELETE FROM SalesHourly WHERE storeID = sid AND productName = pname AND hour = date_trunc('hour', t) AND orders <= 0;
+        DELETE FROM SalesDaily WHERE storeID = sid AND productName = pname AND day = CAST(t AS date) AND orders <= 0;
+    END IF;
+END;
+$sales$ LANGUAGE plpgsql;
+
+--a removed order is priced at the current price, its original one is not kept
+CREATE OR REPLACE FUNCTION orders_sales_row()
+RETURNS trigger AS $sales$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM add_sales(OLD.storeID, OLD.productName, OLD.orderTime, OLD.unitsOrdered, -1);
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        PERFORM add_sales(NEW.storeID, NEW.productName, NEW.orderTime, NEW.unitsOrdered, 1);
+    END IF;
+    RETURN NULL;
+END;
+$sales$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION orders_sales_truncate()
+RETURNS trigger AS $sales$
+BEGIN
+    TRUNCATE SalesHourly, SalesDaily;
+    RETURN NULL;
+END;
+$sales$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_sales
+AFTER INSERT OR DELETE OR UPDATE OF storeID, productName, unitsOrdered, orderTime ON Orders
+FOR EACH ROW EXECUTE PROCEDURE orders_sales_row();
+
+CREATE TRIGGER orders_sales_truncate
+AFTER TRUNCATE ON Orders
+FOR EACH STATEMENT EXECUTE PROCEDURE orders_sales_truncate();
+
+--recomputes the rollups of the days from first to last from Orders, priced
+--at today's prices, e.g. to backfill after loading Orders with the triggers
+--disabled. Days whose month was archived have no orders left, so keep
+--the range to months still in Orders. Returns the number of hourly rows.
+CREATE OR REPLACE FUNCTION rebuild_sales_rollups(first timestamp, last timestamp)
+RETURNS bigint AS $sales$
+DECLARE
+    lo timestamp := date_trunc('day', first);
+    hi timestamp := date_trunc('day', last) + interval '1 day';
+    hours bigint;
+BEGIN
+    DELETE FROM SalesHourly WHERE hour >= lo AND hour < hi;
+    DELETE FROM SalesDaily WHERE day >= CAST(lo AS date) AND day < CAST(hi AS date);
+    INSERT INTO SalesHourly (storeID, productName, hour, orders, units, revenue)
+    SELECT O.storeID, O.productName, date_trunc('hour', O.orderTime), COUNT(*), SUM(O.unitsOrdered),
+           SUM(O.unitsOrdered * P.pricePerUnit)
+    FROM Orders O JOIN Product P ON P.storeID = O.storeID AND P.productName = O.productName
+    WHERE O.orderTime >= lo AND O.orderTime < hi
+    GROUP BY O.storeID, O.productName, date_trunc('hour', O.orderTime);
+    GET DIAGNOSTICS hours = ROW_COUNT;
+    INSERT INTO SalesDaily (storeID, productName, day, orders, units, revenue)
+    SELECT storeID, productName, CAST(hour AS date), SUM(orders), SUM(units), SUM(revenue)
+    FROM SalesHourly WHERE hour >= lo AND hour < hi
+    GROUP BY storeID, productName, CAST(hour AS date);
+    RETURN hours;
+END;
+$sales$ LANGUAGE plpgsql;
+
+--rebuilds the rollups of every day Orders has orders on
+CREATE OR REPLACE FUNCTION rebuild_sales_rollups()
+RETURNS bigint AS $sales$
+    SELECT COALESCE(rebuild_sales_rollups(MIN(orderTime), MAX(orderTime)), 0) FROM Orders;
+$sales$ LANGUAGE sql;
+
+--creates the partition of the month holding t unless it exists, moving the
+--rows of that month out of the default partition first. Returns its name.
+CREATE OR REPLACE FUNCTION create_orders_partition(t timestamp)
+RETURNS text AS $part$
+DECLARE
+    lo timestamp := date_trunc('month', t);
+    hi timestamp := date_trunc('month', t) + interval '1 month';
+    part text := 'orders_y' || to_char(t, 'YYYY') || 'm' || to_char(t, 'MM');
+    moved bigint;
+BEGIN
+    IF to_regclass(part) IS NOT NULL THEN
+        RETURN part;
+    END IF;
+    IF NOT EXISTS (SELECT 1 FROM Orders_default WHERE orderTime >= lo AND orderTime < hi) THEN
+        EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)', part, lo, hi);
+        RETURN part;
+    END IF;
+
+    --the default partition may not hold rows of a new partition's range
+    EXECUTE format('CREATE TABLE %I (LIKE Orders INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', part);
+    EXECUTE format('WITH m AS (DELETE FROM Orders_default WHERE orderTime >= $1 AND orderTime < $2 RETURNING *) '
+                   'INSERT INTO %I SELECT * FROM m', part) USING lo, hi;
+    GET DIAGNOSTICS moved = ROW_COUNT;
+    EXECUTE format('ALTER TABLE Orders ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', part, lo, hi);
+    --the DELETE took the moved orders off the counts and sales, the INSERT
+    --bypassed Orders
+    EXECUTE format('SELECT add_order_count(storeID, productName, customerID, CAST(COUNT(*) AS integer)) '
+                   'FROM %I GROUP BY storeID, productName, customerID', part);
+    EXECUTE format('SELECT add_sales(storeID, productName, orderTime, unitsOrdered, CAST(COUNT(*) AS integer)) '
+                   'FROM %I GROUP BY storeID, productName, orderTime, unitsOrdered', part);
+    RAISE NOTICE 'moved % orders from Orders_default to %', moved, part;
+    RETURN part;
+END;
+$part$ LANGUAGE plpgsql;
+
+--creates the partitions of every month from first to last, returns how many
+--months were asked for
+CREATE OR REPLACE FUNCTION create_orders_partitions(first timestamp, last timestamp)
+RETURNS integer AS $part$
+DECLARE
+    month timestamp := date_trunc('month', first);
+    months integer := 0;
+BEGIN
+    WHILE month <= last LOOP
+        PERFORM create_orders_partition(month);
+        month := month + interval '1 month';
+        months := months + 1;
+    END LOOP;
+    RETURN months;
+END;
+$part$ LANGUAGE plpgsql;
+
+--detaches a month from Orders and takes its orders off the counts, so the
+--top 5 screens only count the months still in Orders. Returns the number
+--of orders detached; the table itself is left for OrderArchiver to archive.
+CREATE OR REPLACE FUNCTION detach_orders_partition(part text)
+RETURNS bigint AS $part$
+DECLARE
+    detached bigint;
+BEGIN
+    EXECUTE format('SELECT add_order_count(storeID, productName, customerID, -CAST(COUNT(*) AS integer)) '
+                   'FROM %I GROUP BY storeID, productName, customerID', part);
+    EXECUTE format('ALTER TABLE Orders DETACH PARTITION %I', part);
+    EXECUTE format('SELECT count(*) FROM %I', part) INTO detached;
+    RETURN detached;
+END;
+$part$ LANGUAGE plpgsql;
+
+--stock changes made through the in-memory inventory ledger (InventoryLedger)
+--that are not in Product yet. Each change is written with the order, update
+--or supply request it belongs to; flush_inventory_journal() moves them into
+--Product in one transaction, so after a crash the rows left here are exactly
+--what Product is missing.
+CREATE TABLE InventoryJournal ( entryNumber bigserial,
+                                storeID integer NOT NULL,
+                                productName char(30) NOT NULL,
+                                delta integer NOT NULL,
+                                PRIMARY KEY(entryNumber),
+                                FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                                ON DELETE CASCADE
+);
+
+--applies and removes every committed journal row, summed per product
+CREATE OR REPLACE FUNCTION flush_inventory_journal()
+RETURNS integer AS $flush$
+DECLARE
+    flushed integer;
+BEGIN
+    WITH done AS (DELETE FROM InventoryJournal RETURNING storeID, productName, delta),
+         sums AS (SELECT storeID, productName, SUM(delta) AS delta FROM done GROUP BY storeID, productName),
+         applied AS (UPDATE Product P SET numberOfUnits = P.numberOfUnits + S.delta FROM sums S
+                     WHERE P.storeID = S.storeID AND P.productName = S.productName RETURNING 1)
+    SELECT COUNT(*) INTO flushed FROM applied;
+    RETURN flushed;
 END;
-$dist$ LANGUAGE plpgsql;
\ No newline at end of file
+$flush$ LANGUAGE plpgsql;